@@ -75,7 +75,8 @@ public static CommandBook inst() {
     }
 
     public static Logger logger() {
-        return inst().getLogger();
+        // Outside a running server, such as in unit tests, there is no plugin to log through
+        return instance != null ? instance.getLogger() : Logger.getLogger("CommandBook");
     }
 
     public static void registerEvents(Listener listener) {
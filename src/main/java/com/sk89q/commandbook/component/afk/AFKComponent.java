@@ -212,7 +212,7 @@ public void update(Player player) {
     public void run() {
 
         Collection<? extends Player> onlinePlayers = config.npcCompatibilty ? server.getOnlinePlayers() : null;
-        for (final AFKSession session : sessions.getSessions(AFKSession.class).values()) {
+        for (final AFKSession session : sessions.getSessionView(AFKSession.class)) {
 
             if (session == null) continue;
             final Player target = session.getPlayer();
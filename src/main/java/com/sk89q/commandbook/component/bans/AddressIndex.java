@@ -0,0 +1,569 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import com.google.common.net.InetAddresses;
+import org.apache.commons.lang3.Validate;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Maps IPv4 and IPv6 addresses and CIDR ranges to values.
+ *
+ * Single addresses live in open-addressing hash tables keyed by the raw address bits, and ranges
+ * live in a binary trie over the address bits, so a lookup works on the address bytes directly
+ * and never builds a string. {@link #get(InetAddress)} prefers an exact entry and otherwise
+ * returns the value of the longest matching range.
+ *
+ * The index may be read from any number of threads while one thread at a time changes it.
+ * Reads take no lock: they run optimistically and are only retried under a read lock
+ * if a change happened while they were running.
+ */
+public class AddressIndex<V> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final StampedLock lock = new StampedLock();
+
+    // IPv4 addresses: key is the address as an int
+    private int[] v4Keys = new int[INITIAL_CAPACITY];
+    private Object[] v4Values = new Object[INITIAL_CAPACITY];
+    private int v4Size;
+
+    // IPv6 addresses: key is the high and low 64 bits of the address
+    private long[] v6High = new long[INITIAL_CAPACITY];
+    private long[] v6Low = new long[INITIAL_CAPACITY];
+    private Object[] v6Values = new Object[INITIAL_CAPACITY];
+    private int v6Size;
+
+    // Ranges, one trie per address family
+    private final Node<V> v4Root = new Node<V>();
+    private final Node<V> v6Root = new Node<V>();
+    private int rangeCount;
+
+    private static final class Node<V> {
+        private Node<V> zero;
+        private Node<V> one;
+        private V value;
+    }
+
+    /**
+     * Associate an address or range with a value.
+     *
+     * @param prefix The address or range
+     * @param value The value
+     * @return The value previously associated with the same address or range, if any
+     */
+    public V put(Prefix prefix, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value must not be null");
+        }
+        long stamp = lock.writeLock();
+        try {
+            return putLocked(prefix, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private V putLocked(Prefix prefix, V value) {
+        if (prefix.isSingleAddress()) {
+            return prefix.bytes.length == 4
+                    ? putV4(toInt(prefix.bytes, 0), value)
+                    : putV6(toLong(prefix.bytes, 0), toLong(prefix.bytes, 8), value);
+        }
+
+        Node<V> node = prefix.bytes.length == 4 ? v4Root : v6Root;
+        for (int i = 0; i < prefix.length; i++) {
+            if (bit(prefix.bytes, i)) {
+                if (node.one == null) node.one = new Node<V>();
+                node = node.one;
+            } else {
+                if (node.zero == null) node.zero = new Node<V>();
+                node = node.zero;
+            }
+        }
+        V old = node.value;
+        node.value = value;
+        if (old == null) {
+            ++rangeCount;
+        }
+        return old;
+    }
+
+    /**
+     * Remove an address or range. Only the exact address or range is removed, not the
+     * addresses or narrower ranges it covers.
+     *
+     * @param prefix The address or range
+     * @return The value that was removed, if any
+     */
+    public V remove(Prefix prefix) {
+        long stamp = lock.writeLock();
+        try {
+            if (prefix.isSingleAddress()) {
+                return prefix.bytes.length == 4
+                        ? removeV4(toInt(prefix.bytes, 0))
+                        : removeV6(toLong(prefix.bytes, 0), toLong(prefix.bytes, 8));
+            }
+            return removeRange(prefix.bytes.length == 4 ? v4Root : v6Root, prefix.bytes, 0, prefix.length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove the value of a range and prune the nodes left without children or a value.
+     */
+    private V removeRange(Node<V> node, byte[] bytes, int depth, int length) {
+        if (depth == length) {
+            V old = node.value;
+            node.value = null;
+            if (old != null) {
+                --rangeCount;
+            }
+            return old;
+        }
+        boolean one = bit(bytes, depth);
+        Node<V> child = one ? node.one : node.zero;
+        if (child == null) {
+            return null;
+        }
+        V old = removeRange(child, bytes, depth + 1, length);
+        if (child.value == null && child.zero == null && child.one == null) {
+            if (one) {
+                node.one = null;
+            } else {
+                node.zero = null;
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Find the value for an address: an exact entry if there is one,
+     * otherwise the value of the longest range containing it.
+     *
+     * The only allocation is the copy of the address bytes that {@link InetAddress#getAddress()}
+     * makes; callers holding the bytes already can use {@link #get(byte[])}.
+     *
+     * @param address The address to look up
+     * @return The value, or null if the address is not covered
+     */
+    public V get(InetAddress address) {
+        return get(address.getAddress());
+    }
+
+    /**
+     * Find the value for an address given as its bytes, 4 for IPv4 or 16 for IPv6.
+     * This does not allocate.
+     *
+     * @param bytes The address to look up, in network byte order
+     * @return The value, or null if the address is not covered
+     */
+    public V get(byte[] bytes) {
+        Validate.isTrue(bytes.length == 4 || bytes.length == 16, "An address has 4 or 16 bytes");
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                V value = find(bytes);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException ignored) {
+                // A change was running and the tables were read half-updated; retry under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(bytes);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Look up an address. This may run concurrently with a change, so every loop is bounded
+     * and the result is only used once the read has been validated.
+     */
+    private V find(byte[] bytes) {
+        V exact = bytes.length == 4
+                ? getV4(toInt(bytes, 0))
+                : getV6(toLong(bytes, 0), toLong(bytes, 8));
+        if (exact != null || rangeCount == 0) {
+            return exact;
+        }
+
+        Node<V> node = bytes.length == 4 ? v4Root : v6Root;
+        V best = node.value;
+        int bits = bytes.length * 8;
+        for (int i = 0; i < bits; i++) {
+            node = bit(bytes, i) ? node.one : node.zero;
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                best = node.value;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The number of single addresses and ranges in this index
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return v4Size + v6Size + rangeCount;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            clearLocked();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void clearLocked() {
+        v4Keys = new int[INITIAL_CAPACITY];
+        v4Values = new Object[INITIAL_CAPACITY];
+        v4Size = 0;
+        v6High = new long[INITIAL_CAPACITY];
+        v6Low = new long[INITIAL_CAPACITY];
+        v6Values = new Object[INITIAL_CAPACITY];
+        v6Size = 0;
+        v4Root.zero = v4Root.one = null;
+        v4Root.value = null;
+        v6Root.zero = v6Root.one = null;
+        v6Root.value = null;
+        rangeCount = 0;
+    }
+
+    // -- IPv4 table
+
+    @SuppressWarnings("unchecked")
+    private V getV4(int key) {
+        int[] keys = v4Keys;
+        Object[] values = v4Values;
+        int mask = values.length - 1;
+        for (int i = mix(key) & mask, n = 0; n <= mask && values[i] != null; i = (i + 1) & mask, n++) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V putV4(int key, V value) {
+        if ((v4Size + 1) * 2 > v4Keys.length) {
+            int[] oldKeys = v4Keys;
+            Object[] oldValues = v4Values;
+            v4Keys = new int[oldKeys.length * 2];
+            v4Values = new Object[oldKeys.length * 2];
+            v4Size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    putV4(oldKeys[i], (V) oldValues[i]);
+                }
+            }
+        }
+        int mask = v4Keys.length - 1;
+        int i = mix(key) & mask;
+        for (; v4Values[i] != null; i = (i + 1) & mask) {
+            if (v4Keys[i] == key) {
+                V old = (V) v4Values[i];
+                v4Values[i] = value;
+                return old;
+            }
+        }
+        v4Keys[i] = key;
+        v4Values[i] = value;
+        ++v4Size;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V removeV4(int key) {
+        int mask = v4Keys.length - 1;
+        int i = mix(key) & mask;
+        for (; v4Values[i] != null; i = (i + 1) & mask) {
+            if (v4Keys[i] == key) {
+                break;
+            }
+        }
+        if (v4Values[i] == null) {
+            return null;
+        }
+        V old = (V) v4Values[i];
+        v4Values[i] = null;
+        --v4Size;
+
+        // Shift back any following entries that probed past the freed slot
+        for (int j = (i + 1) & mask; v4Values[j] != null; j = (j + 1) & mask) {
+            int home = mix(v4Keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                v4Keys[i] = v4Keys[j];
+                v4Values[i] = v4Values[j];
+                v4Values[j] = null;
+                i = j;
+            }
+        }
+        return old;
+    }
+
+    // -- IPv6 table
+
+    @SuppressWarnings("unchecked")
+    private V getV6(long high, long low) {
+        long[] highs = v6High;
+        long[] lows = v6Low;
+        Object[] values = v6Values;
+        int mask = values.length - 1;
+        for (int i = mix(high, low) & mask, n = 0; n <= mask && values[i] != null; i = (i + 1) & mask, n++) {
+            if (highs[i] == high && lows[i] == low) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V putV6(long high, long low, V value) {
+        if ((v6Size + 1) * 2 > v6Values.length) {
+            long[] oldHigh = v6High;
+            long[] oldLow = v6Low;
+            Object[] oldValues = v6Values;
+            v6High = new long[oldValues.length * 2];
+            v6Low = new long[oldValues.length * 2];
+            v6Values = new Object[oldValues.length * 2];
+            v6Size = 0;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    putV6(oldHigh[i], oldLow[i], (V) oldValues[i]);
+                }
+            }
+        }
+        int mask = v6Values.length - 1;
+        int i = mix(high, low) & mask;
+        for (; v6Values[i] != null; i = (i + 1) & mask) {
+            if (v6High[i] == high && v6Low[i] == low) {
+                V old = (V) v6Values[i];
+                v6Values[i] = value;
+                return old;
+            }
+        }
+        v6High[i] = high;
+        v6Low[i] = low;
+        v6Values[i] = value;
+        ++v6Size;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V removeV6(long high, long low) {
+        int mask = v6Values.length - 1;
+        int i = mix(high, low) & mask;
+        for (; v6Values[i] != null; i = (i + 1) & mask) {
+            if (v6High[i] == high && v6Low[i] == low) {
+                break;
+            }
+        }
+        if (v6Values[i] == null) {
+            return null;
+        }
+        V old = (V) v6Values[i];
+        v6Values[i] = null;
+        --v6Size;
+
+        for (int j = (i + 1) & mask; v6Values[j] != null; j = (j + 1) & mask) {
+            int home = mix(v6High[j], v6Low[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                v6High[i] = v6High[j];
+                v6Low[i] = v6Low[j];
+                v6Values[i] = v6Values[j];
+                v6Values[j] = null;
+                i = j;
+            }
+        }
+        return old;
+    }
+
+    // -- Bit helpers
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int mix(long high, long low) {
+        long h = (high * 0x9E3779B97F4A7C15L) ^ low;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static boolean bit(byte[] bytes, int index) {
+        return (bytes[index >>> 3] & (0x80 >>> (index & 7))) != 0;
+    }
+
+    private static int toInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        return (toInt(bytes, offset) & 0xFFFFFFFFL) << 32 | (toInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * An IP address with a prefix length. A single address has the full length of its family.
+     */
+    public static final class Prefix {
+        private final byte[] bytes;
+        private final int length;
+
+        private Prefix(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+            // Clear the host bits so that 10.1.2.3/8 and 10.0.0.0/8 are the same range
+            for (int i = length; i < bytes.length * 8; i++) {
+                bytes[i >>> 3] &= ~(0x80 >>> (i & 7));
+            }
+        }
+
+        /**
+         * Parse an address literal such as {@code 192.168.0.1} or a CIDR range such as
+         * {@code 192.168.0.0/16} or {@code 2001:db8::/32}. Host names are never resolved.
+         *
+         * @param input The address or range
+         * @return The parsed prefix
+         * @throws IllegalArgumentException if the input is not an address literal or range
+         */
+        public static Prefix parse(String input) {
+            String address = input.trim();
+            int length = -1;
+            int slash = address.indexOf('/');
+            if (slash >= 0) {
+                try {
+                    length = Integer.parseInt(address.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid prefix length in " + input);
+                }
+                address = address.substring(0, slash);
+            }
+            if (address.startsWith("[") && address.endsWith("]")) {
+                address = address.substring(1, address.length() - 1);
+            }
+            if (!InetAddresses.isInetAddress(address)) {
+                throw new IllegalArgumentException(input + " is not an IP address or CIDR range");
+            }
+            byte[] bytes = InetAddresses.forString(address).getAddress();
+            if (length == -1) {
+                length = bytes.length * 8;
+            } else if (length < 0 || length > bytes.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length in " + input);
+            }
+            return new Prefix(bytes, length);
+        }
+
+        /**
+         * Parse an address or range, returning null instead of throwing if it is not valid.
+         *
+         * @param input The address or range
+         * @return The parsed prefix, or null
+         */
+        public static Prefix tryParse(String input) {
+            if (input == null) {
+                return null;
+            }
+            try {
+                return parse(input);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Get the canonical form of an address or range, so that it matches however it was
+         * written. Anything that is not an IP literal is returned as-is.
+         *
+         * @param input The address or range
+         * @return The canonical form
+         */
+        public static String canonicalize(String input) {
+            Prefix prefix = tryParse(input);
+            return prefix != null ? prefix.toString() : input;
+        }
+
+        public boolean isSingleAddress() {
+            return length == bytes.length * 8;
+        }
+
+        /**
+         * @param address The address to check
+         * @return Whether this prefix covers {@code address}
+         */
+        public boolean contains(InetAddress address) {
+            byte[] other = address.getAddress();
+            if (other.length != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bit(other, i) != bit(bytes, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Prefix)) {
+                return false;
+            }
+            Prefix prefix = (Prefix) other;
+            return length == prefix.length && Arrays.equals(bytes, prefix.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(bytes) + length;
+        }
+
+        /**
+         * @return The canonical form of this prefix, without a length for single addresses
+         */
+        @Override
+        public String toString() {
+            try {
+                String address = InetAddresses.toAddrString(InetAddress.getByAddress(bytes));
+                return isSingleAddress() ? address : address + "/" + length;
+            } catch (java.net.UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Persists a ban database on a single background thread.
+ *
+ * Callers only mark the database as dirty. The first request after a write schedules the next
+ * write one coalescing window later, and every request made before that write starts shares its
+ * result, so a burst of bans turns into a single write.
+ */
+public class AsyncBanWriter {
+    private final ScheduledExecutorService executor;
+    private final BooleanSupplier writer;
+    private final long windowMillis;
+    private CompletableFuture<Boolean> pending;
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * @param name The name of the writer thread
+     * @param writer Performs a write, returning whether it was fully successful
+     * @param windowMillis How long to wait for further changes before writing
+     */
+    public AsyncBanWriter(String name, BooleanSupplier writer, long windowMillis) {
+        this.writer = writer;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Mark the database as dirty, scheduling a write if none is pending.
+     *
+     * @return A future completed with whether the write covering this change succeeded
+     */
+    public synchronized CompletableFuture<Boolean> markDirty() {
+        if (pending == null) {
+            pending = new CompletableFuture<Boolean>();
+            if (executor.isShutdown()) {
+                pending.complete(false);
+                CompletableFuture<Boolean> result = pending;
+                pending = null;
+                return result;
+            }
+            scheduled = executor.schedule(this::write, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return pending;
+    }
+
+    /**
+     * Write any pending changes now rather than at the end of the coalescing window.
+     *
+     * @return A future completed with whether the write succeeded
+     */
+    public synchronized CompletableFuture<Boolean> flush() {
+        CompletableFuture<Boolean> result = markDirty();
+        if (scheduled != null && scheduled.cancel(false)) {
+            scheduled = executor.schedule(this::write, 0, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * Run a task on the writer thread, after any write that is already running.
+     *
+     * @param task The task to run
+     * @return The future of the task
+     */
+    public Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    private void write() {
+        CompletableFuture<Boolean> result;
+        synchronized (this) {
+            result = pending;
+            pending = null;
+            scheduled = null;
+        }
+        if (result == null) {
+            return;
+        }
+
+        boolean successful;
+        try {
+            successful = writer.getAsBoolean();
+        } catch (RuntimeException e) {
+            logger().log(Level.WARNING, "Unexpected error while saving bans", e);
+            successful = false;
+        }
+        result.complete(successful);
+    }
+
+    /**
+     * Write any pending changes and stop the writer thread.
+     *
+     * @param timeout How long to wait for the final write
+     * @param unit The unit of {@code timeout}
+     * @return whether the final write succeeded in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        CompletableFuture<Boolean> last = flush();
+        executor.shutdown();
+        try {
+            return last.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger().warning("Bans could not be saved before shutdown: " + e);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import com.sk89q.commandbook.util.ChatUtil;
+import com.sk89q.commandbook.util.ServerUtil;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * The audit trail of bans, unbans and kicks, written as one JSON object per line to
+ * bans-audit.jsonl in the ban storage directory.
+ *
+ * Callers only capture the details of an entry and put it in a bounded buffer; a single
+ * background thread formats and writes entries in batches. If the buffer is full the entry is
+ * dropped and counted rather than holding up the caller. The file is rotated once it grows past
+ * a size limit or has been open for a set time, keeping a limited number of old files.
+ */
+public class BanAuditLog {
+    private static final String FILE_PREFIX = "bans-audit";
+    private static final String FILE_SUFFIX = ".jsonl";
+    private static final DateTimeFormatter ROTATED_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+
+    private final File directory;
+    private final File file;
+    private final long maxFileBytes;
+    private final long rotateMillis;
+    private final int keepFiles;
+
+    private final BlockingQueue<Entry> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile BanHistory history;
+
+    // Only used by the writer thread
+    private OutputStream output;
+    private long fileBytes;
+    private long openedAt;
+
+    /**
+     * Create an audit log with a 8192 entry buffer, rotating daily or at 10 MB and keeping 14 old files.
+     *
+     * @param banStorageDir The directory the log files are kept in
+     */
+    public BanAuditLog(File banStorageDir) {
+        this(banStorageDir, 8192, 10L * 1024 * 1024, TimeUnit.DAYS.toMillis(1), 14);
+    }
+
+    /**
+     * @param banStorageDir The directory the log files are kept in
+     * @param bufferSize The number of entries that may wait to be written
+     * @param maxFileBytes The size after which the file is rotated
+     * @param rotateMillis How long a file is written to before it is rotated
+     * @param keepFiles The number of rotated files to keep
+     */
+    public BanAuditLog(File banStorageDir, int bufferSize, long maxFileBytes, long rotateMillis, int keepFiles) {
+        this.directory = banStorageDir;
+        this.file = new File(banStorageDir, FILE_PREFIX + FILE_SUFFIX);
+        this.maxFileBytes = Math.max(1024, maxFileBytes);
+        this.rotateMillis = Math.max(TimeUnit.MINUTES.toMillis(1), rotateMillis);
+        this.keepFiles = Math.max(0, keepFiles);
+        this.queue = new ArrayBlockingQueue<Entry>(Math.max(16, bufferSize));
+        this.thread = new Thread(this::run, "CommandBook Ban Audit Log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static final class Entry {
+        private final long time = System.currentTimeMillis();
+        private final String action;
+        private final String source;
+        private final String sourceAddress;
+        private final String uuid;
+        private final String name;
+        private final String address;
+        private final String reason;
+        private final Long start;
+        private final Long end;
+
+        private Entry(String action, CommandSender source, String uuid, String name, String address,
+                      String reason, Long start, Long end) {
+            this.action = action;
+            this.source = source == null ? "Plugin" : ChatUtil.toUniqueName(source);
+            this.sourceAddress = source == null ? "local" : ServerUtil.toInetAddressString(source);
+            this.uuid = uuid;
+            this.name = name;
+            this.address = address;
+            this.reason = reason;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Also record bans and unbans in {@code history}.
+     *
+     * @param history The history to record to, or null to stop recording
+     */
+    public void setHistory(BanHistory history) {
+        this.history = history;
+    }
+
+    public void logBan(CommandSender source, Ban ban, String reason) {
+        log("BAN", source, ban, reason);
+        record(BanHistory.Action.BAN, source, ban, reason);
+    }
+
+    public void logUnban(CommandSender source, Ban ban, String reason) {
+        log("UNBAN", source, ban, reason);
+        record(BanHistory.Action.UNBAN, source, ban, reason);
+    }
+
+    private void record(BanHistory.Action action, CommandSender source, Ban ban, String reason) {
+        BanHistory history = this.history;
+        if (history != null) {
+            history.record(action, ban, reason, source == null ? "Plugin" : ChatUtil.toUniqueName(source));
+        }
+    }
+
+    private void log(String action, CommandSender source, Ban ban, String reason) {
+        offer(new Entry(action, source, ban.getID() == null ? null : ban.getID().toString(),
+                ban.getLastKnownAlias(), ban.getAddress(), reason, ban.getStart(), ban.getEnd()));
+    }
+
+    public void logKick(Player player, CommandSender source, String reason) {
+        offer(new Entry("KICKED", source, player.getUniqueId().toString(), player.getName(),
+                player.getAddress() == null ? null : player.getAddress().getAddress().getHostAddress(),
+                reason, null, null));
+    }
+
+    private void offer(Entry entry) {
+        if (closed || !queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of entries waiting to be written
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of entries dropped because the buffer was full or the log was closed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of entries written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    private void run() {
+        while (!closed || !queue.isEmpty()) {
+            Entry entry;
+            try {
+                entry = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                if (output != null && (fileBytes >= maxFileBytes
+                        || System.currentTimeMillis() - openedAt >= rotateMillis)) {
+                    rotate();
+                }
+                if (entry == null) {
+                    continue;
+                }
+                // Write everything that is waiting, then flush once
+                do {
+                    write(entry);
+                } while (fileBytes < maxFileBytes && (entry = queue.poll()) != null);
+                output.flush();
+            } catch (IOException e) {
+                logger().warning("Failed to write to " + file.getAbsolutePath() + ": " + e.getMessage());
+                dropped.incrementAndGet();
+                closeOutput();
+            }
+        }
+        closeOutput();
+    }
+
+    private void write(Entry entry) throws IOException {
+        if (output == null) {
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            output = new BufferedOutputStream(new FileOutputStream(file, true));
+            fileBytes = file.length();
+            openedAt = System.currentTimeMillis();
+        }
+        byte[] line = (toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+        output.write(line);
+        fileBytes += line.length;
+        written.incrementAndGet();
+    }
+
+    private void rotate() {
+        closeOutput();
+        File rotated;
+        do {
+            rotated = new File(directory, FILE_PREFIX + "-" + ROTATED_FORMAT.format(Instant.now()) + FILE_SUFFIX);
+        } while (rotated.exists() && sleepQuietly());
+        if (!file.renameTo(rotated)) {
+            logger().warning("Failed to rotate " + file.getAbsolutePath());
+            return;
+        }
+
+        File[] old = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX + "-") && name.endsWith(FILE_SUFFIX));
+        if (old != null && old.length > keepFiles) {
+            // The timestamp in the name sorts oldest first
+            Arrays.sort(old);
+            for (int i = 0; i < old.length - keepFiles; i++) {
+                if (!old[i].delete()) {
+                    logger().warning("Failed to delete " + old[i].getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private static boolean sleepQuietly() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException ignored) {
+        }
+        return true;
+    }
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                logger().warning("Failed to close " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+            output = null;
+        }
+    }
+
+    private static String toJson(Entry entry) {
+        StringBuilder builder = new StringBuilder(192);
+        builder.append('{');
+        appendField(builder, "time", DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(entry.time)));
+        appendField(builder, "action", entry.action);
+        appendField(builder, "source", entry.source);
+        appendField(builder, "sourceAddress", entry.sourceAddress);
+        appendField(builder, "uuid", entry.uuid);
+        appendField(builder, "name", entry.name);
+        appendField(builder, "address", entry.address);
+        appendField(builder, "reason", entry.reason);
+        if (entry.start != null) {
+            builder.append(",\"start\":").append(entry.start.longValue());
+        }
+        if (entry.end != null) {
+            builder.append(",\"end\":").append(entry.end.longValue());
+        }
+        builder.append('}');
+        return builder.toString();
+    }
+
+    private static void appendField(StringBuilder builder, String key, String value) {
+        if (value == null) {
+            return;
+        }
+        if (builder.length() > 1) {
+            builder.append(',');
+        }
+        builder.append('"').append(key).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * Write out the entries still waiting and stop the writer thread.
+     *
+     * @return whether every waiting entry was written
+     */
+    public boolean close() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive() && queue.isEmpty();
+    }
+}
@@ -23,6 +23,7 @@
 
 import java.net.InetAddress;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface for a ban database.
@@ -44,6 +45,17 @@ public interface BanDatabase extends Iterable<Ban> {
      */
     public boolean save();
 
+    /**
+     * Save the database in the background. Changes made shortly before or after
+     * this call are written together. Databases that cannot save in the background
+     * save before returning.
+     *
+     * @return A future completed with whether the save was fully successful
+     */
+    public default CompletableFuture<Boolean> saveAsync() {
+        return CompletableFuture.completedFuture(save());
+    }
+
     /**
      * Unloads the database
      *
@@ -52,7 +64,7 @@ public interface BanDatabase extends Iterable<Ban> {
     public boolean unload();
 
     /**
-     * Checks if a player's UUID is banned.
+     * Checks if a player's UUID is banned. This is a lookup only and never changes the database.
      *
      * @param ID The UUID to check
      * @return Whether the UUID is banned
@@ -60,13 +72,23 @@ public interface BanDatabase extends Iterable<Ban> {
     public boolean isBanned(UUID ID);
 
     /**
-     * Checks if a player's address is banned.
+     * Checks if a player's address is banned, either directly or by a banned CIDR range.
      *
      * @param address The address to check
      * @return Whether the given address is banned
      */
     public boolean isBanned(InetAddress address);
 
+    /**
+     * Removes temporary bans whose end time has passed. Each call handles a bounded batch
+     * of bans and requests a single save for all of them.
+     *
+     * @return The number of bans that were removed
+     */
+    public default int expireBans() {
+        return 0;
+    }
+
     /**
      * Gets the ban message for a banned UUID.
      *
@@ -153,11 +175,46 @@ public interface BanDatabase extends Iterable<Ban> {
     public void logKick(Player player, CommandSender source, String reason);
 
     /**
-     * Imports the bans from another ban database.
+     * Imports bans, such as those of another ban database. The built-in databases apply the bans
+     * as a whole: no other change to the database is made part way through an import.
+     *
+     * The default implementation bans each entry in turn, so the start time of each ban is not kept.
+     *
+     * @param bans The bans to import
+     * @return The number of bans imported
+     */
+    public default int importFrom(Iterable<Ban> bans) {
+        int imported = 0;
+        for (Ban ban : bans) {
+            if (ban.getID() == null && ban.getAddress() == null) {
+                continue;
+            }
+            ban(ban.getID(), ban.getLastKnownAlias(), ban.getAddress(), null, ban.getReason(), ban.getEnd());
+            ++imported;
+        }
+        return imported;
+    }
+
+    /**
+     * Imports the bans of another ban database.
+     *
+     * @param bans The database to import from
+     * @deprecated Use {@link #importFrom(Iterable)}, which reports the number of bans imported
+     */
+    @Deprecated
+    public default void importFrom(BanDatabase bans) {
+        importFrom((Iterable<Ban>) bans);
+    }
+
+    /**
+     * Whether this database may be read and modified from threads other than the server thread.
+     * Databases that return false must only be used from the server thread.
      *
-     * @param bans
+     * @return Whether this database is thread safe
      */
-    public void importFrom(BanDatabase bans);
+    public default boolean isThreadSafe() {
+        return false;
+    }
 
     /**
      * Returns a Ban with the given UUID
@@ -166,10 +223,37 @@ public interface BanDatabase extends Iterable<Ban> {
      */
     public Ban getBanned(UUID ID);
 
+    /**
+     * Returns the ban of a name that has no UUID, such as a legacy ban whose name has not been
+     * converted to a UUID yet.
+     * @param name The name of the banned player
+     * @return The applicable ban
+     */
+    public default Ban getBannedByName(String name) {
+        for (Ban ban : this) {
+            if (ban.getID() == null && name.equalsIgnoreCase(ban.getLastKnownAlias())) {
+                return ban;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns a Ban with the given address
      * @param address The address given to the ban.
      * @return The applicable ban
      */
     public Ban getBanned(String address);
+
+    /**
+     * Returns the Ban covering the given address. An exact address ban is preferred,
+     * otherwise the ban of the narrowest banned range containing the address is returned.
+     * The default implementation only finds exact address bans.
+     *
+     * @param address The address to check
+     * @return The applicable ban
+     */
+    public default Ban getBanned(InetAddress address) {
+        return getBanned(address.getHostAddress());
+    }
 }
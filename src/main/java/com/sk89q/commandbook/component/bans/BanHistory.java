@@ -0,0 +1,556 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import com.sk89q.commandbook.util.RecordJournal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * An append-only history of every ban and unban, looked up by UUID or address.
+ *
+ * Entries are appended to bans-history.dat and never rewritten. bans-history.idx holds
+ * (key hash, record offset) pairs sorted by hash, so the entries for a player are found with
+ * a binary search over the index file followed by one read per entry. Entries appended since the
+ * index was last written are kept in a small in-memory tail, which is merged into the index file
+ * once it grows large and on shutdown.
+ *
+ * All file access happens on a single background thread, in the order it was requested.
+ */
+public class BanHistory {
+    private static final int INDEX_MAGIC = 0x43424849;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * The number of index entries kept in memory before they are merged into the index file
+     */
+    private static final int MERGE_THRESHOLD = 10000;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final RecordJournal journal;
+    private final ExecutorService executor;
+    /**
+     * The number of entries handed to the executor and not yet appended
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // Only used by the executor thread
+    private RandomAccessFile reader;
+    private RandomAccessFile index;
+    private long indexEntries;
+    private long[] tail = new long[64];
+    private int tailSize;
+    private boolean unflushed;
+
+    public enum Action {
+        BAN, UNBAN
+    }
+
+    /**
+     * A single ban or unban in the history.
+     */
+    public static final class Entry {
+        private final Action action;
+        private final long time;
+        private final UUID ID;
+        private final String name;
+        private final String address;
+        private final String reason;
+        private final long end;
+        private final String source;
+
+        private Entry(Action action, long time, UUID ID, String name, String address, String reason,
+                      long end, String source) {
+            this.action = action;
+            this.time = time;
+            this.ID = ID;
+            this.name = name;
+            this.address = address;
+            this.reason = reason;
+            this.end = end;
+            this.source = source;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public UUID getID() {
+            return ID;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return The end of the ban for {@link Action#BAN} entries, or 0 for a permanent ban
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public String getSource() {
+            return source;
+        }
+    }
+
+    public BanHistory(File banStorageDir) {
+        dataFile = new File(banStorageDir, "bans-history.dat");
+        indexFile = new File(banStorageDir, "bans-history.idx");
+        journal = new RecordJournal(dataFile);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "CommandBook Ban History");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Open the history in the background. Entries missing from the index are re-indexed,
+     * and the whole index is rebuilt if it is missing or damaged.
+     */
+    public void load() {
+        executor.execute(() -> {
+            try {
+                open();
+            } catch (IOException e) {
+                logger().warning("Failed to load " + dataFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void open() throws IOException {
+        long indexedLength = openIndex();
+        if (indexedLength > dataFile.length()) {
+            logger().warning(indexFile.getName() + " does not match " + dataFile.getName() + ", rebuilding it");
+            closeIndex();
+            Files.deleteIfExists(indexFile.toPath());
+            indexedLength = 0;
+            indexEntries = 0;
+        }
+
+        int reindexed = RecordJournal.replay(dataFile, indexedLength, (offset, fields) -> {
+            Entry entry = decode(fields);
+            if (entry != null) {
+                addToTail(entry, offset);
+            }
+        });
+        journal.open();
+        reader = new RandomAccessFile(dataFile, "r");
+        if (reindexed > 0 || !indexFile.exists()) {
+            mergeIndex();
+        }
+    }
+
+    /**
+     * @return The length of the data file covered by the index, or 0 if there is no usable index
+     */
+    private long openIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        index = new RandomAccessFile(indexFile, "r");
+        if (index.length() < INDEX_HEADER_SIZE || index.readInt() != INDEX_MAGIC || index.readInt() != INDEX_VERSION) {
+            closeIndex();
+            return Long.MAX_VALUE;
+        }
+        long indexedLength = index.readLong();
+        indexEntries = index.readLong();
+        if (index.length() != INDEX_HEADER_SIZE + indexEntries * INDEX_ENTRY_SIZE) {
+            closeIndex();
+            return Long.MAX_VALUE;
+        }
+        return indexedLength;
+    }
+
+    private void closeIndex() throws IOException {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+    }
+
+    /**
+     * Record a ban or unban.
+     *
+     * @param action What happened
+     * @param ban The ban that was placed or lifted
+     * @param reason The reason given for the change
+     * @param source The name of who made the change
+     */
+    public void record(Action action, Ban ban, String reason, String source) {
+        final Entry entry = new Entry(action, System.currentTimeMillis(), ban.getID(), ban.getLastKnownAlias(),
+                ban.getAddress() == null ? null : AddressIndex.Prefix.canonicalize(ban.getAddress()),
+                reason, ban.getEnd(), source);
+        queued.incrementAndGet();
+        executor.execute(() -> {
+            // Append everything that is waiting, then flush once
+            boolean last = queued.decrementAndGet() == 0;
+            try {
+                long offset = journal.append(encode(entry));
+                unflushed = true;
+                if (last) {
+                    flushJournal();
+                }
+                addToTail(entry, offset);
+                if (tailSize / 2 >= MERGE_THRESHOLD) {
+                    mergeIndex();
+                }
+            } catch (IOException e) {
+                logger().warning("Failed to write to " + dataFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Push appended entries to disk, so they can be read back and are covered by the index.
+     */
+    private void flushJournal() throws IOException {
+        if (unflushed) {
+            journal.flush();
+            unflushed = false;
+        }
+    }
+
+    /**
+     * Get the history of a UUID, newest first.
+     *
+     * @param ID The UUID
+     * @return A future completed with the entries
+     */
+    public CompletableFuture<List<Entry>> getHistory(UUID ID) {
+        return find(uuidKey(ID), entry -> ID.equals(entry.getID()));
+    }
+
+    /**
+     * Get the history of an address or range, newest first.
+     *
+     * @param address The address or range
+     * @return A future completed with the entries
+     */
+    public CompletableFuture<List<Entry>> getHistory(String address) {
+        final String canonical = AddressIndex.Prefix.canonicalize(address);
+        return find(addressKey(canonical), entry -> canonical.equals(entry.getAddress()));
+    }
+
+    private interface EntryFilter {
+        public boolean matches(Entry entry);
+    }
+
+    private CompletableFuture<List<Entry>> find(final long hash, final EntryFilter filter) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Long> offsets = new ArrayList<Long>();
+            List<Entry> entries = new ArrayList<Entry>();
+            if (reader == null) {
+                return entries;
+            }
+            try {
+                flushJournal();
+                findInIndex(hash, offsets);
+                for (int i = 0; i < tailSize; i += 2) {
+                    if (tail[i] == hash) {
+                        offsets.add(tail[i + 1]);
+                    }
+                }
+                // Offsets grow with time, so the newest entries have the largest offsets
+                Collections.sort(offsets, Collections.reverseOrder());
+                for (long offset : offsets) {
+                    Entry entry = decode(RecordJournal.read(reader, offset));
+                    // Different keys can share a hash
+                    if (entry != null && filter.matches(entry)) {
+                        entries.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                logger().warning("Failed to read " + dataFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+            return entries;
+        }, executor);
+    }
+
+    /**
+     * Binary search the index file for the first entry with {@code hash}, then collect the
+     * offsets of every entry with it.
+     */
+    private void findInIndex(long hash, List<Long> offsets) throws IOException {
+        if (index == null || indexEntries == 0) {
+            return;
+        }
+        byte[] buffer = new byte[INDEX_ENTRY_SIZE * 64];
+        ByteBuffer entries = ByteBuffer.wrap(buffer);
+        long low = 0;
+        long high = indexEntries;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            index.seek(INDEX_HEADER_SIZE + mid * INDEX_ENTRY_SIZE);
+            index.readFully(buffer, 0, 8);
+            if (entries.getLong(0) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (long i = low; i < indexEntries; ) {
+            int count = (int) Math.min(64, indexEntries - i);
+            index.seek(INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE);
+            index.readFully(buffer, 0, count * INDEX_ENTRY_SIZE);
+            for (int j = 0; j < count; j++, i++) {
+                if (entries.getLong(j * INDEX_ENTRY_SIZE) != hash) {
+                    return;
+                }
+                offsets.add(entries.getLong(j * INDEX_ENTRY_SIZE + 8));
+            }
+        }
+    }
+
+    private void addToTail(Entry entry, long offset) {
+        if (entry.getID() != null) {
+            addToTail(uuidKey(entry.getID()), offset);
+        }
+        if (entry.getAddress() != null) {
+            addToTail(addressKey(entry.getAddress()), offset);
+        }
+    }
+
+    private void addToTail(long hash, long offset) {
+        if (tailSize + 2 > tail.length) {
+            tail = Arrays.copyOf(tail, tail.length * 2);
+        }
+        tail[tailSize++] = hash;
+        tail[tailSize++] = offset;
+    }
+
+    /**
+     * Write a new index file holding the current index and the tail, merged in hash order.
+     */
+    private void mergeIndex() throws IOException {
+        flushJournal();
+        sortPairs(tail, 0, tailSize / 2 - 1);
+
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        long merged = indexEntries + tailSize / 2;
+        FileOutputStream fileOutput = new FileOutputStream(tempFile);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(INDEX_VERSION);
+            output.writeLong(journal.getPosition());
+            output.writeLong(merged);
+            output.writeLong(0);
+
+            DataInputStream existing = null;
+            if (index != null) {
+                existing = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                existing.skipBytes(INDEX_HEADER_SIZE);
+            }
+            try {
+                long read = 0;
+                long hash = 0;
+                long offset = 0;
+                boolean pending = false;
+                int t = 0;
+                while (true) {
+                    if (!pending && read < indexEntries) {
+                        hash = existing.readLong();
+                        offset = existing.readLong();
+                        ++read;
+                        pending = true;
+                    }
+                    boolean takeTail = t < tailSize && (!pending || comparePairs(tail[t], tail[t + 1], hash, offset) < 0);
+                    if (takeTail) {
+                        output.writeLong(tail[t]);
+                        output.writeLong(tail[t + 1]);
+                        t += 2;
+                    } else if (pending) {
+                        output.writeLong(hash);
+                        output.writeLong(offset);
+                        pending = false;
+                    } else {
+                        break;
+                    }
+                }
+            } finally {
+                if (existing != null) {
+                    existing.close();
+                }
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+
+        closeIndex();
+        try {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        tail = new long[64];
+        tailSize = 0;
+        openIndex();
+    }
+
+    private static int comparePairs(long hashA, long offsetA, long hashB, long offsetB) {
+        int result = Long.compare(hashA, hashB);
+        return result != 0 ? result : Long.compare(offsetA, offsetB);
+    }
+
+    /**
+     * Sort the (hash, offset) pairs from pair {@code low} to pair {@code high} inclusive.
+     */
+    private static void sortPairs(long[] pairs, int low, int high) {
+        while (low < high) {
+            if (high - low < 16) {
+                for (int i = low + 1; i <= high; i++) {
+                    for (int j = i; j > low && comparePairs(pairs[2 * j], pairs[2 * j + 1],
+                            pairs[2 * j - 2], pairs[2 * j - 1]) < 0; j--) {
+                        swapPairs(pairs, j, j - 1);
+                    }
+                }
+                return;
+            }
+            int mid = (low + high) >>> 1;
+            long pivotHash = pairs[2 * mid];
+            long pivotOffset = pairs[2 * mid + 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (comparePairs(pairs[2 * i], pairs[2 * i + 1], pivotHash, pivotOffset) < 0) i++;
+                while (comparePairs(pairs[2 * j], pairs[2 * j + 1], pivotHash, pivotOffset) > 0) j--;
+                if (i <= j) {
+                    swapPairs(pairs, i++, j--);
+                }
+            }
+            // Recurse into the smaller side to bound the stack depth
+            if (j - low < high - i) {
+                sortPairs(pairs, low, j);
+                low = i;
+            } else {
+                sortPairs(pairs, i, high);
+                high = j;
+            }
+        }
+    }
+
+    private static void swapPairs(long[] pairs, int a, int b) {
+        long hash = pairs[2 * a];
+        long offset = pairs[2 * a + 1];
+        pairs[2 * a] = pairs[2 * b];
+        pairs[2 * a + 1] = pairs[2 * b + 1];
+        pairs[2 * b] = hash;
+        pairs[2 * b + 1] = offset;
+    }
+
+    private static long uuidKey(UUID ID) {
+        return hash("u" + ID);
+    }
+
+    private static long addressKey(String address) {
+        return hash("a" + address);
+    }
+
+    /**
+     * 64-bit FNV-1a
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static String[] encode(Entry entry) {
+        return new String[] {
+                entry.action.name(),
+                String.valueOf(entry.time),
+                entry.ID == null ? null : entry.ID.toString(),
+                entry.name,
+                entry.address,
+                entry.reason,
+                String.valueOf(entry.end),
+                entry.source
+        };
+    }
+
+    private static Entry decode(String[] fields) {
+        if (fields.length < 8) {
+            return null;
+        }
+        try {
+            return new Entry(Action.valueOf(fields[0]), Long.parseLong(fields[1]),
+                    fields[2] == null ? null : UUID.fromString(fields[2]), fields[3], fields[4], fields[5],
+                    Long.parseLong(fields[6]), fields[7]);
+        } catch (IllegalArgumentException e) {
+            logger().warning("Invalid ban history record found: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write any un-indexed entries to the index file and close the history.
+     */
+    public void close() {
+        executor.execute(() -> {
+            try {
+                if (tailSize > 0 && reader != null) {
+                    mergeIndex();
+                }
+                closeIndex();
+                if (reader != null) {
+                    reader.close();
+                    reader = null;
+                }
+                journal.close();
+            } catch (IOException e) {
+                logger().warning("Failed to close " + dataFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import com.sk89q.commandbook.CommandBook;
+import com.sk89q.minecraft.util.commands.CommandException;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Imports and exports bans as CSV files in the same format as bans.csv.
+ *
+ * Files are read and written on a background thread, reporting progress to the sender as they go.
+ * An import is only applied once the whole file has been read, in a single
+ * {@link BanDatabase#importFrom(Iterable)} call.
+ */
+public class BanTransfer {
+    /**
+     * How many records are read or written between progress messages
+     */
+    private static final int PROGRESS_INTERVAL = 50000;
+
+    /**
+     * How many invalid records are described to the sender before only counting the rest
+     */
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private final File dataFolder;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public BanTransfer(File dataFolder) {
+        this.dataFolder = dataFolder;
+    }
+
+    /**
+     * Resolve a file name given by a command sender. Only files inside the CommandBook folder may be used,
+     * and the files of the ban database itself are off limits.
+     *
+     * @param name The name of the file, relative to the CommandBook folder
+     * @return The file
+     * @throws CommandException if the file is not allowed
+     */
+    public File resolve(String name) throws CommandException {
+        try {
+            File root = dataFolder.getCanonicalFile();
+            File file = new File(root, name).getCanonicalFile();
+            if (!file.toPath().startsWith(root.toPath()) || file.equals(root)) {
+                throw new CommandException("Ban files must be inside the CommandBook folder.");
+            }
+            if (file.getParentFile().equals(root) && file.getName().startsWith("bans.")) {
+                throw new CommandException("Files named bans.* in the CommandBook folder belong to the ban database.");
+            }
+            return file;
+        } catch (IOException e) {
+            throw new CommandException("Invalid file name: " + e.getMessage());
+        }
+    }
+
+    private void begin() throws CommandException {
+        if (!running.compareAndSet(false, true)) {
+            throw new CommandException("A ban import or export is already running.");
+        }
+    }
+
+    /**
+     * Read bans from {@code file} in the background and add them to {@code database}.
+     *
+     * @param sender The sender to report progress and errors to
+     * @param database The database to import into
+     * @param file The file to read
+     * @throws CommandException if the file does not exist or a transfer is already running
+     */
+    public void importFile(final CommandSender sender, final BanDatabase database, final File file) throws CommandException {
+        if (!file.isFile()) {
+            throw new CommandException("No such file: " + file.getName());
+        }
+        begin();
+        sender.sendMessage(ChatColor.YELLOW + "Reading bans from " + file.getName() + "...");
+        CommandBook.server().getScheduler().runTaskAsynchronously(CommandBook.inst(), () -> {
+            final List<Ban> valid = new ArrayList<Ban>();
+            int records = 0;
+            int invalid = 0;
+            int expired = 0;
+            long now = System.currentTimeMillis();
+            try (CSVReader reader = new CSVReader(new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), "utf-8")))) {
+                String[] line;
+                while ((line = reader.readNext()) != null) {
+                    if (++records % PROGRESS_INTERVAL == 0) {
+                        message(sender, ChatColor.YELLOW + "Read " + records + " record(s)...");
+                    }
+                    Ban ban;
+                    try {
+                        ban = parseRecord(line);
+                    } catch (IllegalArgumentException e) {
+                        if (++invalid <= MAX_REPORTED_ERRORS) {
+                            message(sender, ChatColor.RED + "Record " + records + ": " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    if (ban.getEnd() != 0L && ban.getEnd() <= now) {
+                        ++expired;
+                        continue;
+                    }
+                    valid.add(ban);
+                }
+            } catch (IOException e) {
+                logger().warning("Failed to read " + file.getAbsolutePath() + ": " + e.getMessage());
+                message(sender, ChatColor.RED + "Failed to read " + file.getName() + ": " + e.getMessage());
+                running.set(false);
+                return;
+            }
+
+            final String summary = records + " record(s) read, " + invalid + " invalid, "
+                    + expired + " already expired.";
+            if (database.isThreadSafe()) {
+                finishImport(sender, database, valid, summary);
+            } else {
+                CommandBook.server().getScheduler().runTask(CommandBook.inst(),
+                        () -> finishImport(sender, database, valid, summary));
+            }
+        });
+    }
+
+    private void finishImport(CommandSender sender, BanDatabase database, List<Ban> bans, String summary) {
+        try {
+            int imported = database.importFrom(bans);
+            message(sender, ChatColor.YELLOW + "Imported " + imported + " ban(s). " + summary);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Write every ban in {@code database} to {@code file} in the background.
+     *
+     * @param sender The sender to report progress to
+     * @param database The database to export
+     * @param file The file to write
+     * @param overwrite Whether an existing file may be replaced
+     * @throws CommandException if the file exists or a transfer is already running
+     */
+    public void exportFile(final CommandSender sender, BanDatabase database, final File file, boolean overwrite) throws CommandException {
+        if (file.exists() && !overwrite) {
+            throw new CommandException(file.getName() + " already exists. Use -f to replace it.");
+        }
+        begin();
+
+        // A database that is not thread safe is copied here, on the server thread, and written out later
+        final Iterable<Ban> source;
+        if (database.isThreadSafe()) {
+            source = database;
+        } else {
+            List<Ban> snapshot = new ArrayList<Ban>();
+            for (Ban ban : database) {
+                snapshot.add(ban);
+            }
+            source = snapshot;
+        }
+
+        sender.sendMessage(ChatColor.YELLOW + "Writing bans to " + file.getName() + "...");
+        CommandBook.server().getScheduler().runTaskAsynchronously(CommandBook.inst(), () -> {
+            int written = 0;
+            try {
+                if (!file.getParentFile().exists()) {
+                    file.getParentFile().mkdirs();
+                }
+                try (CSVWriter writer = new CSVWriter(new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(file), "utf-8")))) {
+                    for (Ban ban : source) {
+                        writer.writeNext(CSVBanDatabase.toRecord(ban));
+                        if (++written % PROGRESS_INTERVAL == 0) {
+                            message(sender, ChatColor.YELLOW + "Wrote " + written + " ban(s)...");
+                        }
+                    }
+                }
+                message(sender, ChatColor.YELLOW + "Exported " + written + " ban(s) to " + file.getName() + ".");
+            } catch (IOException e) {
+                logger().warning("Failed to write " + file.getAbsolutePath() + ": " + e.getMessage());
+                message(sender, ChatColor.RED + "Failed to write " + file.getName() + ": " + e.getMessage());
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private static void message(final CommandSender sender, final String message) {
+        CommandBook.server().getScheduler().runTask(CommandBook.inst(), () -> sender.sendMessage(message));
+    }
+
+    /**
+     * Parse a record in the format of bans.csv: an optional UUID, then the name, address,
+     * reason, start time and end time.
+     *
+     * @param line The fields of the record
+     * @return The ban
+     * @throws IllegalArgumentException describing why the record is invalid
+     */
+    static Ban parseRecord(String[] line) {
+        if (line.length < 5) {
+            throw new IllegalArgumentException("expected at least 5 fields but found " + line.length);
+        }
+        int i = 0;
+        UUID ID = null;
+        if (line.length > 5) {
+            String rawID = emptyToNull(line[i++]);
+            if (rawID != null) {
+                try {
+                    ID = UUID.fromString(rawID);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("invalid UUID '" + rawID + "'");
+                }
+            }
+        }
+        String name = emptyToNull(line[i++]);
+        String address = emptyToNull(line[i++]);
+        String reason = emptyToNull(line[i++]);
+        long start = parseTime("start", line[i++]);
+        long end = parseTime("end", line[i]);
+
+        if (address != null && AddressIndex.Prefix.tryParse(address) == null) {
+            throw new IllegalArgumentException("invalid address '" + address + "'");
+        }
+        if (ID == null && address == null) {
+            throw new IllegalArgumentException("a ban needs a UUID or an address");
+        }
+        return new Ban(ID, name == null ? null : name.toLowerCase(), address, reason, start, end);
+    }
+
+    private static String emptyToNull(String field) {
+        return field == null || field.isEmpty() || field.equals("null") ? null : field;
+    }
+
+    private static long parseTime(String what, String field) {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + what + " time '" + field + "'");
+        }
+    }
+}
@@ -22,6 +22,7 @@
 import com.sk89q.commandbook.component.info.InfoComponent;
 import com.sk89q.commandbook.util.ChatUtil;
 import com.sk89q.commandbook.util.InputUtil;
+import com.sk89q.commandbook.util.PaginatedResult;
 import com.sk89q.minecraft.util.commands.*;
 import com.zachsthings.libcomponents.ComponentInformation;
 import com.zachsthings.libcomponents.bukkit.BasePlugin;
@@ -34,14 +35,35 @@
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerLoginEvent;
 
+import java.io.File;
 import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.sk89q.commandbook.CommandBook.logger;
 
 @ComponentInformation(friendlyName = "Bans", desc = "A system for kicks and bans.")
 public class BansComponent extends BukkitComponent implements Listener {
+    /**
+     * How often, in ticks, tempbans that have run out are removed
+     */
+    public static final long EXPIRY_CHECK_FREQUENCY = 20;
+
+    private static final DateTimeFormatter HISTORY_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
     private BanDatabase bans;
+    private BanAuditLog auditLog;
+    private BanHistory history;
+    private BanTransfer transfer;
     private LocalConfiguration config;
 
     @Override
@@ -49,12 +71,81 @@ public void enable() {
         config = configure(new LocalConfiguration());
 
         // Setup the ban database
-        bans = new CSVBanDatabase(CommandBook.inst().getDataFolder());
-        bans.load();
+        auditLog = new BanAuditLog(CommandBook.inst().getDataFolder(), config.auditBufferSize,
+                config.auditMaxFileKilobytes * 1024L, TimeUnit.HOURS.toMillis(config.auditRotateHours),
+                config.auditKeepFiles);
+        history = new BanHistory(CommandBook.inst().getDataFolder());
+        history.load();
+        auditLog.setHistory(history);
+        bans = createBanDatabase();
+        if (bans.load() && bans instanceof SQLiteBanDatabase) {
+            migrateCSV((SQLiteBanDatabase) bans);
+        }
+        transfer = new BanTransfer(CommandBook.inst().getDataFolder());
+        Runnable expireBans = () -> getBanDatabase().expireBans();
+        if (bans.isThreadSafe()) {
+            // Expiring can mean a write, such as an SQL delete, which the server thread need not wait for
+            CommandBook.server().getScheduler().runTaskTimerAsynchronously(CommandBook.inst(),
+                    expireBans, EXPIRY_CHECK_FREQUENCY, EXPIRY_CHECK_FREQUENCY);
+        } else {
+            CommandBook.server().getScheduler().scheduleSyncRepeatingTask(CommandBook.inst(),
+                    expireBans, EXPIRY_CHECK_FREQUENCY, EXPIRY_CHECK_FREQUENCY);
+        }
         CommandBook.registerEvents(this);
         registerCommands(Commands.class);
     }
 
+    private BanDatabase createBanDatabase() {
+        File dataFolder = CommandBook.inst().getDataFolder();
+        if (config.backend.equalsIgnoreCase("sqlite")) {
+            if (SQLiteBanDatabase.isAvailable()) {
+                return new SQLiteBanDatabase(dataFolder, auditLog);
+            }
+            logger().warning("The SQLite driver is not available, falling back to CSV bans!");
+        } else if (!config.backend.equalsIgnoreCase("csv")) {
+            logger().warning("Unknown ban backend '" + config.backend + "', falling back to CSV bans!");
+        }
+        return new CSVBanDatabase(dataFolder, auditLog, config.journal,
+                config.journalCompactThreshold, config.saveWindowMillis);
+    }
+
+    /**
+     * Copy the CSV bans into a new, empty SQLite database, so that switching backends keeps existing bans.
+     * The CSV files are left in place.
+     */
+    private void migrateCSV(SQLiteBanDatabase database) {
+        File dataFolder = CommandBook.inst().getDataFolder();
+        // Bans may only be in the journal, if bans.csv was never compacted
+        boolean journaled = new File(dataFolder, "bans.journal").exists()
+                || new File(dataFolder, "bans.journal.compacting").exists();
+        if (!database.isEmpty() || !(journaled || new File(dataFolder, "bans.csv").exists())) {
+            return;
+        }
+        CSVBanDatabase csv = new CSVBanDatabase(dataFolder, auditLog, config.journal || journaled,
+                config.journalCompactThreshold, 0);
+        try {
+            if (!csv.load()) {
+                logger().warning("The CSV bans could not be read, so they were not migrated to SQLite!");
+                return;
+            }
+            int total = 0;
+            for (Ban ignored : csv) {
+                ++total;
+            }
+            int imported = database.importFrom(csv);
+            if (imported == total) {
+                logger().info("Migrated " + imported + " CSV ban(s) to the SQLite ban database.");
+            } else {
+                logger().warning("Only " + imported + " of " + total + " CSV ban(s) could be migrated to SQLite! "
+                        + "The CSV files were left in place.");
+            }
+            // Name bans still waiting for a UUID were imported by name, which is enforced until they resolve
+            database.convertNameBans();
+        } finally {
+            csv.unload();
+        }
+    }
+
     @Override
     public void reload() {
         super.reload();
@@ -65,12 +156,23 @@ public void reload() {
     @Override
     public void disable() {
         bans.unload();
+        auditLog.setHistory(null);
+        auditLog.close();
+        history.close();
     }
 
     private static class LocalConfiguration extends ConfigurationBase {
         @Setting("message") public String banMessage = "You have been banned";
         @Setting("broadcast-bans") public boolean broadcastBans;
         @Setting("broadcast-kicks") public boolean broadcastKicks;
+        @Setting("backend") public String backend = "csv";
+        @Setting("journal.enabled") public boolean journal;
+        @Setting("journal.compact-after") public int journalCompactThreshold = 1000;
+        @Setting("save-window-millis") public int saveWindowMillis = 500;
+        @Setting("audit.buffer-size") public int auditBufferSize = 8192;
+        @Setting("audit.max-file-size-kb") public int auditMaxFileKilobytes = 10240;
+        @Setting("audit.rotate-hours") public int auditRotateHours = 24;
+        @Setting("audit.keep-files") public int auditKeepFiles = 14;
     }
 
     /**
@@ -83,30 +185,83 @@ public BanDatabase getBanDatabase() {
     }
 
     /**
-     * Called on player login.
+     * Tell {@code sender} once a background save has finished, if it failed.
+     *
+     * @param sender The sender to notify
+     * @param result The pending result of the save
+     */
+    private void notifySaveFailure(final CommandSender sender, CompletableFuture<Boolean> result) {
+        result.thenAccept(saved -> {
+            if (!saved) {
+                CommandBook.server().getScheduler().runTask(CommandBook.inst(), () ->
+                        sender.sendMessage(ChatColor.RED + "Bans database failed to save. See console."));
+            }
+        });
+    }
+
+    /**
+     * Checks bans while the player is still connecting, off the server thread.
+     *
+     * @param event Relevant event details
+     */
+    @EventHandler(priority = EventPriority.NORMAL)
+    public void playerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (!getBanDatabase().isThreadSafe()
+                || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        Ban ban = findBan(event.getUniqueId(), event.getName(), event.getAddress());
+        if (ban != null) {
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, getBanMessage(ban));
+        }
+    }
+
+    /**
+     * Called on player login. Only checks bans for databases that cannot be used off the server thread.
      *
      * @param event Relevant event details
      */
     @EventHandler(priority = EventPriority.NORMAL)
     public void playerLogin(PlayerLoginEvent event) {
+        if (getBanDatabase().isThreadSafe()) {
+            return;
+        }
         Player player = event.getPlayer();
+        Ban ban = findBan(player.getUniqueId(), player.getName(), event.getAddress());
+        if (ban != null) {
+            event.disallow(PlayerLoginEvent.Result.KICK_BANNED, getBanMessage(ban));
+        }
+    }
 
-        Ban ban = null;
-
-        if (getBanDatabase().isBanned(player.getUniqueId())) {
-            ban = getBanDatabase().getBanned(player.getUniqueId());
-        } else if (getBanDatabase().isBanned(event.getAddress())) {
-            ban = getBanDatabase().getBanned(event.getAddress().getHostAddress());
+    private Ban findBan(UUID ID, String name, InetAddress address) {
+        BanDatabase bans = getBanDatabase();
+        long now = System.currentTimeMillis();
+        // One lookup each; checking isBanned first would look every address up twice
+        Ban ban = bans.getBanned(ID);
+        if (isActive(ban, now)) {
+            return ban;
+        }
+        ban = bans.getBanned(address);
+        if (isActive(ban, now)) {
+            return ban;
         }
+        ban = bans.getBannedByName(name);
+        return isActive(ban, now) ? ban : null;
+    }
 
-        if (ban != null) {
-            String reason = ban.getReason();
-            boolean hasReason = reason != null;
-            String how = "You are " + (ban.getAddress() != null ? "IP " : "") + "banned" + (hasReason ? " for:" : ".");
-            String end = "Expires: " + (ban.getEnd() == 0L ? ChatColor.DARK_RED + "Never" : ChatUtil.getFriendlyTime(ban.getEnd()));
+    /**
+     * Tempbans stay in the database until the next expiry run, so check the end time here.
+     */
+    private static boolean isActive(Ban ban, long now) {
+        return ban != null && (ban.getEnd() == 0L || ban.getEnd() > now);
+    }
 
-            event.disallow(PlayerLoginEvent.Result.KICK_BANNED, how + (hasReason ? "\n" + reason : "") + "\n" + end);
-        }
+    private static String getBanMessage(Ban ban) {
+        String reason = ban.getReason();
+        boolean hasReason = reason != null;
+        String how = "You are " + (ban.getAddress() != null ? "IP " : "") + "banned" + (hasReason ? " for:" : ".");
+        String end = "Expires: " + (ban.getEnd() == 0L ? ChatColor.DARK_RED + "Never" : ChatUtil.getFriendlyTime(ban.getEnd()));
+        return how + (hasReason ? "\n" + reason : "") + "\n" + end;
     }
 
     @EventHandler
@@ -222,13 +377,11 @@ public void ban(CommandContext args, CommandSender sender) throws CommandExcepti
 
             getBanDatabase().ban(banID, playerName, banAddress != null ? banAddress.getHostAddress() : null, sender, message, endDate);
 
-            if (!getBanDatabase().save()) {
-                sender.sendMessage(ChatColor.RED + "Bans database failed to save. See console.");
-            }
+            notifySaveFailure(sender, getBanDatabase().saveAsync());
         }
 
         @Command(aliases = {"banip", "ipban"},
-                usage = "<target> [reason...]", desc = "Ban an IP address", flags = "st:",
+                usage = "<address|range> [reason...]", desc = "Ban an IP address or CIDR range", flags = "st:",
                 min = 1, max = -1)
         @CommandPermissions({"commandbook.bans.ban.ip"})
         public void banIP(CommandContext args, CommandSender sender) throws CommandException {
@@ -243,9 +396,17 @@ public void banIP(CommandContext args, CommandSender sender) throws CommandExcep
                         .replace("\0", "")
                         .replace("\b", "");
 
+            AddressIndex.Prefix prefix;
+            try {
+                prefix = AddressIndex.Prefix.parse(addr);
+            } catch (IllegalArgumentException e) {
+                throw new CommandException(e.getMessage());
+            }
+            addr = prefix.toString();
+
             // Need to kick + log
             for (Player player : CommandBook.server().getOnlinePlayers()) {
-                if (player.getAddress().getAddress().getHostAddress().equals(addr)) {
+                if (prefix.contains(player.getAddress().getAddress())) {
                     player.kickPlayer(message == null ? "Banned!" : message);
                     getBanDatabase().logKick(player, sender, message);
                 }
@@ -255,9 +416,7 @@ public void banIP(CommandContext args, CommandSender sender) throws CommandExcep
 
             sender.sendMessage(ChatColor.YELLOW + addr + " banned.");
 
-            if (!getBanDatabase().save()) {
-                sender.sendMessage(ChatColor.RED + "Bans database failed to save. See console.");
-            }
+            notifySaveFailure(sender, getBanDatabase().saveAsync());
         }
 
         @Command(aliases = {"unban"}, usage = "<target>", desc = "Unban a user", min = 1, max = -1)
@@ -276,16 +435,14 @@ public void unban(CommandContext args, CommandSender sender) throws CommandExcep
             if (getBanDatabase().unban(ID, null, sender, message) || getBanDatabase().unbanName(banName, sender, message)) {
                 sender.sendMessage(ChatColor.YELLOW + banName + " unbanned.");
 
-                if (!getBanDatabase().save()) {
-                    sender.sendMessage(ChatColor.RED + "Bans database failed to save. See console.");
-                }
+                notifySaveFailure(sender, getBanDatabase().saveAsync());
             } else {
                 sender.sendMessage(ChatColor.RED + banName + " was not banned.");
             }
         }
 
         @Command(aliases = {"unbanip", "unipban"},
-                usage = "<target> [reason...]", desc = "Unban an IP address",
+                usage = "<address|range> [reason...]", desc = "Unban an IP address or CIDR range",
                 min = 1, max = -1)
         @CommandPermissions({"commandbook.bans.unban.ip"})
         public void unbanIP(CommandContext args,
@@ -302,9 +459,7 @@ public void unbanIP(CommandContext args,
             if (getBanDatabase().unban(null, addr, sender, message)) {
                 sender.sendMessage(ChatColor.YELLOW + addr + " unbanned.");
 
-                if (!getBanDatabase().save()) {
-                    sender.sendMessage(ChatColor.RED + "Bans database failed to save. See console.");
-                }
+                notifySaveFailure(sender, getBanDatabase().saveAsync());
             } else {
                 sender.sendMessage(ChatColor.RED + addr + " was not banned.");
             }
@@ -365,5 +520,68 @@ public void saveBans(CommandContext args, CommandSender sender) throws CommandEx
                 throw new CommandException("Bans database failed to save entirely. See server console.");
             }
         }
+
+        @Command(aliases = {"audit"}, usage = "", desc = "Show audit log statistics", min = 0, max = 0)
+        @CommandPermissions({"commandbook.bans.audit"})
+        public void auditStats(CommandContext args, CommandSender sender) throws CommandException {
+            sender.sendMessage(ChatColor.YELLOW + "Audit entries written: " + auditLog.getWritten()
+                    + ", queued: " + auditLog.getQueued() + ", dropped: " + auditLog.getDropped());
+        }
+
+        @Command(aliases = {"history"}, usage = "<target> [page]",
+                desc = "Show every ban and unban of a player or address", min = 1, max = 2)
+        @CommandPermissions({"commandbook.bans.history"})
+        public void showHistory(CommandContext args, final CommandSender sender) throws CommandException {
+            final String target = args.getString(0);
+            final int page = args.getInteger(1, 1);
+            CompletableFuture<List<BanHistory.Entry>> result;
+            if (AddressIndex.Prefix.tryParse(target) != null) {
+                result = history.getHistory(target);
+            } else {
+                result = history.getHistory(CommandBook.server().getOfflinePlayer(target).getUniqueId());
+            }
+            result.thenAccept(entries -> CommandBook.server().getScheduler().runTask(CommandBook.inst(), () -> {
+                try {
+                    new PaginatedResult<BanHistory.Entry>(ChatColor.GOLD + "Ban history of " + target) {
+                        @Override
+                        public String format(BanHistory.Entry entry) {
+                            StringBuilder builder = new StringBuilder();
+                            builder.append(HISTORY_DATE_FORMAT.format(Instant.ofEpochMilli(entry.getTime())));
+                            builder.append(' ').append(entry.getAction() == BanHistory.Action.BAN ? "Banned" : "Unbanned");
+                            if (entry.getName() != null) {
+                                builder.append(' ').append(entry.getName());
+                            }
+                            if (entry.getAddress() != null) {
+                                builder.append(" (").append(entry.getAddress()).append(')');
+                            }
+                            builder.append(" by ").append(entry.getSource());
+                            if (entry.getAction() == BanHistory.Action.BAN && entry.getEnd() != 0L) {
+                                builder.append(" until ").append(HISTORY_DATE_FORMAT.format(Instant.ofEpochMilli(entry.getEnd())));
+                            }
+                            if (entry.getReason() != null) {
+                                builder.append(": ").append(entry.getReason());
+                            }
+                            return builder.toString();
+                        }
+                    }.display(sender, entries, page);
+                } catch (CommandException e) {
+                    sender.sendMessage(ChatColor.RED + e.getMessage());
+                }
+            }));
+        }
+
+        @Command(aliases = {"import"}, usage = "<file>",
+                desc = "Import bans from a CSV file in the CommandBook folder", min = 1, max = 1)
+        @CommandPermissions({"commandbook.bans.import"})
+        public void importBans(CommandContext args, CommandSender sender) throws CommandException {
+            transfer.importFile(sender, getBanDatabase(), transfer.resolve(args.getString(0)));
+        }
+
+        @Command(aliases = {"export"}, usage = "[-f] <file>",
+                desc = "Export bans to a CSV file in the CommandBook folder", flags = "f", min = 1, max = 1)
+        @CommandPermissions({"commandbook.bans.export"})
+        public void exportBans(CommandContext args, CommandSender sender) throws CommandException {
+            transfer.exportFile(sender, getBanDatabase(), transfer.resolve(args.getString(0)), args.hasFlag('f'));
+        }
     }
 }
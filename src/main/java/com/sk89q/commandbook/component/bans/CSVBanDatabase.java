@@ -2,82 +2,127 @@
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
-import com.sk89q.commandbook.util.ChatUtil;
-import com.sk89q.commandbook.util.ServerUtil;
-import com.sk89q.commandbook.util.entity.player.UUIDUtil;
+import com.sk89q.commandbook.util.RecordJournal;
+import com.sk89q.commandbook.CommandBook;
+import com.sk89q.commandbook.util.entity.player.UUIDResolver;
 import org.apache.commons.lang3.Validate;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.text.SimpleDateFormat;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.logging.Formatter;
-import java.util.logging.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.sk89q.commandbook.CommandBook.logger;
 
 public class CSVBanDatabase implements BanDatabase {
 
-    protected final Logger auditLogger
-            = Logger.getLogger("Minecraft.CommandBook.Bans");
+    protected final BanAuditLog auditLog;
+    private final boolean ownsAuditLog;
 
     protected final File storageFile;
 
+    /**
+     * The write-ahead log of ban changes, or null when every save rewrites the whole file
+     */
+    private final RecordJournal journal;
+
+    /**
+     * Holds the journal records that are being folded into the snapshot by a compaction
+     */
+    private final File compactingFile;
+
+    /**
+     * The number of journal records after which the journal is folded into the snapshot
+     */
+    private final int compactThreshold;
+
+    /**
+     * Persists changes on a background thread
+     */
+    private final AsyncBanWriter writer;
+    private UUIDResolver resolver;
+    private Future<?> compaction;
+    private volatile boolean journalFailed;
+    private volatile boolean unloaded;
+
     /**
      * Used to lookup bans by UUID
      */
-    protected Map<UUID, Ban> UUIDBan = new HashMap<UUID, Ban>();
+    protected Map<UUID, Ban> UUIDBan = new ConcurrentHashMap<UUID, Ban>();
 
     /**
      * Used to lookup bans by name
      */
     @Deprecated
-    protected Map<String, Ban> nameBan = null;
+    protected volatile Map<String, Ban> nameBan = null;
 
     /**
      * Used to lookup bans by ip address
      */
-    protected Map<String, Ban> ipBan = new HashMap<String, Ban>();
+    protected volatile Map<String, Ban> ipBan = new ConcurrentHashMap<String, Ban>();
+
+    /**
+     * Used to match connecting addresses against banned addresses and CIDR ranges
+     */
+    private final AddressIndex<Ban> addressIndex = new AddressIndex<Ban>();
 
     /**
      * A set of all bans. No ban in the lookup maps is not in here.
      */
     protected final Set<Ban> bans = new HashSet<Ban>();
 
-    private static final SimpleDateFormat dateFormat =
-            new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-
-    public CSVBanDatabase(File banStorageDir) {
-        storageFile = new File(banStorageDir, "bans.csv");
-
-         // Set up an audit trail
-        try {
-            FileHandler handler = new FileHandler(
-                    (new File(banStorageDir, "bans.%g.%u.log")).getAbsolutePath()
-                    .replace("\\", "/"), true);
+    /**
+     * Temporary bans ordered by end time. Entries are not removed when a ban is lifted early;
+     * {@link #expireBans()} skips any entry that is no longer the active ban for its UUID or address.
+     */
+    private final PriorityQueue<Ban> expiries = new PriorityQueue<Ban>(Comparator.comparingLong(Ban::getEnd));
 
-            handler.setFormatter(new Formatter() {
+    /**
+     * The largest number of bans expired by a single {@link #expireBans()} call
+     */
+    private static final int EXPIRY_BATCH_SIZE = 500;
 
-                @Override
-                public String format(LogRecord record) {
-                    return "[" + dateFormat.format(new Date())
-                            + "] " + record.getMessage() + "\r\n";
-                }
-            });
+    public CSVBanDatabase(File banStorageDir) {
+        this(banStorageDir, null, false, 0, 0);
+    }
 
-            auditLogger.addHandler(handler);
-        } catch (SecurityException e) {
-            logger().warning("Failed to setup audit log for the "
-                    + "CSV ban database: " + e.getMessage());
-        } catch (IOException e) {
-            logger().warning("Failed to setup audit log for the "
-                    + "CSV ban database: " + e.getMessage());
+    /**
+     * Create a ban database stored in {@code banStorageDir}.
+     *
+     * @param banStorageDir The directory the bans are stored in
+     * @param auditLog The audit log to record changes in, or null to open one in
+     *                 {@code banStorageDir} that is closed with this database
+     * @param journaled Whether changes are appended to a journal instead of rewriting the whole file
+     * @param compactThreshold The number of journal records after which the journal is
+     *                         folded into bans.csv in the background
+     * @param saveWindowMillis How long to collect further changes before writing them
+     */
+    public CSVBanDatabase(File banStorageDir, BanAuditLog auditLog, boolean journaled, int compactThreshold, long saveWindowMillis) {
+        storageFile = new File(banStorageDir, "bans.csv");
+        this.compactThreshold = Math.max(1, compactThreshold);
+        if (journaled) {
+            journal = new RecordJournal(new File(banStorageDir, "bans.journal"));
+            compactingFile = new File(banStorageDir, "bans.journal.compacting");
+        } else {
+            journal = null;
+            compactingFile = null;
         }
+        writer = new AsyncBanWriter("CommandBook Ban Writer", this::writeChanges, saveWindowMillis);
+
+        this.ownsAuditLog = auditLog == null;
+        this.auditLog = auditLog != null ? auditLog : new BanAuditLog(banStorageDir);
     }
 
     public synchronized boolean load() {
+        unloaded = false;
         FileInputStream input = null;
         boolean successful = true;
         boolean needsSaved = false;
@@ -115,26 +160,23 @@ public synchronized boolean load() {
                     if (ID != null) {
                         UUIDBan.put(ID, ban);
                     } else if (name != null) {
-                        logger().finest("Converting " + name + "'s ban record to UUID...");
-                        ID = UUIDUtil.convert(name);
+                        ID = resolver().getCached(name);
                         if (ID != null) {
                             // Update the record
                             ban = new Ban(ID, name, address, reason, startDate, endDate);
                             UUIDBan.put(ID, ban);
-
-                            // Log & request save
                             needsSaved = true;
-                            logger().finest("Success!");
                         } else {
+                            // Enforced by name until the background conversion finishes
                             if (nameBan == null) {
-                                nameBan = new HashMap<String, Ban>();
+                                nameBan = new ConcurrentHashMap<String, Ban>();
                             }
                             nameBan.put(name, ban);
-                            logger().warning(ban.toString() + " could not be converted!");
                         }
                     }
-                    if (address != null) ipBan.put(address, ban);
+                    if (address != null) putAddress(address, ban);
                     bans.add(ban);
+                    trackExpiry(ban);
                 } catch (IllegalArgumentException i) {
                     if (i instanceof NumberFormatException) {
                         logger().warning("Non-long long field found in ban!");
@@ -143,11 +185,11 @@ public synchronized boolean load() {
                     }
                 }
             }
-            logger().info(bans.size() + " banned name(s) loaded.");
         } catch (FileNotFoundException ignored) {
         } catch (IOException e) {
-            nameBan = new HashMap<String, Ban>();
-            ipBan = new HashMap<String, Ban>();
+            nameBan = new ConcurrentHashMap<String, Ban>();
+            ipBan = new ConcurrentHashMap<String, Ban>();
+            addressIndex.clear();
             logger().warning("Failed to load " + storageFile.getAbsolutePath()
                     + ": " + e.getMessage());
             successful = false;
@@ -159,32 +201,268 @@ public synchronized boolean load() {
                 }
             }
         }
-        if (needsSaved) save();
+
+        if (journal != null && successful) {
+            successful = replayJournal();
+        }
+        logger().info(bans.size() + " banned name(s) loaded.");
+
+        if (needsSaved) {
+            requestFullSave();
+        }
+        if (nameBan != null && !nameBan.isEmpty()) {
+            convertNameBans(new ArrayList<String>(nameBan.keySet()));
+        }
         return successful;
     }
 
-    public synchronized boolean save() {
+    /**
+     * Write out every ban, for changes that are not recorded in the journal.
+     */
+    private void requestFullSave() {
+        if (journal != null) {
+            scheduleCompaction();
+        } else {
+            writer.markDirty();
+        }
+    }
+
+    private UUIDResolver resolver() {
+        if (resolver == null) {
+            resolver = UUIDResolver.getInstance();
+        }
+        return resolver;
+    }
+
+    /**
+     * Look up the UUIDs of name bans in the background. The bans are converted on the
+     * server thread once every lookup has finished.
+     *
+     * @param names The names to convert
+     */
+    private void convertNameBans(Collection<String> names) {
+        logger().info("Converting " + names.size() + " ban(s) without a UUID in the background...");
+        resolver().resolveAll(names).thenAccept(resolved ->
+                CommandBook.server().getScheduler().runTask(CommandBook.inst(), () -> applyConversions(resolved)));
+    }
+
+    private synchronized void applyConversions(Map<String, UUID> resolved) {
+        if (unloaded) {
+            // The lookups outlived this database, such as the one a migration reads from
+            return;
+        }
+        int converted = 0;
+        for (Map.Entry<String, UUID> entry : resolved.entrySet()) {
+            // The ban may have been lifted while its name was looked up
+            Ban ban = nameBan == null ? null : nameBan.remove(entry.getKey());
+            if (ban == null) {
+                continue;
+            }
+            bans.remove(ban);
+            if (ban.getAddress() != null && getAddress(ban.getAddress()) == ban) {
+                removeAddress(ban.getAddress());
+            }
+            // A ban placed on the UUID since is newer, so it wins
+            if (!UUIDBan.containsKey(entry.getValue())) {
+                applyBan(new Ban(entry.getValue(), ban.getLastKnownAlias(), ban.getAddress(),
+                        ban.getReason(), ban.getStart(), ban.getEnd()));
+            } else if (ban.getAddress() != null && getAddress(ban.getAddress()) == null) {
+                // but the address stays banned on its own terms; without a name, so it is
+                // not read back as a name ban
+                applyBan(new Ban(null, null, ban.getAddress(),
+                        ban.getReason(), ban.getStart(), ban.getEnd()));
+            }
+            ++converted;
+        }
+        if (nameBan != null) {
+            for (Ban ban : nameBan.values()) {
+                logger().warning(ban.toString() + " could not be converted!");
+            }
+        }
+        if (converted > 0) {
+            logger().info(converted + " ban(s) converted to UUIDs.");
+            requestFullSave();
+        }
+    }
+
+    /**
+     * Apply the records of an interrupted compaction and of the live journal on top of
+     * the snapshot that was just loaded, then reopen the journal for appending.
+     *
+     * @return whether every journal could be read
+     */
+    private boolean replayJournal() {
+        awaitCompaction();
+        try {
+            journal.close();
+            RecordJournal.RecordHandler handler = this::replayRecord;
+            int replayed = RecordJournal.replay(compactingFile, handler);
+            replayed += RecordJournal.replay(journal.getFile(), handler);
+            journal.open();
+            if (replayed > 0) {
+                logger().info(replayed + " ban change(s) replayed from the journal.");
+            }
+            if (compactingFile.exists() || replayed >= compactThreshold) {
+                scheduleCompaction();
+            }
+            return true;
+        } catch (IOException e) {
+            logger().warning("Failed to replay " + journal.getFile().getAbsolutePath()
+                    + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void replayRecord(String[] fields) {
+        try {
+            if (fields.length == 7 && "BAN".equals(fields[0])) {
+                applyBan(new Ban(parseID(fields[1]), fields[2], fields[3], fields[4],
+                        Long.parseLong(fields[5]), Long.parseLong(fields[6])));
+            } else if (fields.length == 3 && "UNBAN".equals(fields[0])) {
+                applyUnban(parseID(fields[1]), fields[2]);
+            } else if (fields.length == 2 && "UNBAN_NAME".equals(fields[0])) {
+                applyUnbanName(fields[1]);
+            } else if (fields.length == 4 && "EXPIRE".equals(fields[0])) {
+                UUID ID = parseID(fields[1]);
+                Ban ban = ID != null ? UUIDBan.get(ID) : fields[2] != null ? getAddress(fields[2]) : null;
+                if (ban != null && ban.getEnd() == Long.parseLong(fields[3])) {
+                    applyExpire(ban);
+                }
+            } else {
+                logger().warning("Unknown ban journal record found!");
+            }
+        } catch (IllegalArgumentException e) {
+            logger().warning("Invalid ban journal record found: " + e.getMessage());
+        }
+    }
+
+    private static UUID parseID(String ID) {
+        return ID == null ? null : UUID.fromString(ID);
+    }
+
+    private void journal(String... fields) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(fields);
+        } catch (IOException e) {
+            journalFailed = true;
+            logger().warning("Failed to write to " + journal.getFile().getAbsolutePath()
+                    + ": " + e.getMessage());
+        }
+        if (journal.getRecordCount() >= compactThreshold) {
+            scheduleCompaction();
+        }
+    }
+
+    private void journalBan(Ban ban) {
+        journal("BAN", ban.getID() == null ? null : ban.getID().toString(), ban.getLastKnownAlias(),
+                ban.getAddress(), ban.getReason(), String.valueOf(ban.getStart()), String.valueOf(ban.getEnd()));
+    }
+
+    /**
+     * Fold the journal into bans.csv. The current bans are copied and the journal is rotated
+     * while holding the lock; the snapshot itself is written on the writer thread.
+     */
+    private synchronized void scheduleCompaction() {
+        if (compaction != null && !compaction.isDone()) {
+            return;
+        }
+
+        final List<Ban> snapshot = snapshot();
+        try {
+            // If an earlier compaction failed its records are still waiting in compactingFile.
+            // The snapshot covers them as well as the live journal, so only rotate when it is free.
+            if (!compactingFile.exists()) {
+                journal.rotate(compactingFile);
+            }
+        } catch (IOException e) {
+            logger().warning("Failed to rotate " + journal.getFile().getAbsolutePath()
+                    + ": " + e.getMessage());
+            return;
+        }
+
+        compaction = writer.submit(() -> {
+            if (writeSnapshot(snapshot) && !compactingFile.delete() && compactingFile.exists()) {
+                logger().warning("Failed to remove " + compactingFile.getAbsolutePath());
+            }
+        });
+    }
+
+    private void awaitCompaction() {
+        Future<?> pending;
+        synchronized (this) {
+            pending = compaction;
+        }
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (java.util.concurrent.ExecutionException e) {
+            logger().warning("Ban compaction failed: " + e.getCause());
+        }
+    }
+
+    public boolean save() {
+        return writer.flush().join();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveAsync() {
+        return writer.markDirty();
+    }
+
+    /**
+     * Persist the current state. Runs on the writer thread.
+     *
+     * @return whether the operation was fully successful
+     */
+    private boolean writeChanges() {
+        if (journal != null) {
+            // Appends are already in the journal's buffer, so only make them durable.
+            // This must not take the database lock, as load() waits for compactions while holding it.
+            try {
+                journal.flush();
+            } catch (IOException e) {
+                logger().warning("Failed to save " + journal.getFile().getAbsolutePath()
+                        + ": " + e.getMessage());
+                journalFailed = true;
+            }
+            boolean successful = !journalFailed;
+            journalFailed = false;
+            return successful;
+        }
+
+        return writeSnapshot(snapshot());
+    }
+
+    /**
+     * Write the given bans to bans.csv. The bans are written to a temporary file first, which then
+     * replaces bans.csv, so an interrupted write never leaves a partial file behind.
+     *
+     * @param toWrite The bans to write
+     * @return whether the operation was fully successful
+     */
+    private boolean writeSnapshot(Collection<Ban> toWrite) {
+        File tempFile = new File(storageFile.getParentFile(), storageFile.getName() + ".tmp");
         FileOutputStream output = null;
         boolean successful = true;
 
         try {
-            output = new FileOutputStream(storageFile);
+            output = new FileOutputStream(tempFile);
             CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(output, "utf-8")));
-            String[] line;
 
-            for (Ban ban : bans) {
-                line = new String[] {
-                        String.valueOf(ban.getID()),
-                        ban.getLastKnownAlias(),
-                        ban.getAddress(),
-                        ban.getReason(),
-                        String.valueOf(ban.getStart()),
-                        String.valueOf(ban.getEnd())
-                };
-                writer.writeNext(line);
+            for (Ban ban : toWrite) {
+                writer.writeNext(toRecord(ban));
             }
             writer.flush();
+            output.getFD().sync();
             writer.close();
+            moveReplacing(tempFile, storageFile);
         } catch (IOException e) {
             logger().warning("Failed to save " + storageFile.getAbsolutePath()
                     + ": " + e.getMessage());
@@ -200,44 +478,113 @@ public synchronized boolean save() {
         return successful;
     }
 
+    /**
+     * Get the fields bans.csv stores for {@code ban}.
+     *
+     * @param ban The ban
+     * @return The CSV fields
+     */
+    static String[] toRecord(Ban ban) {
+        return new String[] {
+                String.valueOf(ban.getID()),
+                ban.getLastKnownAlias(),
+                ban.getAddress(),
+                ban.getReason(),
+                String.valueOf(ban.getStart()),
+                String.valueOf(ban.getEnd())
+        };
+    }
+
+    private static void moveReplacing(File source, File dest) throws IOException {
+        try {
+            Files.move(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     public boolean unload() {
-        for (Handler handler : auditLogger.getHandlers()) {
-            if (handler instanceof FileHandler) {
-                handler.flush();
-                handler.close();
-                auditLogger.removeHandler(handler);
-                return true;
+        unloaded = true;
+        writer.shutdown(30, TimeUnit.SECONDS);
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger().warning("Failed to close " + journal.getFile().getAbsolutePath()
+                        + ": " + e.getMessage());
             }
         }
-        return false;
+        return !ownsAuditLog || auditLog.close();
     }
 
     @Override
     public boolean isBanned(UUID ID) {
-        Ban ban = UUIDBan.get(ID);
-        if (ban != null) {
-            if (ban.getEnd() != 0L && ban.getEnd() - System.currentTimeMillis() <= 0) {
-                unban(ID, null, null, "Tempban expired");
-                save();
-                return false;
-            }
-            return true;
-        }
-        return false;
+        return isActive(UUIDBan.get(ID));
     }
 
     @Override
     public boolean isBanned(InetAddress address) {
-        Ban ban = ipBan.get(address.getHostAddress());
-        if (ban != null) {
-            if (ban.getEnd() != 0L && ban.getEnd() - System.currentTimeMillis() <= 0) {
-                unban(null, address.getHostAddress(), null, "Tempban expired");
-                save();
-                return false;
+        return isActive(addressIndex.get(address));
+    }
+
+    /**
+     * A tempban stays in the lookup maps until the next {@link #expireBans()} run,
+     * so lookups compare the end time themselves instead of removing anything.
+     */
+    private static boolean isActive(Ban ban) {
+        return ban != null && (ban.getEnd() == 0L || ban.getEnd() > System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized int expireBans() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        while (expired < EXPIRY_BATCH_SIZE && !expiries.isEmpty() && expiries.peek().getEnd() <= now) {
+            Ban ban = expiries.poll();
+            if (!applyExpire(ban)) {
+                continue;
             }
-            return true;
+            ++expired;
+            journal("EXPIRE", ban.getID() == null ? null : ban.getID().toString(), ban.getAddress(),
+                    String.valueOf(ban.getEnd()));
+            auditLog.logUnban(null, ban, "Tempban expired");
         }
-        return false;
+        if (expired > 0) {
+            writer.markDirty();
+        }
+        return expired;
+    }
+
+    private void trackExpiry(Ban ban) {
+        if (ban.getEnd() != 0L) {
+            expiries.add(ban);
+        }
+    }
+
+    /**
+     * Remove {@code ban} from every lookup it is still the active ban for.
+     *
+     * @return whether the ban was still active
+     */
+    private boolean applyExpire(Ban ban) {
+        boolean active = false;
+        if (ban.getID() != null && UUIDBan.get(ban.getID()) == ban) {
+            UUIDBan.remove(ban.getID());
+            active = true;
+        }
+        if (ban.getAddress() != null && getAddress(ban.getAddress()) == ban) {
+            removeAddress(ban.getAddress());
+            active = true;
+        }
+        if (ban.getID() == null && ban.getLastKnownAlias() != null && nameBan != null
+                && nameBan.get(ban.getLastKnownAlias()) == ban) {
+            nameBan.remove(ban.getLastKnownAlias());
+            active = true;
+        }
+        if (active) {
+            bans.remove(ban);
+        }
+        return active;
     }
 
     @Override
@@ -249,7 +596,7 @@ public String getBannedMessage(UUID ID) {
 
     @Override
     public String getBannedMessage(String address) {
-        Ban ban = ipBan.get(address);
+        Ban ban = getAddress(address);
         if (ban == null || ban.getReason() == null) return "You are banned by IP.";
         return ban.getReason();
     }
@@ -259,98 +606,127 @@ public void ban(Player player, CommandSender source, String reason, long end) {
     }
 
     @Override
-    public void ban(UUID ID, String name, String address, CommandSender source, String reason, long end) {
+    public synchronized void ban(UUID ID, String name, String address, CommandSender source, String reason, long end) {
         Validate.isTrue(ID != null || address != null, "You must specify either an ID, or address");
-        Ban ban = new Ban(ID, name, address, reason, System.currentTimeMillis(), end);
-        if (ID != null) {
-            Ban oldBan = UUIDBan.remove(ID);
+        Ban ban = new Ban(ID, name, address == null ? null : AddressIndex.Prefix.canonicalize(address), reason, System.currentTimeMillis(), end);
+        applyBan(ban);
+        journalBan(ban);
+        writer.markDirty();
+        auditLog.logBan(source, ban, reason);
+    }
+
+    private void applyBan(Ban ban) {
+        if (ban.getID() != null) {
+            Ban oldBan = UUIDBan.remove(ban.getID());
             if (oldBan != null) {
                 bans.remove(oldBan);
             }
-            UUIDBan.put(ID, ban);
+            UUIDBan.put(ban.getID(), ban);
         }
-        if (address != null) {
-            Ban oldBan = ipBan.remove(address);
+        if (ban.getAddress() != null) {
+            Ban oldBan = putAddress(ban.getAddress(), ban);
             if (oldBan != null) {
                 bans.remove(oldBan);
             }
-            ipBan.put(address, ban);
         }
         bans.add(ban);
-        auditLogger.info(String.format("BAN: %s (%s) added %s: %s",
-            source == null ? "Plugin" : ChatUtil.toUniqueName(source),
-            source == null ? "local" : ServerUtil.toInetAddressString(source),
-            ban.toString(),
-            reason));
+        trackExpiry(ban);
     }
 
     @Override
-    public boolean unbanName(String name, CommandSender source, String reason) {
+    public synchronized boolean unbanName(String name, CommandSender source, String reason) {
         if (nameBan == null || name == null || name.isEmpty()) return false;
-        Ban ban = nameBan.remove(name.toLowerCase());
+        Ban ban = applyUnbanName(name);
         if (ban != null) {
-            bans.remove(ban);
-            auditLogger.info(String.format("UNBAN: %s (%s) removed %s: %s",
-                    source == null ? "Plugin" : ChatUtil.toUniqueName(source),
-                    source == null ? "local" : ServerUtil.toInetAddressString(source),
-                    ban.toString(),
-                    reason));
+            journal("UNBAN_NAME", name);
+            writer.markDirty();
+            auditLog.logUnban(source, ban, reason);
             return true;
         }
         return false;
     }
 
+    private Ban applyUnbanName(String name) {
+        if (nameBan == null) return null;
+        Ban ban = nameBan.remove(name.toLowerCase());
+        if (ban != null) {
+            bans.remove(ban);
+        }
+        return ban;
+    }
+
     @Override
     public boolean unban(Player player, CommandSender source, String reason) {
         return unban(player.getUniqueId(), null, source, reason);
     }
 
     @Override
-    public boolean unban(UUID ID, String address, CommandSender source, String reason) {
+    public synchronized boolean unban(UUID ID, String address, CommandSender source, String reason) {
+        Ban ban = applyUnban(ID, address);
+        if (ban != null) {
+            journal("UNBAN", ID == null ? null : ID.toString(), address);
+            writer.markDirty();
+            auditLog.logUnban(source, ban, reason);
+            return true;
+        }
+        return false;
+    }
+
+    private Ban applyUnban(UUID ID, String address) {
         Ban ban = null;
         if (ID != null) {
             ban = UUIDBan.remove(ID);
         }
         if (ban == null && address != null) {
-            ban = ipBan.remove(address);
+            ban = removeAddress(address);
         }
         if (ban != null) {
             bans.remove(ban);
-            auditLogger.info(String.format("UNBAN: %s (%s) removed %s: %s",
-                    source == null ? "Plugin" : ChatUtil.toUniqueName(source),
-                    source == null ? "local" : ServerUtil.toInetAddressString(source),
-                    ban.toString(),
-                    reason));
-            return true;
         }
-        return false;
+        return ban;
     }
 
     public void logKick(Player player, CommandSender source, String reason) {
-        auditLogger.info(String.format("KICKED: %s (%s) kicked player '%s': %s",
-                ChatUtil.toUniqueName(source),
-                ServerUtil.toInetAddressString(source),
-                player.getName(),
-                reason));
+        auditLog.logKick(player, source, reason);
     }
 
-    public void importFrom(BanDatabase bans) {
+    /**
+     * Adds every ban in {@code bans} while holding the lock, so lookups see either none or all of them.
+     * A journaled database writes the import straight into bans.csv with a compaction,
+     * rather than journaling every ban.
+     *
+     * @param bans The bans to import
+     */
+    public synchronized int importFrom(Iterable<Ban> bans) {
+        int imported = 0;
         for (Ban ban : bans) {
-            boolean set = false;
-            if (ban.getID() != null) {
-                set = true;
-                UUIDBan.put(ban.getID(), ban);
-            }
-            if (ban.getAddress() != null && !ban.getAddress().isEmpty()) {
-                set = true;
-                ipBan.put(ban.getAddress(), ban);
+            if (ban.getAddress() != null && ban.getAddress().isEmpty()) {
+                ban = new Ban(ban.getID(), ban.getLastKnownAlias(), null, ban.getReason(), ban.getStart(), ban.getEnd());
             }
-            if (set) {
-                this.bans.add(ban);
+            if (ban.getID() != null || ban.getAddress() != null) {
+                applyBan(ban);
+                ++imported;
             } else {
                 logger().warning(ban.toString() + " could not be imported!");
             }
         }
+        if (journal != null) {
+            // A compaction that is already running took its snapshot before this import
+            awaitCompaction();
+            scheduleCompaction();
+        } else {
+            writer.markDirty();
+        }
+        return imported;
+    }
+
+    /**
+     * Changes are made while holding the database lock. Lookups take no lock: the maps are concurrent,
+     * the address index allows concurrent readers, and iteration goes over a copy.
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return true;
     }
 
     @Override
@@ -358,14 +734,54 @@ public Ban getBanned(UUID ID) {
         return UUIDBan.get(ID);
     }
 
+    @Override
+    public Ban getBannedByName(String name) {
+        Map<String, Ban> nameBan = this.nameBan;
+        return nameBan == null || name == null ? null : nameBan.get(name.toLowerCase());
+    }
+
     @Override
     public Ban getBanned(String address) {
-        return ipBan.get(address);
+        return getAddress(address);
+    }
+
+    @Override
+    public Ban getBanned(InetAddress address) {
+        return addressIndex.get(address);
+    }
+
+    private Ban getAddress(String address) {
+        return ipBan.get(AddressIndex.Prefix.canonicalize(address));
+    }
+
+    /**
+     * @return The ban previously stored for the address, if any
+     */
+    private Ban putAddress(String address, Ban ban) {
+        AddressIndex.Prefix prefix = AddressIndex.Prefix.tryParse(address);
+        if (prefix != null) {
+            addressIndex.put(prefix, ban);
+            return ipBan.put(prefix.toString(), ban);
+        }
+        return ipBan.put(address, ban);
+    }
+
+    private Ban removeAddress(String address) {
+        AddressIndex.Prefix prefix = AddressIndex.Prefix.tryParse(address);
+        if (prefix != null) {
+            addressIndex.remove(prefix);
+            return ipBan.remove(prefix.toString());
+        }
+        return ipBan.remove(address);
+    }
+
+    private synchronized List<Ban> snapshot() {
+        return new ArrayList<Ban>(bans);
     }
 
     public Iterator<Ban> iterator() {
         return new Iterator<Ban>() {
-            private final Iterator<Ban> setIter = bans.iterator();
+            private final Iterator<Ban> setIter = snapshot().iterator();
             private Ban next;
             public boolean hasNext() {
                 return setIter.hasNext();
@@ -0,0 +1,673 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import com.google.common.net.InetAddresses;
+import com.sk89q.commandbook.util.entity.player.UUIDResolver;
+import org.apache.commons.lang3.Validate;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * A ban database kept in an SQLite file, using the driver bundled with the server.
+ *
+ * Bans are not held in memory. Logins are checked with indexed lookups, and every change
+ * is a single-row insert or delete committed as it is made. Banned ranges are the one exception:
+ * they are also kept in an {@link AddressIndex}, since SQL cannot do a longest-prefix match.
+ */
+public class SQLiteBanDatabase implements BanDatabase {
+    /**
+     * The largest number of bans expired by a single {@link #expireBans()} call
+     */
+    private static final int EXPIRY_BATCH_SIZE = 500;
+
+    /**
+     * The number of rows fetched at a time by {@link #iterator()}
+     */
+    private static final int ITERATOR_PAGE_SIZE = 1000;
+
+    private static final String COLUMNS = "id, uuid, name, address, reason, start_time, end_time";
+
+    protected final File storageFile;
+    protected final BanAuditLog auditLog;
+    private final boolean ownsAuditLog;
+
+    private Connection connection;
+    private PreparedStatement selectByUUID;
+    private PreparedStatement selectByAddress;
+    private PreparedStatement selectByName;
+    private PreparedStatement selectNames;
+    private PreparedStatement selectExpired;
+    private PreparedStatement insert;
+    private PreparedStatement deleteByUUID;
+    private PreparedStatement deleteByAddress;
+    private PreparedStatement deleteByName;
+    private PreparedStatement deleteNameOnly;
+    private PreparedStatement deleteById;
+
+    /**
+     * Banned ranges, which cannot be matched with an index lookup
+     */
+    private final AddressIndex<Ban> ranges = new AddressIndex<Ban>();
+
+    public SQLiteBanDatabase(File banStorageDir) {
+        this(banStorageDir, null);
+    }
+
+    /**
+     * @param banStorageDir The directory the database is stored in
+     * @param auditLog The audit log to record changes in, or null to open one in
+     *                 {@code banStorageDir} that is closed with this database
+     */
+    public SQLiteBanDatabase(File banStorageDir, BanAuditLog auditLog) {
+        storageFile = new File(banStorageDir, "bans.db");
+        this.ownsAuditLog = auditLog == null;
+        this.auditLog = auditLog != null ? auditLog : new BanAuditLog(banStorageDir);
+    }
+
+    /**
+     * @return whether the server provides an SQLite driver
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName("org.sqlite.JDBC");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean load() {
+        close();
+        try {
+            if (!storageFile.getParentFile().exists()) {
+                storageFile.getParentFile().mkdirs();
+            }
+            connection = DriverManager.getConnection("jdbc:sqlite:" + storageFile.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                // Each change commits on its own, so avoid a full sync per ban. WAL keeps
+                // committed changes safe across a crash; only a power loss can drop the last few.
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS bans ("
+                        + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "uuid TEXT, name TEXT, address TEXT, reason TEXT, "
+                        + "start_time INTEGER NOT NULL, end_time INTEGER NOT NULL)");
+                statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS bans_uuid ON bans (uuid)");
+                statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS bans_address ON bans (address)");
+                statement.execute("CREATE INDEX IF NOT EXISTS bans_name ON bans (name)");
+                statement.execute("CREATE INDEX IF NOT EXISTS bans_end ON bans (end_time) WHERE end_time <> 0");
+            }
+
+            selectByUUID = connection.prepareStatement("SELECT " + COLUMNS + " FROM bans WHERE uuid = ?");
+            selectByAddress = connection.prepareStatement("SELECT " + COLUMNS + " FROM bans WHERE address = ?");
+            selectByName = connection.prepareStatement("SELECT " + COLUMNS + " FROM bans WHERE uuid IS NULL AND name = ?");
+            selectNames = connection.prepareStatement("SELECT DISTINCT name FROM bans WHERE uuid IS NULL AND name IS NOT NULL");
+            selectExpired = connection.prepareStatement("SELECT " + COLUMNS + " FROM bans "
+                    + "WHERE end_time <> 0 AND end_time <= ? ORDER BY end_time LIMIT " + EXPIRY_BATCH_SIZE);
+            insert = connection.prepareStatement("INSERT INTO bans "
+                    + "(uuid, name, address, reason, start_time, end_time) VALUES (?, ?, ?, ?, ?, ?)");
+            deleteByUUID = connection.prepareStatement("DELETE FROM bans WHERE uuid = ?");
+            deleteByAddress = connection.prepareStatement("DELETE FROM bans WHERE address = ?");
+            deleteByName = connection.prepareStatement("DELETE FROM bans WHERE uuid IS NULL AND name = ?");
+            deleteNameOnly = connection.prepareStatement("DELETE FROM bans WHERE uuid IS NULL AND address IS NULL AND name = ?");
+            deleteById = connection.prepareStatement("DELETE FROM bans WHERE id = ?");
+
+            loadRanges();
+            int count = 0;
+            try (Statement statement = connection.createStatement()) {
+                try (ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM bans")) {
+                    if (result.next()) {
+                        count = result.getInt(1);
+                    }
+                }
+            }
+            logger().info(count + " banned name(s) loaded.");
+            return true;
+        } catch (SQLException e) {
+            logger().warning("Failed to load " + storageFile.getAbsolutePath()
+                    + ": " + e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    private void loadRanges() throws SQLException {
+        ranges.clear();
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT " + COLUMNS + " FROM bans WHERE address LIKE '%/%'")) {
+            while (result.next()) {
+                Ban ban = readBan(result);
+                AddressIndex.Prefix prefix = AddressIndex.Prefix.tryParse(ban.getAddress());
+                if (prefix != null) {
+                    ranges.put(prefix, ban);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the database contains no bans at all
+     */
+    public synchronized boolean isEmpty() {
+        if (connection == null) {
+            return false;
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT 1 FROM bans LIMIT 1")) {
+            return !result.next();
+        } catch (SQLException e) {
+            warn(e);
+            return false;
+        }
+    }
+
+    /**
+     * Every change is committed as it is made, so there is never anything left to save.
+     */
+    @Override
+    public boolean save() {
+        return connection != null;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveAsync() {
+        return CompletableFuture.completedFuture(save());
+    }
+
+    @Override
+    public synchronized boolean unload() {
+        close();
+        return !ownsAuditLog || auditLog.close();
+    }
+
+    private void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                warn(e);
+            }
+            connection = null;
+        }
+    }
+
+    private void warn(SQLException e) {
+        logger().warning("Error accessing " + storageFile.getAbsolutePath() + ": " + e.getMessage());
+    }
+
+    private static Ban readBan(ResultSet result) throws SQLException {
+        String ID = result.getString(2);
+        return new Ban(ID == null ? null : UUID.fromString(ID), result.getString(3), result.getString(4),
+                result.getString(5), result.getLong(6), result.getLong(7));
+    }
+
+    private static Ban selectOne(PreparedStatement statement, String key) throws SQLException {
+        statement.setString(1, key);
+        try (ResultSet result = statement.executeQuery()) {
+            return result.next() ? readBan(result) : null;
+        }
+    }
+
+    private static boolean isActive(Ban ban) {
+        return ban != null && (ban.getEnd() == 0L || ban.getEnd() > System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean isBanned(UUID ID) {
+        return isActive(getBanned(ID));
+    }
+
+    @Override
+    public boolean isBanned(InetAddress address) {
+        return isActive(getBanned(address));
+    }
+
+    @Override
+    public synchronized int expireBans() {
+        if (connection == null) {
+            return 0;
+        }
+        List<Ban> expired = new ArrayList<Ban>();
+        try {
+            selectExpired.setLong(1, System.currentTimeMillis());
+            List<Long> rows = new ArrayList<Long>();
+            try (ResultSet result = selectExpired.executeQuery()) {
+                while (result.next()) {
+                    rows.add(result.getLong(1));
+                    expired.add(readBan(result));
+                }
+            }
+            if (rows.isEmpty()) {
+                return 0;
+            }
+            connection.setAutoCommit(false);
+            try {
+                for (long row : rows) {
+                    deleteById.setLong(1, row);
+                    deleteById.addBatch();
+                }
+                deleteById.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            warn(e);
+            return 0;
+        }
+
+        for (Ban ban : expired) {
+            removeRange(ban.getAddress());
+            auditLog.logUnban(null, ban, "Tempban expired");
+        }
+        return expired.size();
+    }
+
+    @Override
+    public String getBannedMessage(UUID ID) {
+        Ban ban = getBanned(ID);
+        if (ban == null || ban.getReason() == null) return "You are banned.";
+        return ban.getReason();
+    }
+
+    @Override
+    public String getBannedMessage(String address) {
+        Ban ban = getBanned(address);
+        if (ban == null || ban.getReason() == null) return "You are banned by IP.";
+        return ban.getReason();
+    }
+
+    @Override
+    public void ban(Player player, CommandSender source, String reason, long end) {
+        ban(player.getUniqueId(), player.getName(), player.getAddress().getAddress().getHostAddress(), source, reason, end);
+    }
+
+    @Override
+    public synchronized void ban(UUID ID, String name, String address, CommandSender source, String reason, long end) {
+        Validate.isTrue(ID != null || address != null, "You must specify either an ID, or address");
+        if (connection == null) return;
+        Ban ban = new Ban(ID, name, address == null ? null : AddressIndex.Prefix.canonicalize(address), reason, System.currentTimeMillis(), end);
+        try {
+            connection.setAutoCommit(false);
+            try {
+                insertReplacing(ban);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                loadRanges();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            warn(e);
+            return;
+        }
+        auditLog.logBan(source, ban, reason);
+    }
+
+    /**
+     * Insert {@code ban}, replacing any ban with the same UUID or address.
+     */
+    private void insertReplacing(Ban ban) throws SQLException {
+        if (ban.getID() != null) {
+            Ban old = selectOne(selectByUUID, ban.getID().toString());
+            if (old != null) {
+                removeRange(old.getAddress());
+            }
+            deleteByUUID.setString(1, ban.getID().toString());
+            deleteByUUID.executeUpdate();
+        }
+        if (ban.getAddress() != null) {
+            deleteByAddress.setString(1, ban.getAddress());
+            deleteByAddress.executeUpdate();
+        } else if (ban.getID() == null) {
+            deleteNameOnly.setString(1, ban.getLastKnownAlias());
+            deleteNameOnly.executeUpdate();
+        }
+        insert.setString(1, ban.getID() == null ? null : ban.getID().toString());
+        insert.setString(2, ban.getLastKnownAlias());
+        insert.setString(3, ban.getAddress());
+        insert.setString(4, ban.getReason());
+        insert.setLong(5, ban.getStart());
+        insert.setLong(6, ban.getEnd());
+        insert.executeUpdate();
+
+        if (ban.getAddress() != null) {
+            AddressIndex.Prefix prefix = AddressIndex.Prefix.tryParse(ban.getAddress());
+            if (prefix != null && !prefix.isSingleAddress()) {
+                ranges.put(prefix, ban);
+            }
+        }
+    }
+
+    private void removeRange(String address) {
+        if (address == null) {
+            return;
+        }
+        AddressIndex.Prefix prefix = AddressIndex.Prefix.tryParse(address);
+        if (prefix != null && !prefix.isSingleAddress()) {
+            ranges.remove(prefix);
+        }
+    }
+
+    @Override
+    public synchronized boolean unbanName(String name, CommandSender source, String reason) {
+        if (connection == null || name == null || name.isEmpty()) return false;
+        try {
+            Ban ban = selectOne(selectByName, name.toLowerCase());
+            if (ban == null) {
+                return false;
+            }
+            deleteByName.setString(1, name.toLowerCase());
+            deleteByName.executeUpdate();
+            auditLog.logUnban(source, ban, reason);
+            return true;
+        } catch (SQLException e) {
+            warn(e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean unban(Player player, CommandSender source, String reason) {
+        return unban(player.getUniqueId(), null, source, reason);
+    }
+
+    @Override
+    public synchronized boolean unban(UUID ID, String address, CommandSender source, String reason) {
+        if (connection == null) return false;
+        try {
+            Ban ban = null;
+            if (ID != null && (ban = selectOne(selectByUUID, ID.toString())) != null) {
+                deleteByUUID.setString(1, ID.toString());
+                deleteByUUID.executeUpdate();
+            } else if (address != null && (ban = selectOne(selectByAddress, AddressIndex.Prefix.canonicalize(address))) != null) {
+                deleteByAddress.setString(1, ban.getAddress());
+                deleteByAddress.executeUpdate();
+            }
+            if (ban == null) {
+                return false;
+            }
+            removeRange(ban.getAddress());
+            auditLog.logUnban(source, ban, reason);
+            return true;
+        } catch (SQLException e) {
+            warn(e);
+            return false;
+        }
+    }
+
+    @Override
+    public void logKick(Player player, CommandSender source, String reason) {
+        auditLog.logKick(player, source, reason);
+    }
+
+    /**
+     * Copy every ban from {@code bans} into this database. The source is read once through its
+     * iterator and written in a single transaction, so a failed import leaves nothing behind.
+     * Bans without a UUID, such as legacy bans whose name was never converted, are kept as
+     * name bans; {@link #convertNameBans()} can look their UUIDs up afterwards.
+     *
+     * @param bans The bans to copy
+     */
+    @Override
+    public synchronized int importFrom(Iterable<Ban> bans) {
+        if (connection == null) {
+            return 0;
+        }
+        int imported = 0;
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (Ban ban : bans) {
+                    String address = ban.getAddress() == null || ban.getAddress().isEmpty() ? null
+                            : AddressIndex.Prefix.canonicalize(ban.getAddress());
+                    String name = ban.getLastKnownAlias();
+                    if (ban.getID() == null && address == null && (name == null || name.isEmpty())) {
+                        logger().warning(ban.toString() + " could not be imported!");
+                        continue;
+                    }
+                    if (ban.getID() == null && name != null) {
+                        // Looked up by lower case name, like unbanName and getBannedByName
+                        name = name.toLowerCase();
+                    }
+                    ban = new Ban(ban.getID(), name, address,
+                            ban.getReason(), ban.getStart(), ban.getEnd());
+                    insertReplacing(ban);
+                    ++imported;
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                // The range index was updated as rows went in, so rebuild it from what is committed
+                loadRanges();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            warn(e);
+            return 0;
+        }
+        return imported;
+    }
+
+    /**
+     * Look up the UUIDs of name bans in the background and convert the bans that resolve.
+     * The bans keep being enforced by name until then, and names that cannot be resolved
+     * stay name bans.
+     */
+    public void convertNameBans() {
+        List<String> names = new ArrayList<String>();
+        synchronized (this) {
+            if (connection == null) {
+                return;
+            }
+            try (ResultSet result = selectNames.executeQuery()) {
+                while (result.next()) {
+                    names.add(result.getString(1));
+                }
+            } catch (SQLException e) {
+                warn(e);
+                return;
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+        logger().info("Converting " + names.size() + " ban(s) without a UUID in the background...");
+        UUIDResolver.getInstance().resolveAll(names).thenAccept(resolved -> {
+            applyConversions(resolved);
+            for (String name : names) {
+                if (!resolved.containsKey(name)) {
+                    logger().warning("The ban on " + name + " could not be converted!");
+                }
+            }
+        });
+    }
+
+    private synchronized void applyConversions(Map<String, UUID> resolved) {
+        if (connection == null) {
+            // Unloaded while the names were looked up
+            return;
+        }
+        int converted = 0;
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, UUID> entry : resolved.entrySet()) {
+                    // The ban may have been lifted while its name was looked up
+                    Ban ban = selectOne(selectByName, entry.getKey());
+                    if (ban == null) {
+                        continue;
+                    }
+                    deleteByName.setString(1, entry.getKey());
+                    deleteByName.executeUpdate();
+                    removeRange(ban.getAddress());
+                    // A ban placed on the UUID since is newer, so it wins, but the address
+                    // stays banned on its own terms
+                    if (selectOne(selectByUUID, entry.getValue().toString()) == null) {
+                        insertReplacing(new Ban(entry.getValue(), ban.getLastKnownAlias(), ban.getAddress(),
+                                ban.getReason(), ban.getStart(), ban.getEnd()));
+                    } else if (ban.getAddress() != null && selectOne(selectByAddress, ban.getAddress()) == null) {
+                        insertReplacing(new Ban(null, null, ban.getAddress(),
+                                ban.getReason(), ban.getStart(), ban.getEnd()));
+                    }
+                    ++converted;
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                loadRanges();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            warn(e);
+            return;
+        }
+        if (converted > 0) {
+            logger().info(converted + " ban(s) converted to UUIDs.");
+        }
+    }
+
+    /**
+     * Every access holds the database lock, so any thread may use it.
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public synchronized Ban getBanned(UUID ID) {
+        if (connection == null || ID == null) return null;
+        try {
+            return selectOne(selectByUUID, ID.toString());
+        } catch (SQLException e) {
+            warn(e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized Ban getBannedByName(String name) {
+        if (connection == null || name == null) return null;
+        try {
+            return selectOne(selectByName, name.toLowerCase());
+        } catch (SQLException e) {
+            warn(e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized Ban getBanned(String address) {
+        if (connection == null || address == null) return null;
+        try {
+            return selectOne(selectByAddress, AddressIndex.Prefix.canonicalize(address));
+        } catch (SQLException e) {
+            warn(e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized Ban getBanned(InetAddress address) {
+        if (connection == null) return null;
+        try {
+            Ban ban = selectOne(selectByAddress, InetAddresses.toAddrString(address));
+            return ban != null ? ban : ranges.get(address);
+        } catch (SQLException e) {
+            warn(e);
+            return null;
+        }
+    }
+
+    /**
+     * Iterates over the bans a page at a time, so the whole table is never loaded at once.
+     * Bans added or removed while iterating may or may not be seen.
+     */
+    @Override
+    public Iterator<Ban> iterator() {
+        return new Iterator<Ban>() {
+            private final Deque<Ban> page = new ArrayDeque<Ban>();
+            private long lastRow = 0;
+            private boolean exhausted;
+            private Ban next;
+
+            private void fill() {
+                if (!page.isEmpty() || exhausted) {
+                    return;
+                }
+                synchronized (SQLiteBanDatabase.this) {
+                    if (connection == null) {
+                        exhausted = true;
+                        return;
+                    }
+                    try (PreparedStatement statement = connection.prepareStatement("SELECT " + COLUMNS
+                            + " FROM bans WHERE id > ? ORDER BY id LIMIT " + ITERATOR_PAGE_SIZE)) {
+                        statement.setLong(1, lastRow);
+                        try (ResultSet result = statement.executeQuery()) {
+                            while (result.next()) {
+                                lastRow = result.getLong(1);
+                                page.add(readBan(result));
+                            }
+                        }
+                    } catch (SQLException e) {
+                        warn(e);
+                    }
+                }
+                exhausted = page.size() < ITERATOR_PAGE_SIZE;
+            }
+
+            public boolean hasNext() {
+                fill();
+                return !page.isEmpty();
+            }
+
+            public Ban next() {
+                fill();
+                if (page.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                return next = page.poll();
+            }
+
+            public void remove() {
+                unban(next.getID(), next.getAddress(), null, "Removed by iterator");
+            }
+        };
+    }
+}
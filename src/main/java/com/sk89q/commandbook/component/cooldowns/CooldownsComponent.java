@@ -109,7 +109,7 @@ private static String formatTime(int timeInSeconds, TimeUnit unit) {
     }
 
     public void run() {
-        for (final CooldownState state : sessions.getSessions(CooldownState.class).values()) {
+        for (final CooldownState state : sessions.getSessionView(CooldownState.class)) {
             final HashSet<String> visitedCooldowns = new HashSet<String>();
             for (Iterator<Map.Entry<String, Integer>> i = state.cooldownCommands.entrySet().iterator(); i.hasNext();) {
                 final Map.Entry<String, Integer> entry = i.next();
@@ -19,8 +19,11 @@
 package com.sk89q.commandbook.component.debug;
 
 import com.sk89q.commandbook.CommandBook;
+import com.sk89q.commandbook.component.session.SessionComponent;
+import com.sk89q.commandbook.component.session.SessionDataCache;
 import com.sk89q.minecraft.util.commands.*;
 import com.zachsthings.libcomponents.ComponentInformation;
+import com.zachsthings.libcomponents.InjectComponent;
 import com.zachsthings.libcomponents.bukkit.BukkitComponent;
 import org.bukkit.ChatColor;
 import org.bukkit.World;
@@ -28,6 +31,8 @@
 
 @ComponentInformation(friendlyName = "Debug", desc = "Provides useful debugging information for server owners.")
 public class DebugComponent extends BukkitComponent {
+    @InjectComponent private SessionComponent sessions;
+
     @Override
     public void enable() {
         registerCommands(Commands.class);
@@ -146,5 +151,25 @@ public void serverInfo(CommandContext args, CommandSender sender) throws Command
             sender.sendMessage(ChatColor.YELLOW + "Free allocated memory: "
                     + Math.floor(rt.freeMemory() / 1024.0 / 1024.0) + " MB");
         }
+
+        @Command(aliases = {"sessions"}, usage = "", desc = "Get session file cache and save statistics",
+                flags = "", min = 0, max = 0)
+        @CommandPermissions({"commandbook.debug.sessions"})
+        public void sessionInfo(CommandContext args, CommandSender sender) throws CommandException {
+            if (sessions == null || sessions.getDataCache() == null) {
+                throw new CommandException("The sessions component is not enabled.");
+            }
+            SessionDataCache cache = sessions.getDataCache();
+            long hits = cache.getHits();
+            long misses = cache.getMisses();
+            sender.sendMessage(ChatColor.YELLOW + "Cached session files: " + cache.size());
+            sender.sendMessage(ChatColor.YELLOW + "Hits: " + hits + ", misses: " + misses
+                    + (hits + misses > 0 ? String.format(" (%.1f%% hit rate)", 100.0 * hits / (hits + misses)) : ""));
+            sender.sendMessage(ChatColor.YELLOW + "Evictions: " + cache.getEvictions());
+            sender.sendMessage(ChatColor.YELLOW + "Sessions saved: " + sessions.getSessionsSaved()
+                    + ", unchanged: " + sessions.getSessionsSkipped());
+            sender.sendMessage(ChatColor.YELLOW + "Files written: " + sessions.getFilesWritten()
+                    + ", unchanged: " + sessions.getFilesSkipped());
+        }
     }
 }
@@ -71,7 +71,7 @@ public boolean unfreezePlayer(Player player) {
 
     @Override
     public void run() {
-        for (FreezeState frozenState : sessions.getSessions(FreezeState.class).values()) {
+        for (FreezeState frozenState : sessions.getSessionView(FreezeState.class)) {
             if (!frozenState.isFrozen()) {
                 continue;
             }
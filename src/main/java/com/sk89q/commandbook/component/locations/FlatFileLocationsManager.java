@@ -21,14 +21,25 @@
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
 import com.sk89q.commandbook.CommandBook;
-import com.sk89q.commandbook.util.entity.player.UUIDUtil;
+import com.sk89q.commandbook.util.RecordJournal;
+import com.sk89q.commandbook.util.entity.player.UUIDResolver;
 import org.apache.commons.lang3.Validate;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
 import static com.sk89q.commandbook.CommandBook.logger;
 import static com.sk89q.commandbook.util.NestUtil.getNestedList;
@@ -37,10 +48,55 @@ public class FlatFileLocationsManager implements LocationManager<NamedLocation>
 
     private World castWorld;
     private final File file;
-    private Map<String, NamedLocation> locations = new HashMap<String, NamedLocation>();
+    /**
+     * The locations in loaded worlds. Names are compared without regard to case, so looking one up needs no lower-cased copy.
+     */
+    private Map<String, NamedLocation> locations = new TreeMap<String, NamedLocation>(String.CASE_INSENSITIVE_ORDER);
+    /**
+     * The locations in loaded worlds, by the UUID of their owner
+     */
+    private final Map<UUID, List<NamedLocation>> ownerIndex = new HashMap<UUID, List<NamedLocation>>();
+    /**
+     * The locations in loaded worlds, by where they are
+     */
+    private final LocationGrid grid = new LocationGrid();
     private final Map<String, List<NamedLocation>> unloadedLocations = new HashMap<String, List<NamedLocation>>();
+    /**
+     * Locations read with an owner name that is not in the UUID cache, to be resolved once loading is done
+     */
+    private final List<NamedLocation> unresolvedOwners = new ArrayList<NamedLocation>();
+    private UUIDResolver resolver;
+    private volatile boolean closed;
     private final String type;
 
+    /**
+     * The log of changes since the file was last written in full, or null when every save rewrites the whole file
+     */
+    private final RecordJournal journal;
+
+    /**
+     * Holds the journal records that are being folded into the file by a compaction
+     */
+    private final File compactingFile;
+
+    /**
+     * The number of journal records after which the journal is folded into the file
+     */
+    private final int compactThreshold;
+
+    /**
+     * Flushes the journal and writes compactions, off the server thread
+     */
+    private final ExecutorService writer;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private Future<?> compaction;
+    /**
+     * The journal record count at which the next compaction starts. A compaction that has to
+     * reuse the records of a failed one does not rotate the journal, so this is raised instead
+     * to keep it from being retried on every change.
+     */
+    private volatile int compactAt;
+
     /**
      * Construct the manager.
      *
@@ -48,8 +104,32 @@ public class FlatFileLocationsManager implements LocationManager<NamedLocation>
      * @param type The name for the type of location being loaded
      */
     public FlatFileLocationsManager(File file, String type) {
+        this(file, type, null, 0);
+    }
+
+    /**
+     * Construct a manager that appends changes to a journal next to {@code file} instead of
+     * rewriting the whole file on every save.
+     *
+     * @param file The file locations are stored in
+     * @param type The name for the type of location being loaded
+     * @param writer The executor to write on, or null to rewrite the whole file on every save
+     * @param compactThreshold The number of journal records after which the journal is
+     *                         folded into the file in the background
+     */
+    public FlatFileLocationsManager(File file, String type, ExecutorService writer, int compactThreshold) {
         this.file = file;
         this.type = type;
+        this.writer = writer;
+        this.compactThreshold = Math.max(1, compactThreshold);
+        this.compactAt = this.compactThreshold;
+        if (writer != null) {
+            journal = new RecordJournal(new File(file.getParentFile(), file.getName() + ".journal"));
+            compactingFile = new File(file.getParentFile(), file.getName() + ".journal.compacting");
+        } else {
+            journal = null;
+            compactingFile = null;
+        }
     }
 
     public void castWorld(World world) {
@@ -58,145 +138,473 @@ public void castWorld(World world) {
 
     public void load() throws IOException {
         FileInputStream input = null;
-        Map<String, NamedLocation> locs = new HashMap<String, NamedLocation>();
+        Map<String, NamedLocation> locs = new TreeMap<String, NamedLocation>(String.CASE_INSENSITIVE_ORDER);
         boolean needsSaved = false;
 
-        if (file.getParentFile().exists() || file.getParentFile().mkdirs()) {
-            if (!file.exists()) {
-                file.createNewFile();
+        // A missing file has no locations; it is only created once something is saved
+        try {
+            if (file.exists()) {
+                input = new FileInputStream(file);
+                InputStreamReader streamReader = new InputStreamReader(input, "utf-8");
+                BufferedReader reader = new BufferedReader(streamReader);
+
+                CSVReader csv = new CSVReader(reader);
+                String[] line;
+                while ((line = csv.readNext()) != null) {
+                    needsSaved |= loadLocation(locs, line);
+                }
+            }
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignore) {
+                }
             }
         }
 
-        try {
-            input = new FileInputStream(file);
-            InputStreamReader streamReader = new InputStreamReader(input, "utf-8");
-            BufferedReader reader = new BufferedReader(streamReader);
-
-            CSVReader csv = new CSVReader(reader);
-            String[] line;
-            while ((line = csv.readNext()) != null) {
-                int lineLen = line.length;
-                if (lineLen < 8) {
-                    logger().warning(type + " data file has an invalid line with < 8 fields");
-                } else {
-                    try {
-                        int i = 0;
-                        String name = line[i++].trim().replace(" ", "");
-                        String worldName = line[i++]; // Set to null if the world exists
-                        String creator = line[i++];
-                        double x = Double.parseDouble(line[i++]);
-                        double y = Double.parseDouble(line[i++]);
-                        double z = Double.parseDouble(line[i++]);
-                        float pitch = Float.parseFloat(line[i++]);
-                        float yaw = Float.parseFloat(line[i++]);
-
-                        World world = CommandBook.server().getWorld(worldName);
-
-
-                        if (world != null) {
-                            // We shouldn't have this warp
-                            if (castWorld != null && !castWorld.equals(world)) {
-                                continue;
-                            }
-                        }
+        // Set first, since replaying may start a compaction which writes out the current locations
+        this.locations = locs;
+        if (journal != null) {
+            replayJournal(locs);
+        }
+        ownerIndex.clear();
+        grid.clear();
+        for (NamedLocation loc : locs.values()) {
+            index(loc);
+        }
 
-                        Location loc = new Location(world, x, y, z, yaw, pitch);
-                        NamedLocation warp = new NamedLocation(name, loc);
-                        warp.setWorldName(worldName);
-
-                        try {
-                            warp.setCreatorID(UUID.fromString(creator));
-                        } catch (IllegalArgumentException ex) {
-                            logger().finest("Converting " + type + " " + name + "'s owner record to UUID...");
-                            UUID creatorID = UUIDUtil.convert(creator);
-                            if (creatorID != null) {
-                                warp.setCreatorID(creatorID);
-                                needsSaved = true;
-                                logger().finest("Success!");
-                            } else {
-                                warp.setCreatorName(creator);
-                                logger().warning(type + " " + name + "'s owner could not be converted!");
-                            }
-                        }
-                        if (world == null) {
-                            getNestedList(unloadedLocations, worldName).add(warp);
-                        } else {
-                            locs.put(name.toLowerCase(), warp);
-                        }
-                    } catch (IllegalArgumentException e) {
-                        if (e instanceof NumberFormatException) {
-                            logger().warning(type + " data file has an invalid line with an invalid UUID field");
-                        } else {
-                            logger().warning(type + " data file has an invalid line with non-numeric numeric fields");
+        if (castWorld != null) {
+            logger().info(locs.size() + " " + type + "(s) loaded for "
+                    + castWorld.getName());
+        } else {
+            logger().info(locs.size() + " " + type + "(s) loaded");
+        }
+        if (needsSaved) {
+            requestFullSave();
+        }
+        if (!unresolvedOwners.isEmpty()) {
+            List<NamedLocation> toResolve = new ArrayList<NamedLocation>(unresolvedOwners);
+            unresolvedOwners.clear();
+            resolveOwners(toResolve);
+        }
+    }
+
+    /**
+     * Write out every location, for changes that are not recorded in the journal.
+     */
+    private void requestFullSave() throws IOException {
+        if (journal != null) {
+            scheduleCompaction();
+        } else {
+            save();
+        }
+    }
+
+    private UUIDResolver resolver() {
+        if (resolver == null) {
+            resolver = UUIDResolver.getInstance();
+        }
+        return resolver;
+    }
+
+    /**
+     * Look up the UUIDs of owners that were saved by name in the background. The locations can be
+     * used in the meantime, and get their owner's UUID on the server thread once every lookup has finished.
+     *
+     * @param locs The locations whose owner needs resolving
+     */
+    private void resolveOwners(final List<NamedLocation> locs) {
+        Set<String> names = new HashSet<String>();
+        for (NamedLocation loc : locs) {
+            names.add(loc.getCreatorName());
+        }
+        logger().info("Converting the owners of " + locs.size() + " " + type + "(s) to UUIDs in the background...");
+        resolver().resolveAll(names).thenAccept(resolved ->
+                CommandBook.server().getScheduler().runTask(CommandBook.inst(), () -> applyOwners(locs, resolved)))
+                .exceptionally(e -> {
+                    // Including the task being refused because the plugin was disabled in the meantime
+                    logger().log(Level.WARNING, "Failed to convert the owners of " + type + "(s) to UUIDs", e);
+                    return null;
+                });
+    }
+
+    private void applyOwners(List<NamedLocation> locs, Map<String, UUID> resolved) {
+        if (closed) {
+            return;
+        }
+        List<NamedLocation> converted = new ArrayList<NamedLocation>();
+        int failed = 0;
+        for (NamedLocation loc : locs) {
+            if (loc.getCreatorID() != null) {
+                continue;
+            }
+            UUID creatorID = resolved.get(loc.getCreatorName().toLowerCase());
+            if (creatorID == null) {
+                logger().fine(type + " " + loc.getName() + "'s owner could not be converted!");
+                ++failed;
+                continue;
+            }
+            // The location may have been replaced or removed while its owner was looked up
+            boolean indexed = locations.get(loc.getName()) == loc;
+            if (indexed) {
+                unindex(loc);
+            }
+            loc.setCreatorID(creatorID);
+            if (indexed) {
+                index(loc);
+            }
+            if (indexed || isUnloaded(loc)) {
+                converted.add(loc);
+            }
+        }
+        if (failed > 0) {
+            logger().warning("The owners of " + failed + " " + type + "(s) could not be converted!");
+        }
+        if (!converted.isEmpty()) {
+            logger().info(converted.size() + " " + type + " owner(s) converted to UUIDs.");
+            // Journaled like any other change, since a compaction that is already running
+            // may have copied the locations before their owners were set
+            for (NamedLocation loc : converted) {
+                journalSet(loc);
+            }
+            try {
+                save();
+            } catch (IOException e) {
+                logger().warning("Failed to save " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return whether {@code loc} is stored as a location of a world that is not loaded
+     */
+    private boolean isUnloaded(NamedLocation loc) {
+        List<NamedLocation> unloaded = loc.getWorldName() == null ? null : unloadedLocations.get(loc.getWorldName());
+        if (unloaded != null) {
+            for (NamedLocation other : unloaded) {
+                if (other == loc) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a location read from the file or the journal.
+     *
+     * @param locs The loaded locations to add to
+     * @param line The fields of the location, as written by {@link #toRecord(NamedLocation)}
+     * @return whether the location's owner was converted to a UUID, so the file needs saving
+     */
+    private boolean loadLocation(Map<String, NamedLocation> locs, String[] line) {
+        boolean converted = false;
+        int lineLen = line.length;
+        if (lineLen < 8) {
+            logger().warning(type + " data file has an invalid line with < 8 fields");
+        } else {
+            try {
+                int i = 0;
+                String name = line[i++].trim().replace(" ", "");
+                String worldName = line[i++]; // Set to null if the world exists
+                String creator = line[i++];
+                double x = Double.parseDouble(line[i++]);
+                double y = Double.parseDouble(line[i++]);
+                double z = Double.parseDouble(line[i++]);
+                float pitch = Float.parseFloat(line[i++]);
+                float yaw = Float.parseFloat(line[i++]);
+
+                // Per-world managers may be loaded off the server thread, so avoid looking up their own world
+                World world = castWorld != null && castWorld.getName().equals(worldName)
+                        ? castWorld : CommandBook.server().getWorld(worldName);
+
+                if (world != null) {
+                    // We shouldn't have this warp
+                    if (castWorld != null && !castWorld.equals(world)) {
+                        return false;
+                    }
+                }
+
+                Location loc = new Location(world, x, y, z, yaw, pitch);
+                NamedLocation warp = new NamedLocation(name, loc);
+                warp.setWorldName(worldName);
+
+                try {
+                    warp.setCreatorID(UUID.fromString(creator));
+                } catch (IllegalArgumentException ex) {
+                    UUID creatorID = creator.isEmpty() ? null : resolver().getCached(creator);
+                    if (creatorID != null) {
+                        warp.setCreatorID(creatorID);
+                        converted = true;
+                    } else {
+                        warp.setCreatorName(creator);
+                        if (!creator.isEmpty()) {
+                            unresolvedOwners.add(warp);
                         }
                     }
                 }
+                if (world == null) {
+                    getNestedList(unloadedLocations, worldName).add(warp);
+                } else {
+                    locs.put(name, warp);
+                }
+            } catch (IllegalArgumentException e) {
+                if (e instanceof NumberFormatException) {
+                    logger().warning(type + " data file has an invalid line with an invalid UUID field");
+                } else {
+                    logger().warning(type + " data file has an invalid line with non-numeric numeric fields");
+                }
             }
+        }
+        return converted;
+    }
 
-            this.locations = locs;
+    /**
+     * Remove a location by name, whether or not its world is loaded.
+     */
+    private void removeLocation(Map<String, NamedLocation> locs, String name) {
+        if (locs.remove(name) != null) {
+            return;
+        }
+        for (List<NamedLocation> unloaded : unloadedLocations.values()) {
+            for (Iterator<NamedLocation> i = unloaded.iterator(); i.hasNext();) {
+                if (i.next().getName().equalsIgnoreCase(name)) {
+                    i.remove();
+                }
+            }
+        }
+    }
 
-            if (castWorld != null) {
-                logger().info(locs.size() + " " + type + "(s) loaded for "
-                        + castWorld.getName());
+    /**
+     * Apply the records of an interrupted compaction and of the live journal on top of the
+     * locations that were just read, then reopen the journal for appending.
+     */
+    private void replayJournal(final Map<String, NamedLocation> locs) throws IOException {
+        awaitCompaction();
+        journal.close();
+        RecordJournal.RecordHandler handler = fields -> {
+            if (fields.length == 9 && "SET".equals(fields[0])) {
+                // Replaces the location of the same name, even if it is in a world that is not loaded
+                removeLocation(locs, fields[1].trim().replace(" ", ""));
+                loadLocation(locs, Arrays.copyOfRange(fields, 1, fields.length));
+            } else if (fields.length == 2 && "REMOVE".equals(fields[0])) {
+                removeLocation(locs, fields[1]);
             } else {
-                logger().info(locs.size() + " " + type + "(s) loaded");
-            }
-        } finally {
-            if (input != null) {
-                try {
-                    input.close();
-                } catch (IOException ignore) {
-                }
+                logger().warning("Unknown " + type + " journal record found!");
             }
+        };
+        int replayed = RecordJournal.replay(compactingFile, handler);
+        replayed += RecordJournal.replay(journal.getFile(), handler);
+        // The journal is reopened by the first append, so a world that is never changed gets no journal file
+        if (replayed > 0) {
+            logger().info(replayed + " " + type + " change(s) replayed from the journal.");
+        }
+        if (compactingFile.exists() || replayed >= compactThreshold) {
+            scheduleCompaction();
         }
-        if (needsSaved) save();
     }
 
     public void save() throws IOException {
+        if (journal != null) {
+            // Changes are already in the journal's buffer, so only make them durable, off the server thread
+            if (flushPending.compareAndSet(false, true)) {
+                writer.execute(this::flushJournal);
+            }
+            return;
+        }
+
         FileOutputStream output = null;
 
         try {
+            createParent();
             output = new FileOutputStream(file);
             OutputStreamWriter streamWriter = new OutputStreamWriter(output, "utf-8");
             BufferedWriter writer = new BufferedWriter(streamWriter);
 
             CSVWriter csv = new CSVWriter(writer);
 
-            synchronized (this) {
-                Set<NamedLocation> toStore = new HashSet<NamedLocation>();
-                for (List<NamedLocation> locList : unloadedLocations.values()) {
-                    toStore.addAll(locList);
-                }
-                toStore.addAll(locations.values());
-
-                for (NamedLocation warp : toStore) {
-
-                    UUID ID = warp.getCreatorID();
-                    csv.writeNext(new String[] {
-                            warp.getName(),
-                            warp.getWorldName() != null ? warp.getWorldName()
-                                    : warp.getLocation().getWorld().getName(),
-                            String.valueOf(ID != null ? ID : warp.getCreatorName()),
-                            String.valueOf(warp.getLocation().getX()),
-                            String.valueOf(warp.getLocation().getY()),
-                            String.valueOf(warp.getLocation().getZ()),
-                            String.valueOf(warp.getLocation().getPitch()),
-                            String.valueOf(warp.getLocation().getYaw()),
-                            });
+            for (NamedLocation warp : snapshot()) {
+                csv.writeNext(toRecord(warp));
+            }
+
+            csv.flush();
+            csv.close();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignore) {
                 }
+            }
+        }
+    }
+
+    /**
+     * @return Every location, loaded or not
+     */
+    private List<NamedLocation> snapshot() {
+        synchronized (this) {
+            Set<NamedLocation> toStore = new HashSet<NamedLocation>();
+            for (List<NamedLocation> locList : unloadedLocations.values()) {
+                toStore.addAll(locList);
+            }
+            toStore.addAll(locations.values());
+            return new ArrayList<NamedLocation>(toStore);
+        }
+    }
+
+    /**
+     * Get the fields the file stores for {@code warp}.
+     *
+     * @param warp The location
+     * @return The CSV fields
+     */
+    private static String[] toRecord(NamedLocation warp) {
+        UUID ID = warp.getCreatorID();
+        return new String[] {
+                warp.getName(),
+                warp.getWorldName() != null ? warp.getWorldName()
+                        : warp.getLocation().getWorld().getName(),
+                String.valueOf(ID != null ? ID : warp.getCreatorName()),
+                String.valueOf(warp.getLocation().getX()),
+                String.valueOf(warp.getLocation().getY()),
+                String.valueOf(warp.getLocation().getZ()),
+                String.valueOf(warp.getLocation().getPitch()),
+                String.valueOf(warp.getLocation().getYaw()),
+        };
+    }
+
+    private void journal(String... fields) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(fields);
+        } catch (IOException e) {
+            logger().warning("Failed to write to " + journal.getFile().getAbsolutePath()
+                    + ": " + e.getMessage());
+        }
+        if (journal.getRecordCount() >= compactAt) {
+            scheduleCompaction();
+        }
+    }
+
+    private void flushJournal() {
+        flushPending.set(false);
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            logger().warning("Failed to save " + journal.getFile().getAbsolutePath()
+                    + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fold the journal into the file. The list of locations is copied and the journal is rotated
+     * on the calling thread; the records are built and the file is written on the writer thread.
+     * A location changed while that runs is also in the live journal, which replays over the file.
+     */
+    private synchronized void scheduleCompaction() {
+        if (compaction != null && !compaction.isDone()) {
+            return;
+        }
 
+        final List<NamedLocation> snapshot = snapshot();
+        try {
+            // If an earlier compaction failed its records are still waiting in compactingFile.
+            // The snapshot covers them as well as the live journal, so only rotate when it is free.
+            if (!compactingFile.exists()) {
+                journal.rotate(compactingFile);
             }
+        } catch (IOException e) {
+            logger().warning("Failed to rotate " + journal.getFile().getAbsolutePath()
+                    + ": " + e.getMessage());
+            return;
+        } finally {
+            compactAt = journal.getRecordCount() + compactThreshold;
+        }
 
+        compaction = writer.submit(() -> {
+            if (writeSnapshot(snapshot) && !compactingFile.delete() && compactingFile.exists()) {
+                logger().warning("Failed to remove " + compactingFile.getAbsolutePath());
+            }
+        });
+    }
+
+    private void awaitCompaction() {
+        Future<?> pending;
+        synchronized (this) {
+            pending = compaction;
+        }
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger().warning(type + " compaction failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Write the given locations to the file. They are written to a temporary file first, which
+     * then replaces the file, so an interrupted write never leaves a partial file behind.
+     *
+     * @param locations The locations to write
+     * @return whether the operation was fully successful
+     */
+    private boolean writeSnapshot(List<NamedLocation> locations) {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream output = null;
+        boolean successful = true;
+
+        try {
+            createParent();
+            output = new FileOutputStream(tempFile);
+            CSVWriter csv = new CSVWriter(new BufferedWriter(new OutputStreamWriter(output, "utf-8")));
+            for (NamedLocation warp : locations) {
+                csv.writeNext(toRecord(warp));
+            }
             csv.flush();
+            output.getFD().sync();
             csv.close();
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger().warning("Failed to save " + file.getAbsolutePath()
+                    + ": " + e.getMessage());
+            successful = false;
         } finally {
             if (output != null) {
                 try {
                     output.close();
-                } catch (IOException ignore) {
+                } catch (IOException ignored) {
                 }
             }
         }
+        return successful;
+    }
+
+    private void createParent() throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (journal != null) {
+            awaitCompaction();
+            journal.close();
+        }
     }
 
     public void updateWorlds() {
@@ -207,7 +615,11 @@ public void updateWorlds() {
             i.remove();
             for (NamedLocation warp : entry.getValue()) {
                 warp.getLocation().setWorld(world);
-                locations.put(warp.getName().toLowerCase(), warp);
+                NamedLocation previous = locations.put(warp.getName(), warp);
+                if (previous != null) {
+                    unindex(previous);
+                }
+                index(warp);
             }
         }
         for (Iterator<NamedLocation> i = locations.values().iterator(); i.hasNext();) {
@@ -215,6 +627,7 @@ public void updateWorlds() {
             if (loc.getWorldName() != null) {    
                 if (CommandBook.server().getWorld(loc.getWorldName()) == null) {
                     i.remove();
+                    unindex(loc);
                     loc.getLocation().setWorld(null);
                     getNestedList(unloadedLocations, loc.getWorldName()).add(loc);
                 }
@@ -223,48 +636,160 @@ public void updateWorlds() {
     }
 
     public NamedLocation get(String id) {
-        return locations.get(id.toLowerCase());
+        return locations.get(id);
     }
 
     public boolean remove(String id) {
-        return locations.remove(id.toLowerCase()) != null;
+        NamedLocation removed = locations.remove(id);
+        if (removed == null) {
+            return false;
+        }
+        unindex(removed);
+        journal("REMOVE", removed.getName());
+        return true;
     }
 
     public List<NamedLocation> getLocations() {
         return new ArrayList<NamedLocation>(locations.values());
     }
 
+    public List<NamedLocation> getLocations(UUID owner) {
+        List<NamedLocation> owned = ownerIndex.get(owner);
+        if (owned == null) {
+            return new ArrayList<NamedLocation>();
+        }
+        // In the same order as getLocations(), so pages of a listing stay put
+        List<NamedLocation> sorted = new ArrayList<NamedLocation>(owned);
+        sorted.sort(Comparator.comparing(NamedLocation::getName, String.CASE_INSENSITIVE_ORDER));
+        return sorted;
+    }
+
+    public List<NamedLocation> getNearest(Location origin, int count) {
+        return grid.getNearest(origin, count);
+    }
+
+    public List<NamedLocation> getWithin(Location origin, double radius) {
+        return grid.getWithin(origin, radius);
+    }
+
+    /**
+     * Add a location that has been put in {@link #locations} to the indexes.
+     */
+    private void index(NamedLocation loc) {
+        grid.add(loc);
+        if (loc.getCreatorID() != null) {
+            List<NamedLocation> owned = ownerIndex.get(loc.getCreatorID());
+            if (owned == null) {
+                owned = new ArrayList<NamedLocation>(2);
+                ownerIndex.put(loc.getCreatorID(), owned);
+            }
+            owned.add(loc);
+        }
+    }
+
+    /**
+     * Remove a location that has been taken out of {@link #locations} from the indexes, before its world is changed.
+     */
+    private void unindex(NamedLocation loc) {
+        grid.remove(loc);
+        List<NamedLocation> owned = loc.getCreatorID() == null ? null : ownerIndex.get(loc.getCreatorID());
+        if (owned != null && owned.remove(loc) && owned.isEmpty()) {
+            ownerIndex.remove(loc.getCreatorID());
+        }
+    }
+
     public NamedLocation create(String id, Location loc, Player player) {
         id = id.trim();
         Validate.isTrue(id.matches("^[a-zA-Z0-9-_]*$"), "Location ID contains invalid characters!");
         NamedLocation warp = new NamedLocation(id, loc);
-        locations.put(id.toLowerCase(), warp);
+        NamedLocation previous = locations.put(id, warp);
+        if (previous != null) {
+            unindex(previous);
+        }
         if (player != null) {
             warp.setCreatorName(player.getName());
             warp.setCreatorID(player.getUniqueId());
         } else {
             warp.setCreatorName("");
         }
+        index(warp);
+        journalSet(warp);
         return warp;
     }
 
+    private void journalSet(NamedLocation warp) {
+        if (journal == null) {
+            return;
+        }
+        String[] record = toRecord(warp);
+        String[] fields = new String[record.length + 1];
+        fields[0] = "SET";
+        System.arraycopy(record, 0, fields, 1, record.length);
+        journal(fields);
+    }
+
     public static class LocationsFactory implements LocationManagerFactory<LocationManager<NamedLocation>> {
 
         private final File rootDir;
         private final String type;
+        private final ExecutorService writer;
+        private final int compactThreshold;
 
         public LocationsFactory(File rootDir, String type) {
+            this(rootDir, type, false, 0);
+        }
+
+        /**
+         * @param rootDir The directory the files are stored in
+         * @param type The name for the type of location being loaded
+         * @param journaled Whether changes are appended to a journal instead of rewriting the whole file
+         * @param compactThreshold The number of journal records after which a journal is
+         *                         folded into its file in the background
+         */
+        public LocationsFactory(File rootDir, String type, boolean journaled, int compactThreshold) {
             this.rootDir = rootDir;
             this.type = type;
+            this.compactThreshold = compactThreshold;
+            if (journaled) {
+                writer = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "CommandBook " + type + " Writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            } else {
+                writer = null;
+            }
         }
 
         public LocationManager<NamedLocation> createManager() {
-            return new FlatFileLocationsManager(new File(rootDir, type.toLowerCase() + ".csv"), type);
+            return new FlatFileLocationsManager(new File(rootDir, type.toLowerCase() + ".csv"), type,
+                    writer, compactThreshold);
         }
 
         public LocationManager<NamedLocation> createManager(World castWorld) {
             return new FlatFileLocationsManager(
-                    new File(rootDir, type.toLowerCase() + File.separator + castWorld.getName() + ".csv"), type);
+                    new File(rootDir, type.toLowerCase() + File.separator + castWorld.getName() + ".csv"), type,
+                    writer, compactThreshold);
+        }
+
+        /**
+         * Stop the writer thread once every manager has been closed.
+         *
+         * @param timeout How long to wait for queued writes
+         * @param unit The unit of {@code timeout}
+         */
+        public void shutdown(long timeout, TimeUnit unit) {
+            if (writer == null) {
+                return;
+            }
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(timeout, unit)) {
+                    logger().warning(type + " could not be saved before shutdown!");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
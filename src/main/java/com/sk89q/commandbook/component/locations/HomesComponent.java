@@ -179,8 +179,8 @@ public void removeCmd(CommandContext args, CommandSender sender) throws CommandE
             remove(name, world, sender);
         }
 
-        @Command(aliases = {"list", "show"}, usage = "[-w world] [page]", desc = "List homes",
-                flags = "w:", min = 0, max = 1 )
+        @Command(aliases = {"list", "show"}, usage = "[-p owner] [-w world] [page]", desc = "List homes",
+                flags = "p:w:", min = 0, max = 1 )
         @CommandPermissions({"commandbook.home.list"})
         public void listCmd(CommandContext args, CommandSender sender) throws CommandException {
             list(args, sender);
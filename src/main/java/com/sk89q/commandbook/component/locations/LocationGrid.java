@@ -0,0 +1,300 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.locations;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import java.util.*;
+
+/**
+ * Buckets named locations by world and area, to find the locations near a point without
+ * going through all of them.
+ *
+ * Locations are kept in chunk sized cells and again in cells 16 chunks across. A nearest query
+ * searches rings of cells around the point, stopping once no cell further out can hold anything
+ * closer than what was found. It starts with the small cells and moves to the large ones if a few
+ * rings turn up nothing, so sparse worlds do not mean looking up thousands of empty chunks. When
+ * the rings would cover more cells than hold locations, the occupied cells are searched directly.
+ */
+class LocationGrid {
+    private static final int FINE_SHIFT = 4;
+    private static final int COARSE_SHIFT = 8;
+    /**
+     * Rings of small cells to search before moving to the large cells
+     */
+    private static final int MAX_FINE_RINGS = 4;
+
+    private final Map<String, Level[]> worlds = new HashMap<String, Level[]>();
+
+    /**
+     * One size of cells in one world.
+     */
+    private static final class Level {
+        private final int shift;
+        private final Map<Long, List<NamedLocation>> cells = new HashMap<Long, List<NamedLocation>>();
+
+        private Level(int shift) {
+            this.shift = shift;
+        }
+
+        private int getCell(double coordinate) {
+            return (int) Math.floor(coordinate) >> shift;
+        }
+
+        private Long getKey(Location loc) {
+            return getCellKey(getCell(loc.getX()), getCell(loc.getZ()));
+        }
+
+        private void add(NamedLocation loc) {
+            Long key = getKey(loc.getLocation());
+            List<NamedLocation> cell = cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<NamedLocation>(2);
+                cells.put(key, cell);
+            }
+            cell.add(loc);
+        }
+
+        private void remove(NamedLocation loc) {
+            Long key = getKey(loc.getLocation());
+            List<NamedLocation> cell = cells.get(key);
+            if (cell != null && cell.remove(loc) && cell.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+
+        /**
+         * Search rings of cells around the point.
+         *
+         * @return Whether the locations found are known to be the closest
+         */
+        private boolean searchRings(Nearest nearest, int maxRings) {
+            Location origin = nearest.origin;
+            int originX = getCell(origin.getX());
+            int originZ = getCell(origin.getZ());
+            int cellSize = 1 << shift;
+            for (int ring = 0; ring < maxRings; ring++) {
+                long side = 2L * ring + 1;
+                if (side * side > cells.size()) {
+                    // Searching the occupied cells is now cheaper than searching further rings
+                    nearest.clear();
+                    for (List<NamedLocation> cell : cells.values()) {
+                        nearest.offer(cell);
+                    }
+                    return true;
+                }
+                for (int x = originX - ring; x <= originX + ring; x++) {
+                    // Only the edge of the ring, the inside was searched by earlier rings
+                    int step = x == originX - ring || x == originX + ring ? 1 : 2 * ring;
+                    for (int z = originZ - ring; z <= originZ + ring; z += Math.max(1, step)) {
+                        List<NamedLocation> cell = cells.get(getCellKey(x, z));
+                        if (cell != null) {
+                            nearest.offer(cell);
+                        }
+                    }
+                }
+                // Everything in a further ring is at least this far away
+                double reach = (double) ring * cellSize;
+                if (nearest.isFull() && nearest.getWorstDistanceSquared() <= reach * reach) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void searchBox(Location origin, double radius, List<NamedLocation> found) {
+            double radiusSquared = radius * radius;
+            int minX = getCell(origin.getX() - radius);
+            int maxX = getCell(origin.getX() + radius);
+            int minZ = getCell(origin.getZ() - radius);
+            int maxZ = getCell(origin.getZ() + radius);
+            if ((double) (maxX - minX + 1) * (maxZ - minZ + 1) > cells.size()) {
+                for (List<NamedLocation> cell : cells.values()) {
+                    addWithin(cell, origin, radiusSquared, found);
+                }
+            } else {
+                for (int x = minX; x <= maxX; x++) {
+                    for (int z = minZ; z <= maxZ; z++) {
+                        List<NamedLocation> cell = cells.get(getCellKey(x, z));
+                        if (cell != null) {
+                            addWithin(cell, origin, radiusSquared, found);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static long getCellKey(int cellX, int cellZ) {
+        return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Add a location. Locations whose world is not loaded are ignored.
+     *
+     * @param loc The location
+     */
+    public void add(NamedLocation loc) {
+        World world = loc.getLocation().getWorld();
+        if (world == null) {
+            return;
+        }
+        Level[] levels = worlds.get(world.getName());
+        if (levels == null) {
+            levels = new Level[] {new Level(FINE_SHIFT), new Level(COARSE_SHIFT)};
+            worlds.put(world.getName(), levels);
+        }
+        for (Level level : levels) {
+            level.add(loc);
+        }
+    }
+
+    /**
+     * Remove a location, which must be in the same place as when it was added.
+     *
+     * @param loc The location
+     */
+    public void remove(NamedLocation loc) {
+        World world = loc.getLocation().getWorld();
+        Level[] levels = world == null ? null : worlds.get(world.getName());
+        if (levels == null) {
+            return;
+        }
+        for (Level level : levels) {
+            level.remove(loc);
+        }
+        if (levels[0].cells.isEmpty()) {
+            worlds.remove(world.getName());
+        }
+    }
+
+    public void clear() {
+        worlds.clear();
+    }
+
+    /**
+     * Find the locations closest to a point.
+     *
+     * @param origin The point, whose world is searched
+     * @param count The largest number of locations to return
+     * @return Up to {@code count} locations, closest first
+     */
+    public List<NamedLocation> getNearest(Location origin, int count) {
+        Level[] levels = getLevels(origin);
+        if (levels == null || count <= 0) {
+            return new ArrayList<NamedLocation>();
+        }
+        Nearest nearest = new Nearest(origin, count);
+        if (!levels[0].searchRings(nearest, MAX_FINE_RINGS)) {
+            nearest.clear();
+            levels[1].searchRings(nearest, Integer.MAX_VALUE);
+        }
+        return nearest.getSorted();
+    }
+
+    /**
+     * Find the locations within a distance of a point.
+     *
+     * @param origin The point, whose world is searched
+     * @param radius The largest distance
+     * @return The locations, closest first
+     */
+    public List<NamedLocation> getWithin(Location origin, double radius) {
+        Level[] levels = getLevels(origin);
+        List<NamedLocation> found = new ArrayList<NamedLocation>();
+        if (levels == null || radius < 0) {
+            return found;
+        }
+        // Large areas are covered by fewer lookups in the large cells
+        Level level = radius > 1 << COARSE_SHIFT ? levels[1] : levels[0];
+        level.searchBox(origin, radius, found);
+        sortByDistance(found, origin);
+        return found;
+    }
+
+    private Level[] getLevels(Location origin) {
+        return origin.getWorld() == null ? null : worlds.get(origin.getWorld().getName());
+    }
+
+    private static void addWithin(List<NamedLocation> cell, Location origin, double radiusSquared, List<NamedLocation> found) {
+        for (NamedLocation loc : cell) {
+            if (distanceSquared(loc, origin) <= radiusSquared) {
+                found.add(loc);
+            }
+        }
+    }
+
+    private static double distanceSquared(NamedLocation loc, Location origin) {
+        Location point = loc.getLocation();
+        double dx = point.getX() - origin.getX();
+        double dy = point.getY() - origin.getY();
+        double dz = point.getZ() - origin.getZ();
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static void sortByDistance(List<NamedLocation> locs, final Location origin) {
+        locs.sort(Comparator.comparingDouble(loc -> distanceSquared(loc, origin)));
+    }
+
+    /**
+     * The closest locations offered so far, kept in a heap with the furthest on top.
+     */
+    private static final class Nearest {
+        private final Location origin;
+        private final int count;
+        private final PriorityQueue<NamedLocation> heap;
+
+        private Nearest(final Location origin, int count) {
+            this.origin = origin;
+            this.count = count;
+            this.heap = new PriorityQueue<NamedLocation>(Math.min(count, 64),
+                    Comparator.comparingDouble((NamedLocation loc) -> distanceSquared(loc, origin)).reversed());
+        }
+
+        private void offer(List<NamedLocation> cell) {
+            for (NamedLocation loc : cell) {
+                if (heap.size() < count) {
+                    heap.add(loc);
+                } else if (distanceSquared(loc, origin) < distanceSquared(heap.peek(), origin)) {
+                    heap.poll();
+                    heap.add(loc);
+                }
+            }
+        }
+
+        private void clear() {
+            heap.clear();
+        }
+
+        private boolean isFull() {
+            return heap.size() >= count;
+        }
+
+        private double getWorstDistanceSquared() {
+            return distanceSquared(heap.peek(), origin);
+        }
+
+        private List<NamedLocation> getSorted() {
+            List<NamedLocation> sorted = new ArrayList<NamedLocation>(heap);
+            sortByDistance(sorted, origin);
+            return sorted;
+        }
+    }
+}
@@ -23,7 +23,10 @@
 import org.bukkit.entity.Player;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.UUID;
 
 public interface LocationManager<T> {
 
@@ -85,4 +88,79 @@
      * @return This location manager's locations.
      */
     public List<T> getLocations();
+
+    /**
+     * Gets the locations that this location manager has which belong to a player.
+     * By default this goes through {@link #getLocations()}, skipping anything that is not a {@link NamedLocation}.
+     *
+     * @param owner The UUID of the owner
+     * @return The owner's locations, sorted by name ignoring case
+     */
+    public default List<T> getLocations(UUID owner) {
+        List<T> owned = new ArrayList<T>();
+        for (T loc : getLocations()) {
+            if (loc instanceof NamedLocation && owner.equals(((NamedLocation) loc).getCreatorID())) {
+                owned.add(loc);
+            }
+        }
+        owned.sort(Comparator.comparing(loc -> ((NamedLocation) loc).getName(), String.CASE_INSENSITIVE_ORDER));
+        return owned;
+    }
+
+    /**
+     * Gets the locations closest to a point, in the point's world.
+     * By default this sorts all of {@link #getLocations()} by distance.
+     *
+     * @param origin The point
+     * @param count The largest number of locations to return
+     * @return Up to {@code count} locations, closest first
+     */
+    public default List<T> getNearest(Location origin, int count) {
+        List<T> nearest = byDistance(getLocations(), origin, Double.POSITIVE_INFINITY);
+        return nearest.size() > count ? new ArrayList<T>(nearest.subList(0, Math.max(0, count))) : nearest;
+    }
+
+    /**
+     * Gets the locations within a distance of a point, in the point's world.
+     * By default this filters and sorts all of {@link #getLocations()}.
+     *
+     * @param origin The point
+     * @param radius The largest distance
+     * @return The locations, closest first
+     */
+    public default List<T> getWithin(Location origin, double radius) {
+        return byDistance(getLocations(), origin, radius * radius);
+    }
+
+    /**
+     * Get the {@link NamedLocation}s in {@code origin}'s world that are no further than
+     * {@code maxDistanceSq} from it, closest first.
+     */
+    private static <T> List<T> byDistance(List<T> locs, Location origin, double maxDistanceSq) {
+        List<T> found = new ArrayList<T>();
+        if (origin.getWorld() == null) {
+            return found;
+        }
+        String worldName = origin.getWorld().getName();
+        for (T loc : locs) {
+            if (!(loc instanceof NamedLocation)) {
+                continue;
+            }
+            Location location = ((NamedLocation) loc).getLocation();
+            if (location.getWorld() != null && location.getWorld().getName().equals(worldName)
+                    && location.distanceSquared(origin) <= maxDistanceSq) {
+                found.add(loc);
+            }
+        }
+        found.sort(Comparator.comparingDouble(loc -> ((NamedLocation) loc).getLocation().distanceSquared(origin)));
+        return found;
+    }
+
+    /**
+     * Write out anything that is still buffered and release the manager's files.
+     *
+     * @throws IOException when an error occurs during IO
+     */
+    public default void close() throws IOException {
+    }
 }
@@ -22,6 +22,7 @@
 import com.sk89q.commandbook.util.InputUtil;
 import com.sk89q.commandbook.util.PaginatedResult;
 import com.sk89q.commandbook.util.entity.player.PlayerUtil;
+import com.sk89q.commandbook.util.entity.player.UUIDResolver;
 import com.sk89q.minecraft.util.commands.CommandContext;
 import com.sk89q.minecraft.util.commands.CommandException;
 import com.zachsthings.libcomponents.TemplateComponent;
@@ -38,6 +39,10 @@
 import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Parent class for components that use a RootLocationManager &lt;NamedLocation&gt; and deal with locations
  */
@@ -47,6 +52,7 @@ public abstract class LocationsComponent extends BukkitComponent {
     private final String name;
 
     private RootLocationManager<NamedLocation> manager;
+    private FlatFileLocationsManager.LocationsFactory factory;
 
     protected LocationsComponent(String name) {
         this.name = name;
@@ -55,14 +61,24 @@ protected LocationsComponent(String name) {
     @Override
     public void enable() {
         LocalConfiguration config = configure(new LocalConfiguration());
-        LocationManagerFactory<LocationManager<NamedLocation>> warpsFactory =
-                new FlatFileLocationsManager.LocationsFactory(CommandBook.inst().getDataFolder(), name + "s");
-        manager = new RootLocationManager<NamedLocation>(warpsFactory, config.perWorld);
+        factory = new FlatFileLocationsManager.LocationsFactory(CommandBook.inst().getDataFolder(), name + "s",
+                config.journal, config.journalCompactThreshold);
+        manager = new RootLocationManager<NamedLocation>(factory, config.perWorld,
+                TimeUnit.SECONDS.toMillis(config.perWorldUnloadDelay));
         CommandBook.registerEvents(new WorldListener());
     }
 
+    @Override
+    public void disable() {
+        manager.close();
+        factory.shutdown(30, TimeUnit.SECONDS);
+    }
+
     private static class LocalConfiguration extends ConfigurationBase {
         @Setting("per-world") public boolean perWorld;
+        @Setting("per-world-unload-delay") public int perWorldUnloadDelay = 300;
+        @Setting("journal.enabled") public boolean journal;
+        @Setting("journal.compact-after") public int journalCompactThreshold = 1000;
     }
 
 
@@ -73,12 +89,20 @@ public RootLocationManager<NamedLocation> getManager() {
     private class WorldListener implements Listener {
         @EventHandler
         public void loadWorld(WorldLoadEvent event) {
-            manager.updateWorlds(event.getWorld());
+            if (manager.isPerWorld()) {
+                manager.prefetch(event.getWorld());
+            } else {
+                manager.updateWorlds(event.getWorld());
+            }
         }
 
         @EventHandler
         public void unloadWorld(WorldUnloadEvent event) {
-            manager.updateWorlds(event.getWorld());
+            if (manager.isPerWorld()) {
+                manager.scheduleUnload(event.getWorld());
+            } else {
+                manager.updateWorlds(event.getWorld());
+            }
         }
     }
 
@@ -140,7 +164,37 @@ public void list(CommandContext args, CommandSender sender) throws CommandExcept
             }
             if (world == null) throw new CommandException("Error finding world to use!");
         }
-        getListResult().display(sender, getManager().getLocations(world), args.getInteger(0, 1));
+        List<NamedLocation> locations;
+        if (args.hasFlag('p')) {
+            locations = getManager().getLocations(world, matchOwner(args.getFlag('p')));
+        } else {
+            locations = getManager().getLocations(world);
+        }
+        getListResult().display(sender, locations, args.getInteger(0, 1));
+    }
+
+    /**
+     * Find the UUID of the owner of locations by name, without looking it up remotely.
+     *
+     * @param name The name or UUID of the owner
+     * @return The UUID
+     * @throws CommandException if the owner is not known
+     */
+    private static UUID matchOwner(String name) throws CommandException {
+        try {
+            return UUID.fromString(name);
+        } catch (IllegalArgumentException ignored) {
+        }
+        for (Player player : CommandBook.server().getOnlinePlayers()) {
+            if (player.getName().equalsIgnoreCase(name)) {
+                return player.getUniqueId();
+            }
+        }
+        UUID ID = UUIDResolver.getInstance().getCached(name);
+        if (ID == null) {
+            throw new CommandException("No player by the name of " + name + " is known.");
+        }
+        return ID;
     }
 
     public abstract PaginatedResult<NamedLocation> getListResult();
@@ -24,27 +24,72 @@
 import org.bukkit.entity.Player;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import static com.sk89q.commandbook.CommandBook.logger;
 
+/**
+ * Holds the location managers of a type of location, either one for all worlds or one per world.
+ *
+ * Per-world managers are loaded off the server thread when their world loads, or on the server
+ * thread the first time they are needed if that has not finished. Once a world has been unloaded
+ * and its manager has not been used for the unload delay, the manager is closed and dropped.
+ * All methods are meant to be called on the server thread.
+ */
 public class RootLocationManager<T> {
 
+    /**
+     * How long a per-world manager is kept after its world unloads, in milliseconds
+     */
+    public static final long DEFAULT_UNLOAD_DELAY = 5 * 60 * 1000;
+
     private LocationManager<T> rootManager;
     private Map<String, LocationManager<T>> managers;
+    /**
+     * Per-world managers that are being loaded off the server thread, by world name
+     */
+    private Map<String, FutureTask<LocationManager<T>>> loading;
+    /**
+     * When each per-world manager was last used, by world name
+     */
+    private Map<String, Long> lastUsed;
+    /**
+     * The world each per-world manager, loaded or loading, was made for, by world name
+     */
+    private Map<String, World> worlds;
     private final LocationManagerFactory<LocationManager<T>> factory;
     private final boolean perWorld;
+    private final long unloadDelay;
+    private volatile boolean closed;
 
     public RootLocationManager(LocationManagerFactory<LocationManager<T>> factory, boolean perWorld) {
+        this(factory, perWorld, DEFAULT_UNLOAD_DELAY);
+    }
+
+    /**
+     * @param factory The factory to create managers with
+     * @param perWorld Whether each world has its own manager
+     * @param unloadDelay How long a per-world manager is kept after its world unloads and it
+     *                    was last used, in milliseconds
+     */
+    public RootLocationManager(LocationManagerFactory<LocationManager<T>> factory, boolean perWorld, long unloadDelay) {
         this.factory = factory;
         this.perWorld = perWorld;
+        this.unloadDelay = Math.max(0, unloadDelay);
 
         if (perWorld) {
             managers = new HashMap<String, LocationManager<T>>();
+            loading = new HashMap<String, FutureTask<LocationManager<T>>>();
+            lastUsed = new HashMap<String, Long>();
+            worlds = new HashMap<String, World>();
             for (World world : CommandBook.server().getWorlds()) {
-                updateWorlds(world);
+                prefetch(world);
             }
         } else {
             rootManager = factory.createManager();
@@ -62,13 +107,54 @@ private LocationManager<T> getManager(World world) {
             return rootManager;
         }
 
-        LocationManager<T> manager = managers.get(world.getName());
+        String name = world.getName();
+        lastUsed.put(name, System.currentTimeMillis());
+        dropStale(world);
+        LocationManager<T> manager = managers.get(name);
 
         if (manager != null) {
             return manager;
         }
 
-        manager = factory.createManager(world);
+        FutureTask<LocationManager<T>> pending = loading.get(name);
+        if (pending != null) {
+            manager = finishLoading(name, pending);
+            if (manager != null) {
+                return manager;
+            }
+        }
+
+        manager = loadManager(world);
+        managers.put(name, manager);
+        worlds.put(name, world);
+        return manager;
+    }
+
+    /**
+     * Drop the manager of a world that was unloaded and loaded again before the manager was,
+     * since its locations still point at the old world.
+     *
+     * @param world The loaded world
+     */
+    private void dropStale(World world) {
+        String name = world.getName();
+        World previous = worlds.get(name);
+        if (previous == null || previous == world) {
+            return;
+        }
+        FutureTask<LocationManager<T>> pending = loading.get(name);
+        if (pending != null) {
+            finishLoading(name, pending);
+        }
+        worlds.remove(name);
+        LocationManager<T> manager = managers.remove(name);
+        if (manager != null) {
+            close(manager);
+        }
+    }
+
+    private LocationManager<T> loadManager(World world) {
+        LocationManager<T> manager = factory.createManager(world);
         manager.castWorld(world);
 
         try {
@@ -77,11 +163,104 @@ private LocationManager<T> getManager(World world) {
             logger().warning("Failed to load warps for world " + world.getName()
                     + ": " + e.getMessage());
         }
+        return manager;
+    }
+
+    /**
+     * Start loading the manager of a world off the server thread, if it is not loaded or loading.
+     *
+     * @param world The world
+     */
+    public void prefetch(final World world) {
+        if (!perWorld || closed) {
+            return;
+        }
+        final String name = world.getName();
+        lastUsed.put(name, System.currentTimeMillis());
+        dropStale(world);
+        if (managers.containsKey(name) || loading.containsKey(name)) {
+            return;
+        }
+        final FutureTask<LocationManager<T>> task = new FutureTask<LocationManager<T>>(() -> loadManager(world));
+        loading.put(name, task);
+        worlds.put(name, world);
+        CommandBook.server().getScheduler().runTaskAsynchronously(CommandBook.inst(), () -> {
+            task.run();
+            if (!closed) {
+                CommandBook.server().getScheduler().runTask(CommandBook.inst(), () -> finishLoading(name, task));
+            }
+        });
+    }
 
-        managers.put(world.getName(), manager);
+    /**
+     * Take over a manager loaded by {@link #prefetch(World)}, loading it here if the async
+     * task has not started yet or waiting for it if it has.
+     *
+     * @return The manager, or null if loading it failed
+     */
+    private LocationManager<T> finishLoading(String name, FutureTask<LocationManager<T>> task) {
+        if (loading.get(name) != task) {
+            // Already taken over, or dropped by close()
+            return managers.get(name);
+        }
+        loading.remove(name);
+        // The async task may not have started yet, as Bukkit only starts them on the next tick;
+        // run it here instead of waiting for it. This does nothing if it already started.
+        task.run();
+        LocationManager<T> manager;
+        try {
+            manager = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            logger().warning("Failed to load warps for world " + name + ": " + e.getCause());
+            return null;
+        }
+        managers.put(name, manager);
         return manager;
     }
 
+    /**
+     * Drop the manager of a world once the world has been unloaded and the manager has not been
+     * used for the unload delay.
+     *
+     * @param world The world that is unloading
+     */
+    public void scheduleUnload(World world) {
+        if (perWorld) {
+            scheduleUnload(world.getName(), unloadDelay);
+        }
+    }
+
+    private void scheduleUnload(final String name, long delay) {
+        // At least one tick, so the world is gone by the time this runs
+        long ticks = Math.max(1, delay / 50);
+        CommandBook.server().getScheduler().runTaskLater(CommandBook.inst(), () -> unload(name), ticks);
+    }
+
+    private void unload(String name) {
+        if (closed || CommandBook.server().getWorld(name) != null) {
+            return;
+        }
+        Long used = lastUsed.get(name);
+        long idle = used == null ? unloadDelay : System.currentTimeMillis() - used;
+        if (idle < unloadDelay) {
+            scheduleUnload(name, unloadDelay - idle);
+            return;
+        }
+        FutureTask<LocationManager<T>> pending = loading.get(name);
+        if (pending != null) {
+            finishLoading(name, pending);
+        }
+        lastUsed.remove(name);
+        worlds.remove(name);
+        LocationManager<T> manager = managers.remove(name);
+        if (manager != null) {
+            close(manager);
+        }
+    }
+
     public T get(World world, String id) {
         return getManager(world).get(id);
     }
@@ -95,8 +274,10 @@ public T create(String id, Location loc, Player player) {
 
     public boolean remove(World world, String id) {
         LocationManager<T> manager = getManager(world);
-        boolean ret = getManager(world).remove(id);
-        save(manager);
+        boolean ret = manager.remove(id);
+        if (ret) {
+            save(manager);
+        }
         return ret;
     }
 
@@ -112,6 +293,32 @@ public List<T> getLocations(World world) {
         return getManager(world).getLocations();
     }
 
+    public List<T> getLocations(World world, UUID owner) {
+        return getManager(world).getLocations(owner);
+    }
+
+    /**
+     * Find the locations closest to a point, in the point's world.
+     *
+     * @param origin The point
+     * @param count The largest number of locations to return
+     * @return Up to {@code count} locations, closest first
+     */
+    public List<T> getNearest(Location origin, int count) {
+        return getManager(origin.getWorld()).getNearest(origin, count);
+    }
+
+    /**
+     * Find the locations within a distance of a point, in the point's world.
+     *
+     * @param origin The point
+     * @param radius The largest distance
+     * @return The locations, closest first
+     */
+    public List<T> getWithin(Location origin, double radius) {
+        return getManager(origin.getWorld()).getWithin(origin, radius);
+    }
+
     public boolean isPerWorld() {
         return perWorld;
     }
@@ -119,4 +326,28 @@ public boolean isPerWorld() {
     public void updateWorlds(World world) {
         getManager(world).updateWorlds();
     }
+
+    /**
+     * Close every loaded manager, waiting for those still loading.
+     */
+    public void close() {
+        closed = true;
+        if (perWorld) {
+            for (Map.Entry<String, FutureTask<LocationManager<T>>> entry : new HashMap<String, FutureTask<LocationManager<T>>>(loading).entrySet()) {
+                finishLoading(entry.getKey(), entry.getValue());
+            }
+        }
+        Iterable<LocationManager<T>> toClose = perWorld ? managers.values() : Collections.singletonList(rootManager);
+        for (LocationManager<T> manager : toClose) {
+            close(manager);
+        }
+    }
+
+    private void close(LocationManager<T> manager) {
+        try {
+            manager.close();
+        } catch (IOException e) {
+            logger().warning("Failed to close warps: " + e.getMessage());
+        }
+    }
 }
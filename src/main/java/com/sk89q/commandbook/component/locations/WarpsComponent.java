@@ -35,9 +35,18 @@
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.util.List;
+
 @ComponentInformation(friendlyName = "Warps", desc = "Provides warps functionality")
 public class WarpsComponent extends LocationsComponent {
 
+    /**
+     * How many of the closest warps are checked first for one a player without access to every
+     * warp may use. The search doubles from there until one is found or the world runs out of warps.
+     */
+    private static final int NEAREST_CANDIDATES = 50;
+    private static final int DEFAULT_NEAR_RADIUS = 200;
+
     @InjectComponent private SessionComponent sessions;
     public WarpsComponent() {
         super("Warp");
@@ -50,7 +59,7 @@ public void enable() {
 
     public class Commands {
         @Command(aliases = {"warp"},
-                usage = "[world] [target] <warp>", desc = "Teleport to a warp",
+                usage = "[world] [target] <warp|nearest>", desc = "Teleport to a warp",
                 flags = "s", min = 1, max = 3)
         public void warp(CommandContext args, CommandSender sender) throws CommandException {
             Iterable<Player> targets = null;
@@ -62,6 +71,13 @@ public void warp(CommandContext args, CommandSender sender) throws CommandExcept
                 Player player = PlayerUtil.checkPlayer(sender);
                 targets = Lists.newArrayList(player);
                 warp = getManager().get(player.getWorld(), args.getString(0));
+                // A warp that is actually called nearest still wins
+                if (warp == null && args.getString(0).equalsIgnoreCase("nearest")) {
+                    warp = getNearestUsable(sender, player.getLocation());
+                    if (warp == null) {
+                        throw new CommandException("There are no warps you can use in this world.");
+                    }
+                }
             } else if (args.argsLength() == 2) {
                 targets = InputUtil.PlayerParser.matchPlayers(sender, args.getString(0));
                 if (getManager().isPerWorld()) {
@@ -98,6 +114,29 @@ public void warp(CommandContext args, CommandSender sender) throws CommandExcept
             (new TeleportPlayerIterator(sender, loc, args.hasFlag('s'))).iterate(targets);
         }
 
+        /**
+         * Find the closest warp that the sender may teleport to.
+         */
+        private NamedLocation getNearestUsable(CommandSender sender, Location origin) {
+            boolean allWarps = CommandBook.inst().hasPermission(sender, "commandbook.warp.teleport");
+            int count = allWarps ? 1 : NEAREST_CANDIDATES;
+            int checked = 0;
+            while (true) {
+                List<NamedLocation> nearest = getManager().getNearest(origin, count);
+                // The closer warps were checked by the narrower searches already
+                for (NamedLocation warp : nearest.subList(Math.min(checked, nearest.size()), nearest.size())) {
+                    if (allWarps || CommandBook.inst().hasPermission(sender, "commandbook.warp.warp." + warp.getName())) {
+                        return warp;
+                    }
+                }
+                if (nearest.size() < count) {
+                    return null;
+                }
+                checked = nearest.size();
+                count = count > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : count * 2;
+            }
+        }
+
         @Command(aliases = {"setwarp"}, usage = "<warp> [location]", desc = "Set a warp", min = 1, max = 2)
         @CommandPermissions({"commandbook.warp.set"})
         public void setWarp(CommandContext args, CommandSender sender) throws CommandException {
@@ -172,6 +211,29 @@ public void removeCmd(CommandContext args, CommandSender sender) throws CommandE
         }
 
 
+        @Command(aliases = {"near", "nearby"}, usage = "[radius] [page]",
+                desc = "List the warps near you", min = 0, max = 2)
+        @CommandPermissions({"commandbook.warp.list"})
+        public void nearCmd(CommandContext args, CommandSender sender) throws CommandException {
+            final Location origin = PlayerUtil.checkPlayer(sender).getLocation();
+            int radius = args.getInteger(0, DEFAULT_NEAR_RADIUS);
+            if (radius < 1) {
+                throw new CommandException("The radius must be at least 1.");
+            }
+            List<NamedLocation> warps = getManager().getWithin(origin, radius);
+            if (warps.isEmpty()) {
+                throw new CommandException("There are no warps within " + radius + " blocks.");
+            }
+            new PaginatedResult<NamedLocation>(ChatColor.GOLD + "Warps within " + radius + " blocks") {
+                @Override
+                public String format(NamedLocation entry) {
+                    return ChatColor.BLUE + entry.getName().toUpperCase() + ChatColor.YELLOW
+                            + " (" + ChatColor.WHITE + (int) Math.round(entry.getLocation().distance(origin))
+                            + ChatColor.YELLOW + " blocks away)";
+                }
+            }.display(sender, warps, args.getInteger(1, 1));
+        }
+
         @Command(aliases = {"list", "show"}, usage = "[ -p owner] [-w world] [page]",
                 desc = "List warps", flags = "p:w:", min = 0, max = 1 )
         @CommandPermissions({"commandbook.warp.list"})
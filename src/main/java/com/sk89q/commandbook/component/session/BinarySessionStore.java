@@ -0,0 +1,362 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Stores every sender's sessions as records appended to a few large memory-mapped segment files,
+ * instead of one YAML file per sender.
+ *
+ * Each record holds one sender's data: its key, then the encoded data of each session, so a
+ * load copies out the bytes of each session and only decodes those that are used. Saving a
+ * sender appends a new record and points the in-memory index at it. The index is rebuilt by
+ * scanning the segments on startup. Once most of the space is taken by replaced records, the
+ * live records are copied into a new generation of segments and the old ones are deleted.
+ *
+ * A record is laid out as its magic number, payload length, payload and a CRC32 of the payload.
+ * A record that was only partly written is detected by its CRC and ignored.
+ */
+public class BinarySessionStore implements SessionStore {
+    private static final int RECORD_MAGIC = 0x43425352;
+    private static final int RECORD_OVERHEAD = 12;
+    private static final short TOMBSTONE = -1;
+    private static final String CURRENT_FILE = "CURRENT";
+
+    private final File directory;
+    private final int segmentSize;
+
+    private final List<FileChannel> channels = new ArrayList<FileChannel>();
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private int generation;
+    private int writePosition;
+    private long totalBytes;
+    private long liveBytes;
+
+    /**
+     * Where the latest record of a sender is.
+     */
+    private static final class Location {
+        private final int segment;
+        private final int offset;
+        private final int length;
+
+        private Location(int segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param directory The directory the segment files are kept in
+     * @param segmentSize The size of each segment file, which limits the size of a single sender's data
+     */
+    public BinarySessionStore(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = Math.max(1024 * 1024, segmentSize);
+    }
+
+    private File getSegmentFile(int generation, int segment) {
+        return new File(directory, "segment-" + generation + "-" + segment + ".dat");
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        File current = new File(directory, CURRENT_FILE);
+        if (current.exists()) {
+            try {
+                generation = Integer.parseInt(new String(Files.readAllBytes(current.toPath()), StandardCharsets.UTF_8).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid " + current.getAbsolutePath());
+            }
+        }
+        deleteOtherGenerations();
+
+        for (int segment = 0; getSegmentFile(generation, segment).exists(); segment++) {
+            mapSegment(getSegmentFile(generation, segment));
+            writePosition = scan(segment);
+        }
+        if (segments.isEmpty()) {
+            mapSegment(getSegmentFile(generation, 0));
+            writePosition = 0;
+        }
+    }
+
+    /**
+     * Remove segment files left over from a compaction that did not finish, or whose
+     * deletion failed because they were still mapped.
+     */
+    private void deleteOtherGenerations() {
+        final String prefix = "segment-" + generation + "-";
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && !name.startsWith(prefix));
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger().warning("Could not delete old session segment " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private MappedByteBuffer mapSegment(File file) throws IOException {
+        @SuppressWarnings("resource")
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        channels.add(channel);
+        segments.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Index the records of a segment.
+     *
+     * @return The offset just past the last intact record
+     */
+    private int scan(int segment) {
+        ByteBuffer buffer = segments.get(segment).duplicate();
+        int position = 0;
+        while (position + RECORD_OVERHEAD <= segmentSize && buffer.getInt(position) == RECORD_MAGIC) {
+            int length = buffer.getInt(position + 4);
+            if (length < 0 || position + RECORD_OVERHEAD + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(position + 8);
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 8 + length)) {
+                logger().warning("Ignoring a damaged session record in segment " + segment + " at " + position);
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            String key = readString(record);
+            short count = record.getShort();
+            int size = RECORD_OVERHEAD + length;
+            totalBytes += size;
+            Location previous = count == TOMBSTONE
+                    ? index.remove(key)
+                    : index.put(key, new Location(segment, position, size));
+            if (previous != null) {
+                liveBytes -= previous.length;
+            }
+            if (count != TOMBSTONE) {
+                liveBytes += size;
+            }
+            position += size;
+        }
+        return position;
+    }
+
+    private static String getKey(String type, String commander) {
+        return type + '/' + commander;
+    }
+
+    @Override
+    public synchronized SessionData load(String type, String commander) throws IOException {
+        Location location = index.get(getKey(type, commander));
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = segments.get(location.segment).duplicate();
+        record.position(location.offset + 8);
+        record.limit(location.offset + location.length - 4);
+        readString(record);
+        int count = record.getShort();
+        SessionData data = new SessionData();
+        for (int i = 0; i < count; i++) {
+            String path = readString(record);
+            byte[] encoded = new byte[record.getInt()];
+            record.get(encoded);
+            data.putEncoded(path, encoded);
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void save(String type, String commander, SessionData data) throws IOException {
+        String key = getKey(type, commander);
+        if (data.isEmpty() && !index.containsKey(key)) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        writeString(payload, key);
+        if (data.isEmpty()) {
+            payload.writeShort(TOMBSTONE);
+        } else {
+            payload.writeShort(data.size());
+            for (String path : data.keySet()) {
+                writeString(payload, path);
+                byte[] encoded = data.getEncoded(path);
+                payload.writeInt(encoded.length);
+                payload.write(encoded);
+            }
+        }
+        payload.flush();
+
+        Location location = append(bytes.toByteArray());
+        Location previous = data.isEmpty() ? index.remove(key) : index.put(key, location);
+        if (previous != null) {
+            liveBytes -= previous.length;
+        }
+        if (!data.isEmpty()) {
+            liveBytes += location.length;
+        }
+
+        // Compact once more than half of at least two segments' worth of records has been replaced
+        if (totalBytes > 2L * segmentSize && liveBytes < totalBytes / 2) {
+            compact();
+        }
+    }
+
+    private Location append(byte[] payload) throws IOException {
+        int size = RECORD_OVERHEAD + payload.length;
+        if (size > segmentSize) {
+            throw new IOException("Session data of " + size + " bytes does not fit in a segment");
+        }
+        if (writePosition + size > segmentSize) {
+            mapSegment(getSegmentFile(generation, segments.size()));
+            writePosition = 0;
+        }
+        int segment = segments.size() - 1;
+        writeRecord(segments.get(segment), writePosition, payload);
+        Location location = new Location(segment, writePosition, size);
+        writePosition += size;
+        totalBytes += size;
+        return location;
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, int position, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.putInt(RECORD_MAGIC);
+        target.putInt(payload.length);
+        target.put(payload);
+        target.putInt((int) crc.getValue());
+        // Make sure leftovers of a damaged record are not read as the next record
+        if (target.remaining() >= 4) {
+            target.putInt(0);
+        }
+    }
+
+    /**
+     * Copy the live records into a new generation of segments and delete the old ones.
+     */
+    private void compact() throws IOException {
+        int newGeneration = generation + 1;
+        List<FileChannel> oldChannels = new ArrayList<FileChannel>(channels);
+        List<MappedByteBuffer> oldSegments = new ArrayList<MappedByteBuffer>(segments);
+        Map<String, Location> oldIndex = new HashMap<String, Location>(index);
+        int oldGeneration = generation;
+        int oldSegmentCount = segments.size();
+
+        channels.clear();
+        segments.clear();
+        index.clear();
+        generation = newGeneration;
+        totalBytes = 0;
+        liveBytes = 0;
+        mapSegment(getSegmentFile(generation, 0));
+        writePosition = 0;
+
+        for (Map.Entry<String, Location> entry : oldIndex.entrySet()) {
+            Location old = entry.getValue();
+            ByteBuffer source = oldSegments.get(old.segment).duplicate();
+            byte[] payload = new byte[old.length - RECORD_OVERHEAD];
+            source.position(old.offset + 8);
+            source.get(payload);
+            Location location = append(payload);
+            index.put(entry.getKey(), location);
+            liveBytes += location.length;
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+
+        File current = new File(directory, CURRENT_FILE);
+        File tempFile = new File(directory, CURRENT_FILE + ".tmp");
+        Files.write(tempFile.toPath(), String.valueOf(generation).getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(tempFile.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        for (FileChannel channel : oldChannels) {
+            channel.close();
+        }
+        // Files that are still mapped may not be deletable yet; open() retries next time
+        for (int segment = 0; segment < oldSegmentCount; segment++) {
+            getSegmentFile(oldGeneration, segment).delete();
+        }
+    }
+
+    /**
+     * @return whether nothing is stored
+     */
+    public synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+        segments.clear();
+        index.clear();
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -20,9 +20,11 @@
 
 import com.sk89q.commandbook.util.entity.player.UUIDUtil;
 import com.zachsthings.libcomponents.config.ConfigurationBase;
+import com.zachsthings.libcomponents.config.ConfigurationNode;
 import com.zachsthings.libcomponents.config.Setting;
 import org.bukkit.command.CommandSender;
 
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 public abstract class PersistentSession extends ConfigurationBase {
@@ -34,6 +36,10 @@ public abstract class PersistentSession extends ConfigurationBase {
     private CommandSender sender;
     @Deprecated private String senderName;
     private String uniqueName;
+    /**
+     * The values of the tracked settings when this session was last loaded or saved
+     */
+    private Object[] cleanValues;
 
     protected PersistentSession(long maxTime) {
         this.maxTime = maxTime;
@@ -47,6 +53,74 @@ public boolean isRecent() {
         return maxTime == -1 || getGoneTime() < maxTime;
     }
 
+    /**
+     * @return The time at which this session stops being {@link #isRecent() recent},
+     *         or {@link Long#MAX_VALUE} if it always is
+     */
+    public long getExpiryTime() {
+        return maxTime == -1 ? Long.MAX_VALUE : lastUpdate + maxTime;
+    }
+
+    @Override
+    public void load(ConfigurationNode node) {
+        super.load(node);
+        markClean();
+    }
+
+    @Override
+    public void save(ConfigurationNode node) {
+        super.save(node);
+        markClean();
+    }
+
+    /**
+     * Whether any setting other than last-update has changed since this session was last
+     * loaded or saved. A session that has never been loaded or saved is always dirty.
+     *
+     * @return whether the session needs saving
+     */
+    public boolean isDirty() {
+        Object[] clean = cleanValues;
+        if (clean == null) {
+            return true;
+        }
+        SessionType type = SessionType.of(getClass());
+        for (int i = 0; i < clean.length; i++) {
+            if (!Objects.deepEquals(clean[i], type.getSetting(this, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the current settings as saved.
+     */
+    public void markClean() {
+        SessionType type = SessionType.of(getClass());
+        Object[] values = new Object[type.getSettingCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = copyValue(type.getSetting(this, i));
+        }
+        cleanValues = values;
+    }
+
+    /**
+     * Copy mutable containers so that later changes to them are noticed.
+     */
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            return new HashMap<Object, Object>((Map<?, ?>) value);
+        } else if (value instanceof Set) {
+            return new HashSet<Object>((Set<?>) value);
+        } else if (value instanceof Collection) {
+            return new ArrayList<Object>((Collection<?>) value);
+        } else if (value instanceof Object[]) {
+            return ((Object[]) value).clone();
+        }
+        return value;
+    }
+
     public CommandSender getOwner() {
         return sender;
     }
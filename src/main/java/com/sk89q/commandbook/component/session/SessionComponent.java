@@ -19,68 +19,221 @@
 package com.sk89q.commandbook.component.session;
 
 import com.sk89q.commandbook.CommandBook;
-import com.sk89q.commandbook.util.entity.player.UUIDUtil;
 import com.sk89q.minecraft.util.commands.Command;
 import com.sk89q.minecraft.util.commands.CommandContext;
 import com.sk89q.minecraft.util.commands.CommandException;
-import com.sk89q.util.yaml.YAMLFormat;
 import com.sk89q.util.yaml.YAMLNode;
-import com.sk89q.util.yaml.YAMLProcessor;
 import com.zachsthings.libcomponents.ComponentInformation;
 import com.zachsthings.libcomponents.bukkit.BukkitComponent;
 import com.zachsthings.libcomponents.bukkit.YAMLNodeConfigurationNode;
-import org.bukkit.Bukkit;
+import com.zachsthings.libcomponents.config.ConfigurationBase;
+import com.zachsthings.libcomponents.config.Setting;
 import org.bukkit.ChatColor;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 @ComponentInformation(friendlyName = "Sessions", desc = "Handles player sessions")
 public class SessionComponent extends BukkitComponent implements Runnable, Listener {
+    /**
+     * How often, in ticks, idle session data is dropped from the cache
+     */
     public static final long CHECK_FREQUENCY = 60 * 20;
 
-    private final Map<Class<? extends CommandSender>, Map<String, Map<Class<? extends PersistentSession>, PersistentSession>>>
-            sessions = new ConcurrentHashMap<Class<? extends CommandSender>, Map<String, Map<Class<? extends PersistentSession>, PersistentSession>>>();
+    /**
+     * Each sender's {@link SessionRegistry.Slots} are locked while creating or removing its sessions,
+     * so senders never wait on each other. Looking up an existing session needs no lock.
+     */
+    private final SessionRegistry registry = new SessionRegistry();
     private final Map<Class<? extends PersistentSession>, SessionFactory<?>>
             sessionFactories = new ConcurrentHashMap<Class<? extends PersistentSession>, SessionFactory<?>>();
     private File sessionsDir;
-    private final Map<String, Map<String, YAMLProcessor>> sessionDataStores = new HashMap<String, Map<String, YAMLProcessor>>();
+    private SessionStore store;
+    private SessionDataCache dataCache;
+    private SessionIO io;
+    /**
+     * The sender type of players, known once the first player has had a session
+     */
+    private volatile String playerType;
+    private LocalConfiguration config = new LocalConfiguration();
+    /**
+     * The sessions of disconnected senders, in the order they stop being recent. Only used on the server thread.
+     */
+    private final PriorityQueue<Expiry> expiryQueue = new PriorityQueue<Expiry>();
+    private long ticksSinceEviction;
+    private final AtomicLong sessionsSaved = new AtomicLong();
+    private final AtomicLong sessionsSkipped = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
 
     @Override
     public void enable() {
-        CommandBook.server().getScheduler().scheduleSyncRepeatingTask(CommandBook.inst(), this, CHECK_FREQUENCY, CHECK_FREQUENCY);
+        config = configure(new LocalConfiguration());
+        CommandBook.server().getScheduler().scheduleSyncRepeatingTask(CommandBook.inst(), this, 1, 1);
         CommandBook.registerEvents(this);
         registerCommands(Commands.class);
         sessionsDir = new File(CommandBook.inst().getDataFolder(), "sessions");
         if (!sessionsDir.exists()) {
             sessionsDir.mkdirs();
         }
+        open(createStore());
+        for (Player player : CommandBook.server().getOnlinePlayers()) {
+            playerType = getType(player.getClass());
+            break;
+        }
+    }
+
+    /**
+     * Set up the session files around {@code store}. This needs no server, so the sessions
+     * can also be driven without one.
+     */
+    void open(SessionStore store) {
+        io = new SessionIO(config.ioThreads);
+        dataCache = new SessionDataCache(config.cacheMaxFiles, TimeUnit.MINUTES.toMillis(config.cacheIdleMinutes));
+        this.store = store;
     }
 
     @Override
     public void disable() {
         for (Player player : CommandBook.server().getOnlinePlayers()) {
-            String type = getType(player.getClass());
-            for (PersistentSession session : getSessions(player)) {
-                session.handleDisconnect();
-                session.save(new YAMLNodeConfigurationNode(getSessionConfiguration(type, UUIDUtil.toUniqueString(player), session.getClass())));
+            // Also written when unchanged, so that the time they were last seen is kept across restarts
+            saveSessions(player, true);
+        }
+        writeBack(dataCache.clear());
+        if (!io.shutdown(config.shutdownTimeout, TimeUnit.SECONDS)) {
+            CommandBook.logger().warning("Not every session was saved within " + config.shutdownTimeout + " seconds!");
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.WARNING, "Failed to close the session store", e);
+        }
+    }
+
+    private SessionStore createStore() {
+        YAMLSessionStore yaml = new YAMLSessionStore(sessionsDir);
+        if (config.storage.equalsIgnoreCase("shared")) {
+            if (config.sharedDirectory.isEmpty()) {
+                CommandBook.logger().severe("No shared.directory is set for shared session storage, falling back to YAML files!");
+            } else {
+                SharedSessionStore shared = new SharedSessionStore(new File(config.sharedDirectory));
+                try {
+                    shared.open();
+                    return shared;
+                } catch (IOException e) {
+                    CommandBook.logger().log(Level.SEVERE, "Failed to open the shared session store, falling back to YAML files!", e);
+                }
             }
-            YAMLProcessor proc = getUserConfiguration(type, UUIDUtil.toUniqueString(player), false);
-            if (proc != null) {
-                proc.save();
+        } else if (config.storage.equalsIgnoreCase("binary")) {
+            BinarySessionStore binary = new BinarySessionStore(new File(sessionsDir, "binary"),
+                    config.binarySegmentMegabytes * 1024 * 1024);
+            try {
+                binary.open();
+                if (binary.isEmpty()) {
+                    migrate(yaml, binary);
+                }
+                return binary;
+            } catch (IOException e) {
+                CommandBook.logger().log(Level.SEVERE, "Failed to open the binary session store, falling back to YAML files!", e);
             }
+        } else if (!config.storage.equalsIgnoreCase("yaml")) {
+            CommandBook.logger().warning("Unknown session storage '" + config.storage + "', using YAML files!");
         }
+        yaml.open();
+        return yaml;
+    }
+
+    /**
+     * Copy every YAML session file into a new binary store. The YAML files are left in place.
+     */
+    private void migrate(YAMLSessionStore from, BinarySessionStore to) throws IOException {
+        List<String[]> senders = from.list();
+        if (senders.isEmpty()) {
+            return;
+        }
+        CommandBook.logger().info("Copying " + senders.size() + " session files into the binary session store...");
+        int copied = 0;
+        for (String[] sender : senders) {
+            SessionData data;
+            try {
+                data = from.load(sender[0], sender[1]);
+            } catch (IOException e) {
+                CommandBook.logger().warning("Skipping unreadable session file of " + sender[1] + ": " + e.getMessage());
+                continue;
+            }
+            if (data != null && !data.isEmpty()) {
+                to.save(sender[0], sender[1], data);
+                ++copied;
+            }
+        }
+        CommandBook.logger().info("Copied the sessions of " + copied + " senders into the binary session store.");
+    }
+
+    @Override
+    public void reload() {
+        super.reload();
+        configure(config);
+        dataCache.setLimits(config.cacheMaxFiles, TimeUnit.MINUTES.toMillis(config.cacheIdleMinutes));
+    }
+
+    private static class LocalConfiguration extends ConfigurationBase {
+        @Setting("io-threads") public int ioThreads = 2;
+        @Setting("shutdown-timeout-seconds") public int shutdownTimeout = 10;
+        @Setting("cache.max-files") public int cacheMaxFiles = 1000;
+        @Setting("cache.idle-minutes") public int cacheIdleMinutes = 30;
+        @Setting("gc.sessions-per-tick") public int gcSessionsPerTick = 50;
+        @Setting("storage") public String storage = "yaml";
+        @Setting("binary.segment-size-mb") public int binarySegmentMegabytes = 16;
+        @Setting("shared.directory") public String sharedDirectory = "";
+    }
+
+    /**
+     * Get the cache of loaded session files, for its statistics.
+     *
+     * @return The cache
+     */
+    public SessionDataCache getDataCache() {
+        return dataCache;
+    }
+
+    /**
+     * @return How many sessions have been serialized because they changed
+     */
+    public long getSessionsSaved() {
+        return sessionsSaved.get();
+    }
+
+    /**
+     * @return How many sessions were not serialized because they had not changed since they were last saved
+     */
+    public long getSessionsSkipped() {
+        return sessionsSkipped.get();
+    }
+
+    /**
+     * @return How many session files have been written
+     */
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    /**
+     * @return How many session files were not written because nothing in them changed
+     */
+    public long getFilesSkipped() {
+        return filesSkipped.get();
     }
 
     // -- Getting sessions
@@ -139,30 +292,46 @@ public Map<String, AdministrativeSession> getAdminSessions() {
      */
     public <T extends PersistentSession> Map<String, T> getSessions(Class<T> type) {
         Map<String, T> ret = new HashMap<String, T>();
-        synchronized (sessions) {
-            for (Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> parent : sessions.values()) {
-                for (Map.Entry<String, Map<Class<? extends PersistentSession>, PersistentSession>> entry : parent.entrySet()) {
-                    PersistentSession session = entry.getValue().get(type);
-                    if (session != null) {
-                        ret.put(entry.getKey(), type.cast(session));
-                    }
-                }
+        int typeID = SessionRegistry.getTypeID(type);
+        for (SessionRegistry.Slots slots : registry.getAll()) {
+            PersistentSession session = slots.get(typeID);
+            if (session != null) {
+                ret.put(slots.getUniqueName(), type.cast(session));
             }
         }
         return ret;
     }
 
+    /**
+     * Get a live view of the sessions of a type, for tasks that go over every session regularly.
+     * Unlike {@link #getSessions(Class)}, nothing is copied and no lock is taken.
+     *
+     * The view is weakly consistent: iterating it never throws
+     * {@link java.util.ConcurrentModificationException} and may run alongside sessions being created
+     * and removed on other threads. Every session that exists for the whole iteration is returned
+     * exactly once; sessions created or removed while iterating may or may not be returned. A
+     * session that is returned may have been removed by the time it is used. The view cannot be
+     * changed through its iterators.
+     *
+     * @param type The type of session to get
+     * @param <T> The type parameter for the session
+     * @return The sessions of the type
+     */
+    public <T extends PersistentSession> Iterable<T> getSessionView(Class<T> type) {
+        return registry.getAll(type);
+    }
+
     /**
      * Return the sessions which currently exist for the specified user
      * @param user The user to get a session for
      * @return The sessions which currently exist for this user
      */
     public Collection<PersistentSession> getSessions(CommandSender user) {
-        Map<Class<? extends PersistentSession>, PersistentSession> ret = getSessionM(user.getClass()).get(UUIDUtil.toUniqueString(user));
-        if (ret == null) {
-            ret = Collections.emptyMap();
+        SessionRegistry.Slots slots = registry.get(user);
+        if (slots == null) {
+            return Collections.emptyList();
         }
-        return Collections.unmodifiableCollection(ret.values());
+        return Collections.unmodifiableCollection(slots.getSessions());
     }
 
     /**
@@ -175,28 +344,41 @@ public Collection<PersistentSession> getSessions(CommandSender user) {
      * @return The player's session, or null if the session could not be correctly created
      */
     public <T extends PersistentSession> T getSession(Class<T> type, CommandSender user) {
-        synchronized (sessions) {
-            Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> typeMap = getSessionM(user.getClass());
-            Map<Class<? extends PersistentSession>, PersistentSession> userSessions = typeMap.get(UUIDUtil.toUniqueString(user));
-            if (userSessions == null) {
-                userSessions = new HashMap<Class<? extends PersistentSession>, PersistentSession>();
-                typeMap.put(UUIDUtil.toUniqueString(user), userSessions);
+        int typeID = SessionRegistry.getTypeID(type);
+
+        // Do we have an existing session?
+        SessionRegistry.Slots slots = registry.get(user);
+        if (slots != null) {
+            PersistentSession session = slots.get(typeID);
+            if (session != null) {
+                return type.cast(session);
             }
+        }
 
-            // Do we have an existing session?
-            T session = type.cast(userSessions.get(type));
-            if (session == null) {
-                session = getSessionFactory(type).createSession(user);
+        while (true) {
+            slots = registry.getOrCreate(user);
+            synchronized (slots) {
+                T session = type.cast(slots.get(typeID));
                 if (session != null) {
-                    YAMLNode node = getSessionConfiguration(getType(user.getClass()), UUIDUtil.toUniqueString(user), type, false);
-                    if (node != null) {
-                       session.load(new YAMLNodeConfigurationNode(node));
-                    }
-                    session.handleReconnect(user);
-                    userSessions.put(type, session);
+                    return session;
+                }
+                session = getSessionFactory(type).createSession(user);
+                if (session == null) {
+                    return null;
+                }
+                YAMLNode node = getSessionConfiguration(slots.getSenderType(), slots.getUniqueName(), type, false);
+                if (node != null) {
+                   session.load(new YAMLNodeConfigurationNode(node));
+                } else {
+                    // Nothing is stored, which is the same as storing the defaults
+                    session.markClean();
+                }
+                session.handleReconnect(user);
+                // Only fails if the sender's sessions were removed in the meantime
+                if (slots.put(typeID, session)) {
+                    return session;
                 }
             }
-            return session;
         }
     }
 
@@ -211,14 +393,11 @@ public <T extends PersistentSession> T getSession(Class<T> type, CommandSender u
      */
     @SuppressWarnings("unchecked")
     public <T extends PersistentSession> SessionFactory<T> getSessionFactory(Class<T> type) {
-        synchronized (sessionFactories) {
-            SessionFactory<?> factory = sessionFactories.get(type);
-            if (factory == null) {
-                factory = new ReflectiveSessionFactory(type);
-                sessionFactories.put(type, factory);
-            }
-            return (SessionFactory<T>) factory;
+        SessionFactory<?> factory = sessionFactories.get(type);
+        if (factory == null) {
+            factory = sessionFactories.computeIfAbsent(type, ReflectiveSessionFactory::new);
         }
+        return (SessionFactory<T>) factory;
     }
 
     public <T extends PersistentSession> void registerSessionFactory(Class<T> type, SessionFactory<T> factory) {
@@ -231,49 +410,64 @@ public <T extends PersistentSession> void registerSessionFactory(Class<T> type,
      * @param user The user to add the session to
      */
     public void addSession(PersistentSession session, CommandSender user) {
-        Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> typeMap = getSessionM(user.getClass());
-        Map<Class<? extends PersistentSession>, PersistentSession> userSessions = typeMap.get(UUIDUtil.toUniqueString(user));
-        if (userSessions == null) {
-            userSessions = new HashMap<Class<? extends PersistentSession>, PersistentSession>();
-            typeMap.put(UUIDUtil.toUniqueString(user), userSessions);
+        int typeID = SessionRegistry.getTypeID(session.getClass());
+        while (!registry.getOrCreate(user).put(typeID, session)) {
+            // The sender's sessions were removed in the meantime, try again with new ones
         }
-        userSessions.put(session.getClass(), session);
-
     }
 
     // Persistence-related methods
-    private YAMLProcessor getUserConfiguration(String type, String commander, boolean create) {
-        Map<String, YAMLProcessor> typeMap = getDataStore(type);
-        YAMLProcessor processor = typeMap.get(commander);
-        if (processor == null) {
-            File userFile = new File(sessionsDir.getPath() + File.separator + type + File.separator + commander + ".yml");
-            if (!userFile.exists()) {
-                File dir = userFile.getParentFile();
-                if (!dir.exists()) {
-                    dir.mkdirs();
-                }
-
-                if (!migrate(commander, userFile)) {
-                    if (!create) {
-                        return null;
-                    }
-
-                    try {
-                        userFile.createNewFile();
-                    } catch (IOException e) {
-                        CommandBook.logger().log(Level.WARNING, "Could not create sessions persistence file for user " + commander, e);
-                    }
-                }
+    private YAMLNode getUserConfiguration(String type, String commander, boolean create) {
+        SessionData data = dataCache.get(type, commander);
+        if (data == null) {
+            // The data may have just been evicted and still be being written
+            io.await(commander, config.shutdownTimeout, TimeUnit.SECONDS);
+            data = loadUserConfiguration(type, commander, create);
+            if (data == null) {
+                return null;
             }
-            processor = new YAMLProcessor(userFile, false, YAMLFormat.COMPACT);
-            try {
-                processor.load();
-            } catch (IOException e) {
-                CommandBook.logger().log(Level.WARNING, "Error loading sessions persistence file for user " + commander, e);
+        }
+        return new YAMLNode(data, false);
+    }
+
+    /**
+     * Read a sender's data from the store into the cache. Unlike {@link #getUserConfiguration(String, String, boolean)},
+     * this can be called from a {@link SessionIO} task.
+     */
+    private SessionData loadUserConfiguration(String type, String commander, boolean create) {
+        SessionData data;
+        try {
+            data = store.load(type, commander);
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.WARNING, "Error loading sessions persistence file for user " + commander, e);
+            data = null;
+        }
+        if (data == null) {
+            if (!create) {
+                return null;
             }
-            typeMap.put(commander, processor);
+            data = new SessionData();
+        }
+        // Another thread may have loaded the same data in the meantime
+        data = dataCache.putIfAbsent(type, commander, data);
+        if (dataCache.isOverfull()) {
+            evictSessionFiles(SessionDataCache.getKey(type, commander));
+        }
+        return data;
+    }
+
+    /**
+     * Read a sender's data from a shared store again, replacing what is cached unless it has unsaved changes.
+     */
+    private void refreshUserConfiguration(final String type, final String commander) {
+        try {
+            store.reload(type, commander, data -> {
+                SessionData loaded = data != null ? data : new SessionData();
+                return dataCache.refresh(type, commander, loaded) == loaded;
+            });
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.WARNING, "Error loading sessions persistence file for user " + commander, e);
         }
-        return processor;
     }
 
     private YAMLNode getSessionConfiguration(String type, String commander, Class<? extends PersistentSession> sessType) {
@@ -281,12 +475,12 @@ private YAMLNode getSessionConfiguration(String type, String commander, Class<?
     }
 
     private YAMLNode getSessionConfiguration(String type, String commander, Class<? extends PersistentSession> sessType, boolean create) {
-        YAMLProcessor proc = getUserConfiguration(type, commander, create);
+        YAMLNode proc = getUserConfiguration(type, commander, create);
         if (proc == null) {
             return null;
         }
 
-        String className = sessType.getCanonicalName().replaceAll("\\.", "/");
+        String className = SessionType.of(sessType).getPath();
         YAMLNode sessionNode = proc.getNode(className);
         if (sessionNode == null && create) {
             sessionNode = proc.addNode(className);
@@ -294,96 +488,192 @@ private YAMLNode getSessionConfiguration(String type, String commander, Class<?
         return sessionNode;
     }
 
-    // - Migration Functions
-    private boolean migrate(String commander, File dest) {
-        boolean result = false;
-        try {
-            // Try to parse the commander as a player's UUID
-            OfflinePlayer player = Bukkit.getOfflinePlayer(UUID.fromString(commander));
-            if (player != null) {
-                // A player was found, see if they have an old file based on their name to migrate
-                File oldUserFile = new File(sessionsDir.getPath() + File.separator + player.getName() + ".yml");
-                if (oldUserFile.exists()) {
-                    // Move the file, and print an error if the move operation failed
-                    result = oldUserFile.renameTo(dest);
-                    if (!result) {
-                        CommandBook.logger().warning("Could not update a player's session file to use UUID: " + commander);
-                    }
-                }
-            }
-        } catch (IllegalArgumentException ignored) { } // Wasn't a player
-        return result;
-    }
-
     // - Utility Functions
-    private String getType(Class<? extends CommandSender> clazz) {
-        String[] split = clazz.getName().split("\\.");
-        return split[split.length - 1];
+    private static final ClassValue<String> senderTypes = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> clazz) {
+            String[] split = clazz.getName().split("\\.");
+            return split[split.length - 1];
+        }
+    };
+
+    static String getType(Class<? extends CommandSender> clazz) {
+        return senderTypes.get(clazz);
     }
 
-    private Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> getSessionM(Class<? extends CommandSender> clazz) {
-        Map<String, Map<Class<? extends PersistentSession>, PersistentSession>> typeMapping = sessions.get(clazz);
-        if (typeMapping == null) {
-            typeMapping = new HashMap<String, Map<Class<? extends PersistentSession>, PersistentSession>>();
-            sessions.put(clazz, typeMapping);
+    /**
+     * Drop idle and excess session files from the cache, keeping those of senders whose sessions are
+     * still in memory, and write out any that were changed since they were last saved.
+     *
+     * @param keep The key of a file that is about to be used, or null
+     */
+    private void evictSessionFiles(String keep) {
+        Set<String> inUse = new HashSet<String>();
+        if (keep != null) {
+            inUse.add(keep);
         }
-        return typeMapping;
+        for (SessionRegistry.Slots slots : registry.getAll()) {
+            inUse.add(SessionDataCache.getKey(slots.getSenderType(), slots.getUniqueName()));
+        }
+        writeBack(dataCache.evict(inUse, System.currentTimeMillis()));
     }
 
-    private Map<String, YAMLProcessor> getDataStore(String type) {
-        Map<String, YAMLProcessor> typeMap = sessionDataStores.get(type);
-        if (typeMap == null) {
-            typeMap = new HashMap<String, YAMLProcessor>();
-            sessionDataStores.put(type, typeMap);
+    private void writeBack(List<SessionDataCache.Entry> entries) {
+        for (SessionDataCache.Entry entry : entries) {
+            if (entry.isDirty()) {
+                // No longer cached, so nothing else changes it while it is written
+                writeSessions(entry.getType(), entry.getCommander(), entry.getData());
+                filesWritten.incrementAndGet();
+            }
         }
-        return typeMap;
     }
 
+    private void writeSessions(final String type, final String commander, final SessionData data) {
+        io.submit(commander, () -> {
+            try {
+                store.save(type, commander, data);
+            } catch (IOException e) {
+                CommandBook.logger().log(Level.WARNING, "Could not save the sessions of " + commander, e);
+            }
+        });
+    }
 
     // -- Garbage collection
+
+    /**
+     * A disconnected sender's session, queued to be removed once it stops being recent.
+     */
+    private static final class Expiry implements Comparable<Expiry> {
+        private final long time;
+        private final SessionRegistry.Slots slots;
+        private final PersistentSession session;
+
+        private Expiry(long time, SessionRegistry.Slots slots, PersistentSession session) {
+            this.time = time;
+            this.slots = slots;
+            this.session = session;
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            return Long.compare(time, other.time);
+        }
+    }
+
+    /**
+     * Remove a few of the sessions that are due to expire, every tick.
+     */
     public void run() {
-        synchronized (sessions) {
-            for (Map.Entry<Class<? extends CommandSender>, Map<String, Map<Class<? extends PersistentSession>, PersistentSession>>> parent : sessions.entrySet()) {
-                outer:
-                for (Iterator<Map.Entry<String, Map<Class<? extends PersistentSession>, PersistentSession>>>
-                             i = parent.getValue().entrySet().iterator(); i.hasNext(); ) {
-                    Map.Entry<String, Map<Class<? extends PersistentSession>, PersistentSession>> entry = i.next();
-
-                    for (Iterator<PersistentSession> i2 = entry.getValue().values().iterator(); i2.hasNext(); ) {
-                        PersistentSession sess = i2.next();
-                        if (sess.getOwner() != null) {
-                            continue outer;
-                        }
-
-                        if (!sess.isRecent()) {
-                            i2.remove();
-                            String sender = sess.getUniqueName();
-                            if (sender != null) {
-                                YAMLProcessor processor = getUserConfiguration(getType(parent.getKey()), sender, false);
-                                if (processor != null) {
-                                    processor.removeProperty(sess.getClass().getCanonicalName().replaceAll("\\.", "/"));
-                                }
-                            }
-                        }
-                    }
-
-                    if (entry.getValue().size() == 0) {
-                        i.remove();
-                    }
-                }
+        long now = System.currentTimeMillis();
+        Expiry next;
+        for (int budget = config.gcSessionsPerTick; budget > 0; budget--) {
+            next = expiryQueue.peek();
+            if (next == null || next.time > now) {
+                break;
             }
+            expiryQueue.poll();
+            collect(next.slots, next.session);
+        }
+
+        if (++ticksSinceEviction >= CHECK_FREQUENCY) {
+            ticksSinceEviction = 0;
+            evictSessionFiles(null);
+        }
+    }
+
+    private void collect(SessionRegistry.Slots slots, PersistentSession sess) {
+        // The sender came back, or left again later and was queued again
+        if (sess.getOwner() != null || sess.isRecent()) {
+            return;
+        }
+        if (!slots.remove(SessionRegistry.getTypeID(sess.getClass()), sess)) {
+            return;
+        }
+        registry.removeIfEmpty(slots);
+        String sender = sess.getUniqueName();
+        if (sender != null) {
+            removeStoredSession(slots.getSenderType(), sender, SessionType.of(sess.getClass()).getPath());
         }
     }
 
+    /**
+     * Remove a session from a sender's stored data. If the data is not loaded, it is changed
+     * by the session I/O threads instead of being read on this thread.
+     */
+    private void removeStoredSession(final String type, final String sender, final String path) {
+        SessionData data = dataCache.get(type, sender);
+        if (data != null) {
+            data.remove(path);
+            dataCache.setDirty(type, sender, true);
+            return;
+        }
+        io.submit(sender, () -> {
+            if (dataCache.get(type, sender) != null) {
+                // Loaded in the meantime, which only happens on this chain of tasks, so change it on the server thread
+                CommandBook.server().getScheduler().runTask(CommandBook.inst(), () -> removeStoredSession(type, sender, path));
+                return;
+            }
+            try {
+                SessionData stored = store.load(type, sender);
+                if (stored != null && stored.containsKey(path)) {
+                    stored.remove(path);
+                    store.save(type, sender, stored);
+                }
+            } catch (IOException e) {
+                CommandBook.logger().log(Level.WARNING, "Could not remove an expired session of " + sender, e);
+            }
+        });
+    }
+
     // -- Events
+
+    /**
+     * Read the player's session file while they are still connecting, so that their sessions
+     * can be set up without touching the disk on the server thread. With a shared store, the file
+     * is read again even if it is loaded, since the player may have come from another server.
+     *
+     * @param event Relevant event details
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        final String type = playerType;
+        if (type == null || event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+        final String commander = event.getUniqueId().toString();
+        try {
+            // Waits for any save still running from the player's last visit
+            io.submit(commander, () -> {
+                if (store.isShared()) {
+                    refreshUserConfiguration(type, commander);
+                } else if (dataCache.get(type, commander) == null) {
+                    loadUserConfiguration(type, commander, false);
+                }
+            })
+                    .get(config.shutdownTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {
+            // The file is read on the server thread instead
+        }
+    }
+
     @EventHandler(priority = EventPriority.LOWEST)
     public void onLogin(PlayerLoginEvent event) {
         Player player = event.getPlayer();
-        String type = getType(player.getClass());
+        playerType = getType(player.getClass());
+        SessionRegistry.Slots slots = registry.get(player);
+        if (slots == null) {
+            return;
+        }
         // Trigger the session
-        for (PersistentSession session : getSessions(player)) {
-            session.load(new YAMLNodeConfigurationNode(getSessionConfiguration(type, UUIDUtil.toUniqueString(player), session.getClass())));
-            session.handleReconnect(event.getPlayer());
+        for (PersistentSession session : slots.getSessions()) {
+            // An unchanged session already holds what is stored, apart from a newer last update time,
+            // unless another server has changed it
+            if (session.isDirty() || store.isShared()) {
+                session.load(new YAMLNodeConfigurationNode(getSessionConfiguration(slots.getSenderType(), slots.getUniqueName(), session.getClass())));
+            }
+            session.handleReconnect(player);
         }
     }
 
@@ -394,15 +684,48 @@ public void onLogin(PlayerLoginEvent event) {
      */
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
-        Player player = event.getPlayer();
-        String type = getType(player.getClass());
-        for (PersistentSession session : getSessions(event.getPlayer())) {
+        saveSessions(event.getPlayer(), false);
+    }
+
+    /**
+     * Store the player's changed sessions in their session file, which is then written out in the background.
+     * Sessions that have not changed since they were loaded or saved are not serialized, and the file is not
+     * written if none of them changed.
+     *
+     * @param force Whether to save every session, even unchanged ones
+     */
+    void saveSessions(Player player, boolean force) {
+        SessionRegistry.Slots slots = registry.get(player);
+        if (slots == null) {
+            return;
+        }
+        String type = slots.getSenderType();
+        String commander = slots.getUniqueName();
+        boolean changed = dataCache.isDirty(type, commander);
+        for (PersistentSession session : slots.getSessions()) {
             session.handleDisconnect();
-            session.save(new YAMLNodeConfigurationNode(getSessionConfiguration(type, UUIDUtil.toUniqueString(player), session.getClass())));
+            if (force || session.isDirty()) {
+                session.save(new YAMLNodeConfigurationNode(getSessionConfiguration(type, commander, session.getClass())));
+                changed = true;
+                sessionsSaved.incrementAndGet();
+            } else {
+                sessionsSkipped.incrementAndGet();
+            }
+            long expiry = session.getExpiryTime();
+            if (expiry != Long.MAX_VALUE) {
+                expiryQueue.add(new Expiry(expiry, slots, session));
+            }
+        }
+        if (!changed) {
+            filesSkipped.incrementAndGet();
+            return;
         }
-        YAMLProcessor proc = getUserConfiguration(type, UUIDUtil.toUniqueString(player), false);
-        if (proc != null) {
-            proc.save();
+        SessionData data = dataCache.get(type, commander);
+        if (data != null) {
+            // Written from a copy, since the cached data keeps being used on this thread
+            writeSessions(type, commander, data.copy());
+            dataCache.setDirty(type, commander, false);
+            filesWritten.incrementAndGet();
         }
     }
 
@@ -0,0 +1,267 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The stored data of one sender: a map from session path to the data of that session.
+ *
+ * Values read from a binary store are kept encoded until they are first accessed, so
+ * loading a sender only decodes the sessions that are actually used. Session data is made
+ * of strings, numbers, booleans, lists and maps, as in a YAML file.
+ */
+public class SessionData extends AbstractMap<String, Object> {
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_BOOLEAN = 6;
+    private static final byte TAG_LIST = 7;
+    private static final byte TAG_MAP = 8;
+
+    private final LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+
+    /**
+     * A value that has not been decoded yet.
+     */
+    private static final class Encoded {
+        private final byte[] bytes;
+
+        private Encoded(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    public SessionData() {
+    }
+
+    /**
+     * @param values The values to copy
+     */
+    public SessionData(Map<String, Object> values) {
+        if (values != null) {
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                this.values.put(entry.getKey(), deepCopy(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Add a value that is decoded when it is first accessed.
+     *
+     * @param key The session path
+     * @param encoded The value, as returned by {@link #getEncoded(String)}
+     */
+    void putEncoded(String key, byte[] encoded) {
+        values.put(key, new Encoded(encoded));
+    }
+
+    /**
+     * Get a value in the encoded form, without decoding it if it has not been accessed.
+     *
+     * @param key The session path
+     * @return The encoded value
+     */
+    byte[] getEncoded(String key) {
+        Object value = values.get(key);
+        if (value instanceof Encoded) {
+            return ((Encoded) value).bytes;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            write(new DataOutputStream(bytes), value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return A copy that can be written out on another thread while this one keeps changing
+     */
+    public SessionData copy() {
+        SessionData copy = new SessionData();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            // Encoded values are never changed, so they can be shared
+            copy.values.put(entry.getKey(), value instanceof Encoded ? value : deepCopy(value));
+        }
+        return copy;
+    }
+
+    private Object decode(String key, Object value) {
+        if (value instanceof Encoded) {
+            try {
+                value = read(new DataInputStream(new ByteArrayInputStream(((Encoded) value).bytes)));
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupt session data for " + key, e);
+            }
+            values.put(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = values.get(key);
+        return value instanceof Encoded ? decode((String) key, value) : value;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object previous = values.put(key, value);
+        return previous instanceof Encoded ? null : previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object previous = values.remove(key);
+        return previous instanceof Encoded ? null : previous;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        values.clear();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof Encoded) {
+                entry.setValue(decode(entry.getKey(), entry.getValue()));
+            }
+        }
+        return values.entrySet();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object deepCopy(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                copy.put(entry.getKey(), deepCopy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = new ArrayList<Object>();
+            for (Object element : (List<Object>) value) {
+                copy.add(deepCopy(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private static void write(DataOutputStream output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(TAG_NULL);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            output.writeByte(TAG_INT);
+            output.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            output.writeByte(TAG_LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            output.writeByte(TAG_DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            output.writeByte(TAG_FLOAT);
+            output.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(TAG_BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            output.writeByte(TAG_LIST);
+            output.writeInt(list.size());
+            for (Object element : list) {
+                write(output, element);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.writeByte(TAG_MAP);
+            output.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(output, entry.getKey());
+                write(output, entry.getValue());
+            }
+        } else {
+            writeString(output, value.toString());
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        output.writeByte(TAG_STRING);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static Object read(DataInputStream input) throws IOException {
+        byte tag = input.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                return new String(bytes, "UTF-8");
+            case TAG_INT:
+                return input.readInt();
+            case TAG_LONG:
+                return input.readLong();
+            case TAG_DOUBLE:
+                return input.readDouble();
+            case TAG_FLOAT:
+                return input.readFloat();
+            case TAG_BOOLEAN:
+                return input.readBoolean();
+            case TAG_LIST:
+                int length = input.readInt();
+                List<Object> list = new ArrayList<Object>(Math.min(length, 64));
+                for (int i = 0; i < length; i++) {
+                    list.add(read(input));
+                }
+                return list;
+            case TAG_MAP:
+                int size = input.readInt();
+                Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+                for (int i = 0; i < size; i++) {
+                    map.put(read(input), read(input));
+                }
+                return map;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+}
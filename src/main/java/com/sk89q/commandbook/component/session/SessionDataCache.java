@@ -0,0 +1,227 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The loaded session data of each sender, bounded in size and in how long an unused file is kept.
+ *
+ * Files are kept in least recently used order. {@link #evict(Set, long)} removes files that
+ * have gone unused for too long, then the least recently used ones while there are too many.
+ * Files of senders that still have sessions in memory are never removed, since those sessions
+ * are saved into them later.
+ */
+public class SessionDataCache {
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile int maxSize;
+    private volatile long maxIdleMillis;
+
+    /**
+     * A loaded session file.
+     */
+    public static final class Entry {
+        private final String type;
+        private final String commander;
+        private final SessionData data;
+        private long lastAccess;
+        private boolean dirty;
+
+        private Entry(String type, String commander, SessionData data, long now) {
+            this.type = type;
+            this.commander = commander;
+            this.data = data;
+            this.lastAccess = now;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getCommander() {
+            return commander;
+        }
+
+        public SessionData getData() {
+            return data;
+        }
+
+        /**
+         * @return whether the file was changed in memory after it was last written
+         */
+        public boolean isDirty() {
+            return dirty;
+        }
+    }
+
+    /**
+     * @param maxSize The number of files kept once {@link #evict(Set, long)} runs
+     * @param maxIdleMillis How long a file may go unused before it is removed
+     */
+    public SessionDataCache(int maxSize, long maxIdleMillis) {
+        setLimits(maxSize, maxIdleMillis);
+    }
+
+    public void setLimits(int maxSize, long maxIdleMillis) {
+        this.maxSize = Math.max(1, maxSize);
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    static String getKey(String type, String commander) {
+        return type + '/' + commander;
+    }
+
+    /**
+     * @param type The sender type
+     * @param commander The unique name of the sender
+     * @return The loaded data, or null if it is not loaded
+     */
+    public synchronized SessionData get(String type, String commander) {
+        Entry entry = entries.get(getKey(type, commander));
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.lastAccess = System.currentTimeMillis();
+        return entry.data;
+    }
+
+    /**
+     * Add a loaded file unless another thread has added the same file in the meantime.
+     *
+     * @return The file that is now cached
+     */
+    public synchronized SessionData putIfAbsent(String type, String commander, SessionData data) {
+        String key = getKey(type, commander);
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry == null) {
+            entry = new Entry(type, commander, data, now);
+            entries.put(key, entry);
+        }
+        entry.lastAccess = now;
+        return entry.data;
+    }
+
+    /**
+     * Replace a loaded file with one read again from the store, unless it has been changed in memory
+     * without being written.
+     *
+     * @return The file that is now cached
+     */
+    public synchronized SessionData refresh(String type, String commander, SessionData data) {
+        String key = getKey(type, commander);
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry == null || !entry.dirty) {
+            entry = new Entry(type, commander, data, now);
+            entries.put(key, entry);
+        }
+        entry.lastAccess = now;
+        return entry.data;
+    }
+
+    /**
+     * Record whether a file has been changed in memory without being written.
+     */
+    public synchronized void setDirty(String type, String commander, boolean dirty) {
+        Entry entry = entries.get(getKey(type, commander));
+        if (entry != null) {
+            entry.dirty = dirty;
+            entry.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return whether a file has been changed in memory without being written
+     */
+    public synchronized boolean isDirty(String type, String commander) {
+        Entry entry = entries.get(getKey(type, commander));
+        return entry != null && entry.dirty;
+    }
+
+    /**
+     * @return whether enough files are loaded that {@link #evict(Set, long)} should run before the next periodic check
+     */
+    public synchronized boolean isOverfull() {
+        return entries.size() > maxSize + maxSize / 8;
+    }
+
+    /**
+     * Remove files that have gone unused for too long, then the least recently used files until
+     * no more than the maximum number are loaded.
+     *
+     * @param inUse The keys, as given by {@link #getKey(String, String)}, of files that must be kept
+     * @param now The current time
+     * @return The removed files
+     */
+    public synchronized List<Entry> evict(Set<String> inUse, long now) {
+        List<Entry> evicted = new ArrayList<Entry>();
+        int excess = entries.size() - maxSize;
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> mapEntry = it.next();
+            Entry entry = mapEntry.getValue();
+            boolean idle = now - entry.lastAccess >= maxIdleMillis;
+            // Entries are in least recently used order, so once one is neither idle nor excess none are
+            if (!idle && excess <= 0) {
+                break;
+            }
+            if (inUse.contains(mapEntry.getKey())) {
+                continue;
+            }
+            it.remove();
+            evicted.add(entry);
+            --excess;
+        }
+        evictions.addAndGet(evicted.size());
+        return evicted;
+    }
+
+    /**
+     * Remove every file.
+     *
+     * @return The removed files
+     */
+    public synchronized List<Entry> clear() {
+        List<Entry> removed = new ArrayList<Entry>(entries.values());
+        entries.clear();
+        return removed;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
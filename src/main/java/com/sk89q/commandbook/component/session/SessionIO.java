@@ -0,0 +1,120 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Runs session file reads and writes on a small pool of background threads.
+ *
+ * Tasks for the same sender run one after another in the order they were submitted, so a save
+ * started when a player quits always finishes before the load started when they rejoin.
+ * Tasks for different senders run in parallel.
+ */
+class SessionIO {
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    /**
+     * @param threads The number of files read or written at the same time
+     */
+    public SessionIO(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "CommandBook Session IO #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * Run {@code task} after every task already submitted for {@code sender}.
+     *
+     * @param sender The unique name of the sender the task reads or writes files for
+     * @param task The task
+     * @return A future completed once the task has run
+     */
+    public CompletableFuture<Void> submit(final String sender, final Runnable task) {
+        final Runnable logged = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger().log(Level.WARNING, "Failed to read or write the sessions of " + sender, e);
+            }
+        };
+        final CompletableFuture<Void> future = pending.compute(sender, (key, previous) -> previous == null
+                ? CompletableFuture.runAsync(logged, executor)
+                : previous.exceptionally(e -> null).thenRunAsync(logged, executor));
+        future.whenComplete((ignored, e) -> pending.remove(sender, future));
+        return future;
+    }
+
+    /**
+     * Wait for the tasks already submitted for {@code sender} to finish. Must not be called from a task.
+     *
+     * @param sender The unique name of the sender
+     * @param timeout How long to wait
+     * @param unit The unit of {@code timeout}
+     */
+    public void await(String sender, long timeout, TimeUnit unit) {
+        CompletableFuture<Void> future = pending.get(sender);
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {
+            // Failures are already logged by the task itself
+        }
+    }
+
+    /**
+     * Wait for every submitted task to finish, then stop the worker threads.
+     *
+     * @param timeout How long to wait
+     * @param unit The unit of {@code timeout}
+     * @return whether every task finished in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        CompletableFuture<?>[] waiting = pending.values().toArray(new CompletableFuture<?>[0]);
+        boolean finished = true;
+        try {
+            CompletableFuture.allOf(waiting).get(timeout, unit);
+        } catch (TimeoutException e) {
+            finished = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finished = false;
+        } catch (ExecutionException ignored) {
+            // Failures are already logged by the tasks themselves
+        }
+        executor.shutdown();
+        return finished;
+    }
+}
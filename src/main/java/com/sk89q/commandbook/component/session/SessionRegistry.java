@@ -0,0 +1,284 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import com.sk89q.commandbook.util.entity.player.UUIDUtil;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The sessions of every sender, keyed by the player's UUID (or by sender class and name for
+ * senders that are not players). Each sender's sessions are kept in an array indexed by the
+ * ID of the session type, so looking up a session is a map lookup and an array read, without
+ * taking a lock or building a key string.
+ */
+class SessionRegistry {
+    private final ConcurrentMap<Object, Slots> senders = new ConcurrentHashMap<Object, Slots>();
+
+    /**
+     * Get the index of {@code type} in every sender's session array. IDs are assigned on first use.
+     *
+     * @param type The session type
+     * @return The ID of the session type
+     */
+    static int getTypeID(Class<? extends PersistentSession> type) {
+        return SessionType.of(type).getID();
+    }
+
+    private static Object getKey(CommandSender sender) {
+        if (sender instanceof Player) {
+            return ((Player) sender).getUniqueId();
+        }
+        return new SenderKey(sender.getClass(), sender.getName());
+    }
+
+    /**
+     * @param sender The sender
+     * @return The sessions of {@code sender}, or null if it has none
+     */
+    public Slots get(CommandSender sender) {
+        return senders.get(getKey(sender));
+    }
+
+    /**
+     * @param sender The sender
+     * @return The sessions of {@code sender}, created if it has none
+     */
+    public Slots getOrCreate(CommandSender sender) {
+        Object key = getKey(sender);
+        Slots slots = senders.get(key);
+        if (slots == null) {
+            Slots created = new Slots(key, SessionComponent.getType(sender.getClass()), UUIDUtil.toUniqueString(sender));
+            slots = senders.putIfAbsent(key, created);
+            if (slots == null) {
+                slots = created;
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Remove the sessions of a sender if it no longer has any.
+     *
+     * @param slots The sessions to remove
+     * @return whether they were removed
+     */
+    public boolean removeIfEmpty(Slots slots) {
+        synchronized (slots) {
+            if (!slots.isEmpty()) {
+                return false;
+            }
+            slots.removed = true;
+        }
+        senders.remove(slots.key, slots);
+        return true;
+    }
+
+    /**
+     * @return The sessions of every sender. Senders added or removed while iterating may or may not be seen.
+     */
+    public Collection<Slots> getAll() {
+        return senders.values();
+    }
+
+    /**
+     * Iterate over the sessions of one type, reading each sender's session array as it is reached.
+     *
+     * @param type The session type
+     * @param <T> The session type
+     * @return A view of the sessions of {@code type} that can be iterated many times
+     */
+    public <T extends PersistentSession> Iterable<T> getAll(final Class<T> type) {
+        final int typeID = getTypeID(type);
+        return () -> new TypeIterator<T>(type, typeID, senders.values().iterator());
+    }
+
+    /**
+     * Skips the senders without a session of the type.
+     */
+    private static final class TypeIterator<T extends PersistentSession> implements Iterator<T> {
+        private final Class<T> type;
+        private final int typeID;
+        private final Iterator<Slots> slots;
+        private T next;
+
+        private TypeIterator(Class<T> type, int typeID, Iterator<Slots> slots) {
+            this.type = type;
+            this.typeID = typeID;
+            this.slots = slots;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && slots.hasNext()) {
+                next = type.cast(slots.next().get(typeID));
+            }
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T ret = next;
+            next = null;
+            return ret;
+        }
+    }
+
+    /**
+     * The sessions of a single sender. Changes to them, and creating a session to add, are done
+     * while synchronized on the Slots, which only ever holds up other threads using the same sender.
+     */
+    public static final class Slots {
+        private final Object key;
+        private final String senderType;
+        private final String uniqueName;
+        private volatile AtomicReferenceArray<PersistentSession> sessions =
+                new AtomicReferenceArray<PersistentSession>(Math.max(4, SessionType.count()));
+        private boolean removed;
+
+        private Slots(Object key, String senderType, String uniqueName) {
+            this.key = key;
+            this.senderType = senderType;
+            this.uniqueName = uniqueName;
+        }
+
+        /**
+         * @return The name of the sender's class, which names the directory its sessions are saved in
+         */
+        public String getSenderType() {
+            return senderType;
+        }
+
+        /**
+         * @return The unique name of the sender, as given by {@link UUIDUtil#toUniqueString(CommandSender)}
+         */
+        public String getUniqueName() {
+            return uniqueName;
+        }
+
+        /**
+         * @param typeID The ID of the session type
+         * @return The session, or null if there is none
+         */
+        public PersistentSession get(int typeID) {
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            return typeID < sessions.length() ? sessions.get(typeID) : null;
+        }
+
+        /**
+         * Set the session of a type, replacing any existing one.
+         *
+         * @param typeID The ID of the session type
+         * @param session The session
+         * @return false if these sessions were removed from the registry, in which case nothing is set
+         */
+        public synchronized boolean put(int typeID, PersistentSession session) {
+            if (removed) {
+                return false;
+            }
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            if (typeID >= sessions.length()) {
+                AtomicReferenceArray<PersistentSession> grown =
+                        new AtomicReferenceArray<PersistentSession>(Math.max(typeID + 1, sessions.length() * 2));
+                for (int i = 0; i < sessions.length(); i++) {
+                    grown.set(i, sessions.get(i));
+                }
+                this.sessions = sessions = grown;
+            }
+            sessions.set(typeID, session);
+            return true;
+        }
+
+        /**
+         * Remove a session if it is still the session of its type.
+         *
+         * @param typeID The ID of the session type
+         * @param session The session to remove
+         * @return whether it was removed
+         */
+        public synchronized boolean remove(int typeID, PersistentSession session) {
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            return typeID < sessions.length() && sessions.compareAndSet(typeID, session, null);
+        }
+
+        /**
+         * @return A copy of the sessions
+         */
+        public List<PersistentSession> getSessions() {
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            List<PersistentSession> ret = new ArrayList<PersistentSession>(4);
+            for (int i = 0; i < sessions.length(); i++) {
+                PersistentSession session = sessions.get(i);
+                if (session != null) {
+                    ret.add(session);
+                }
+            }
+            return ret;
+        }
+
+        private boolean isEmpty() {
+            AtomicReferenceArray<PersistentSession> sessions = this.sessions;
+            for (int i = 0; i < sessions.length(); i++) {
+                if (sessions.get(i) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The key of a sender that is not a player.
+     */
+    private static final class SenderKey {
+        private final Class<?> type;
+        private final String name;
+
+        private SenderKey(Class<?> type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SenderKey)) {
+                return false;
+            }
+            SenderKey other = (SenderKey) o;
+            return type == other.type && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + name.hashCode();
+        }
+    }
+}
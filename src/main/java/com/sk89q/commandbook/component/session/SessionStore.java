@@ -0,0 +1,92 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+/**
+ * Where the persistent sessions of each sender are kept between visits.
+ *
+ * A sender's data is a map from the session path (the session class name with slashes)
+ * to the data of that session. Stores may be called from several threads, but never
+ * concurrently for the same sender by the same server.
+ */
+public interface SessionStore {
+
+    /**
+     * Open the store.
+     *
+     * @throws IOException when the store could not be opened
+     */
+    public void open() throws IOException;
+
+    /**
+     * Load the data of a sender.
+     *
+     * @param type The sender type, such as the name of the player class
+     * @param commander The unique name of the sender
+     * @return The sender's data, or null if nothing is stored for it
+     * @throws IOException when the data could not be read
+     */
+    public SessionData load(String type, String commander) throws IOException;
+
+    /**
+     * Load the data of a sender again, to replace what was loaded before. With a shared store,
+     * later saves are merged against the data read here only if {@code replace} accepts it, so
+     * data that was kept because it has unsaved changes is still merged with what other servers
+     * saved in the meantime.
+     *
+     * @param type The sender type
+     * @param commander The unique name of the sender
+     * @param replace Given the data read, or null if nothing is stored, and returns whether it replaced what was loaded
+     * @return whether the data read replaced what was loaded
+     * @throws IOException when the data could not be read
+     */
+    public default boolean reload(String type, String commander, Predicate<SessionData> replace) throws IOException {
+        return replace.test(load(type, commander));
+    }
+
+    /**
+     * Replace the data of a sender. Saving empty data removes the sender from the store.
+     *
+     * @param type The sender type
+     * @param commander The unique name of the sender
+     * @param data The data to store, which the caller will not change afterwards
+     * @throws IOException when the data could not be written
+     */
+    public void save(String type, String commander, SessionData data) throws IOException;
+
+    /**
+     * Whether other servers may change the stored data. The data of a shared store is read again
+     * whenever a player connects, instead of being taken from what this server last saw.
+     *
+     * @return whether the store is shared
+     */
+    public default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Write out anything still buffered and close the store.
+     *
+     * @throws IOException when the store could not be closed cleanly
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,169 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import com.zachsthings.libcomponents.config.Setting;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * What is known about a subclass of {@link PersistentSession}, worked out the first time the
+ * class is used: its ID in each sender's session array, the path its data is saved under, how
+ * to construct it and how to read its settings.
+ */
+final class SessionType {
+    private static final AtomicInteger nextID = new AtomicInteger();
+    private static final ClassValue<SessionType> types = new ClassValue<SessionType>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected SessionType computeValue(Class<?> type) {
+            return new SessionType((Class<? extends PersistentSession>) type);
+        }
+    };
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(PersistentSession.class);
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, PersistentSession.class);
+
+    private final int id;
+    private final String path;
+    private final MethodHandle constructor;
+    private final MethodHandle[] settings;
+
+    private SessionType(Class<? extends PersistentSession> type) {
+        id = nextID.getAndIncrement();
+        String name = type.getCanonicalName();
+        path = (name != null ? name : type.getName()).replace('.', '/');
+        constructor = findConstructor(type);
+        settings = findSettings(type);
+    }
+
+    /**
+     * @param type The session class
+     * @return The metadata of {@code type}
+     */
+    static SessionType of(Class<? extends PersistentSession> type) {
+        return types.get(type);
+    }
+
+    /**
+     * @return The number of session types seen so far
+     */
+    static int count() {
+        return nextID.get();
+    }
+
+    private static MethodHandle findConstructor(Class<? extends PersistentSession> type) {
+        try {
+            Constructor<? extends PersistentSession> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the @Setting fields of a session class and its superclasses, except last-update.
+     */
+    private static MethodHandle[] findSettings(Class<? extends PersistentSession> type) {
+        List<MethodHandle> getters = new ArrayList<MethodHandle>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Class<?> clazz = type; clazz != PersistentSession.class && clazz != null; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (!field.isAnnotationPresent(Setting.class) || Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                try {
+                    getters.add(lookup.unreflectGetter(field).asType(GETTER_TYPE));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Cannot read setting " + field + " of " + type.getName(), e);
+                }
+            }
+        }
+        return getters.toArray(new MethodHandle[getters.size()]);
+    }
+
+    /**
+     * @return The index of this type in every sender's session array
+     */
+    int getID() {
+        return id;
+    }
+
+    /**
+     * @return The path the data of sessions of this type is saved under, the class name with slashes
+     */
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Create a session with the class's no-argument constructor.
+     *
+     * @return The new session, or null if the class has no such constructor or it failed
+     */
+    PersistentSession newInstance() {
+        if (constructor == null) {
+            return null;
+        }
+        try {
+            return (PersistentSession) constructor.invokeExact();
+        } catch (Exception e) {
+            logger().log(Level.WARNING, "Failed to create a session of type " + path.replace('/', '.'), e);
+            return null;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * @return The number of tracked settings
+     */
+    int getSettingCount() {
+        return settings.length;
+    }
+
+    /**
+     * Read a tracked setting of a session.
+     *
+     * @param session A session of this type
+     * @param index The index of the setting
+     * @return The value of the setting
+     */
+    Object getSetting(PersistentSession session, int index) {
+        try {
+            return (Object) settings[index].invokeExact(session);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
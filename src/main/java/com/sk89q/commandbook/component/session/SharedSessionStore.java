@@ -0,0 +1,297 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Stores sessions in a directory shared by several servers, such as a network mount, so that
+ * a player's sessions follow them from server to server.
+ *
+ * Each sender's data is kept in its own file together with a version number that is increased
+ * on every save. Saving is optimistic: the version the data was loaded at is remembered, and if
+ * another server has saved a newer version since, the two are merged session by session. The
+ * sessions this server changed since loading are taken from this server, the rest are kept as the
+ * other server saved them.
+ *
+ * Writers lock one of a fixed number of byte ranges of a shared lock file, chosen by the sender,
+ * so that servers never save the same sender at once. Files are replaced by renaming, so readers
+ * need no lock.
+ */
+public class SharedSessionStore implements SessionStore {
+    private static final int FILE_MAGIC = 0x43425353;
+    private static final String LOCK_FILE = "sessions.lock";
+    private static final int LOCK_STRIPES = 1024;
+    private static final int MAX_BASES = 10000;
+
+    /**
+     * File locks are held by the whole process, so threads are kept apart separately. These are
+     * shared by every store, so that two stores in one process can stand in for two servers.
+     */
+    private static final Object[] stripes = new Object[LOCK_STRIPES];
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private final File directory;
+    private FileChannel lockChannel;
+    /**
+     * The data of each sender as it was last loaded or saved here, to merge against
+     */
+    private final Map<String, Base> bases = new LinkedHashMap<String, Base>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Base> eldest) {
+            return size() > MAX_BASES;
+        }
+    };
+    private long conflicts;
+
+    /**
+     * A version of a sender's data.
+     */
+    private static final class Base {
+        private final long version;
+        private final Map<String, byte[]> sessions;
+
+        private Base(long version, Map<String, byte[]> sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+
+    /**
+     * @param directory The shared directory
+     */
+    public SharedSessionStore(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+        lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    private File getUserFile(String type, String commander) {
+        return new File(directory, type + File.separator + commander + ".dat");
+    }
+
+    private static String getKey(String type, String commander) {
+        return type + '/' + commander;
+    }
+
+    @Override
+    public SessionData load(String type, String commander) throws IOException {
+        Base stored = read(getUserFile(type, commander));
+        synchronized (bases) {
+            bases.put(getKey(type, commander), stored);
+        }
+        return toData(stored);
+    }
+
+    @Override
+    public boolean reload(String type, String commander, Predicate<SessionData> replace) throws IOException {
+        Base stored = read(getUserFile(type, commander));
+        if (!replace.test(toData(stored))) {
+            // Changes made to the data that was kept are still relative to the old base
+            return false;
+        }
+        synchronized (bases) {
+            bases.put(getKey(type, commander), stored);
+        }
+        return true;
+    }
+
+    private static SessionData toData(Base stored) {
+        if (stored.sessions.isEmpty()) {
+            return null;
+        }
+        SessionData data = new SessionData();
+        for (Map.Entry<String, byte[]> entry : stored.sessions.entrySet()) {
+            data.putEncoded(entry.getKey(), entry.getValue());
+        }
+        return data;
+    }
+
+    @Override
+    public void save(String type, String commander, SessionData data) throws IOException {
+        String key = getKey(type, commander);
+        Map<String, byte[]> ours = new LinkedHashMap<String, byte[]>();
+        for (String path : data.keySet()) {
+            ours.put(path, data.getEncoded(path));
+        }
+
+        int stripe = (key.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+        synchronized (stripes[stripe]) {
+            FileLock lock = lockChannel.lock(stripe, 1, false);
+            try {
+                File file = getUserFile(type, commander);
+                Base current = read(file);
+                Base base;
+                synchronized (bases) {
+                    base = bases.get(key);
+                }
+                Map<String, byte[]> mergeBase = null;
+                if (base == null) {
+                    // Never loaded here, or forgotten since: merge as if all of ours were changes,
+                    // keeping the sessions saved elsewhere that ours lack
+                    if (current.version > 0) {
+                        mergeBase = Collections.emptyMap();
+                    }
+                } else if (base.version != current.version) {
+                    mergeBase = base.sessions;
+                }
+                Map<String, byte[]> merged = ours;
+                if (mergeBase != null) {
+                    merged = merge(mergeBase, ours, current.sessions);
+                    synchronized (this) {
+                        ++conflicts;
+                    }
+                    logger().fine("Merged the sessions of " + commander + " with version "
+                            + current.version + " saved by another server");
+                }
+                Base saved = new Base(current.version + 1, merged);
+                write(file, saved);
+                synchronized (bases) {
+                    // Merged data is only on disk; what is loaded here is still ours, so the next save
+                    // has to merge again, against ours
+                    bases.put(key, merged == ours ? saved : new Base(current.version, ours));
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Merge the sessions changed here since {@code base} into those saved by another server.
+     */
+    private static Map<String, byte[]> merge(Map<String, byte[]> base, Map<String, byte[]> ours, Map<String, byte[]> theirs) {
+        Map<String, byte[]> merged = new LinkedHashMap<String, byte[]>(theirs);
+        Set<String> paths = new HashSet<String>(base.keySet());
+        paths.addAll(ours.keySet());
+        for (String path : paths) {
+            byte[] mine = ours.get(path);
+            if (Arrays.equals(mine, base.get(path))) {
+                continue;
+            }
+            if (mine == null) {
+                merged.remove(path);
+            } else {
+                merged.put(path, mine);
+            }
+        }
+        return merged;
+    }
+
+    private static Base read(File file) throws IOException {
+        if (!file.exists()) {
+            return new Base(0, Collections.<String, byte[]>emptyMap());
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != FILE_MAGIC) {
+                throw new IOException(file.getAbsolutePath() + " is not a session file");
+            }
+            long version = input.readLong();
+            int count = input.readInt();
+            Map<String, byte[]> sessions = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                byte[] encoded = new byte[input.readInt()];
+                input.readFully(encoded);
+                sessions.put(path, encoded);
+            }
+            return new Base(version, sessions);
+        } catch (EOFException e) {
+            throw new IOException(file.getAbsolutePath() + " is truncated", e);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Write a new version of a sender's data. Empty data is still written, so that the version is kept.
+     */
+    private static void write(File file, Base data) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File tempFile = new File(dir, file.getName() + ".tmp");
+        FileOutputStream fileOutput = new FileOutputStream(tempFile);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+        try {
+            output.writeInt(FILE_MAGIC);
+            output.writeLong(data.version);
+            output.writeInt(data.sessions.size());
+            for (Map.Entry<String, byte[]> entry : data.sessions.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeInt(entry.getValue().length);
+                output.write(entry.getValue());
+            }
+            // On disk before it replaces the old version
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            output.close();
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return How many saves found that another server had saved the same sender since it was loaded here
+     */
+    public synchronized long getConflicts() {
+        return conflicts;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (lockChannel != null) {
+            lockChannel.close();
+            lockChannel = null;
+        }
+        synchronized (bases) {
+            bases.clear();
+        }
+    }
+}
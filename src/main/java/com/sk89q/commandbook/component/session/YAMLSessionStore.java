@@ -0,0 +1,137 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import com.sk89q.commandbook.CommandBook;
+import com.sk89q.util.yaml.YAMLFormat;
+import com.sk89q.util.yaml.YAMLProcessor;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Stores each sender's sessions in its own YAML file, sessions/&lt;sender type&gt;/&lt;unique name&gt;.yml.
+ */
+public class YAMLSessionStore implements SessionStore {
+    private final File sessionsDir;
+
+    public YAMLSessionStore(File sessionsDir) {
+        this.sessionsDir = sessionsDir;
+    }
+
+    @Override
+    public void open() {
+        if (!sessionsDir.exists()) {
+            sessionsDir.mkdirs();
+        }
+    }
+
+    private File getUserFile(String type, String commander) {
+        return new File(sessionsDir.getPath() + File.separator + type + File.separator + commander + ".yml");
+    }
+
+    @Override
+    public SessionData load(String type, String commander) throws IOException {
+        File userFile = getUserFile(type, commander);
+        if (!userFile.exists() && !migrate(commander, userFile)) {
+            return null;
+        }
+        YAMLProcessor processor = new YAMLProcessor(userFile, false, YAMLFormat.COMPACT);
+        processor.load();
+        return new SessionData(processor.getMap());
+    }
+
+    @Override
+    public void save(String type, String commander, SessionData data) throws IOException {
+        File userFile = getUserFile(type, commander);
+        if (data.isEmpty()) {
+            if (userFile.exists() && !userFile.delete()) {
+                throw new IOException("Could not delete " + userFile.getAbsolutePath());
+            }
+            return;
+        }
+        File dir = userFile.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        YAMLProcessor processor = new YAMLProcessor(userFile, false, YAMLFormat.COMPACT);
+        processor.getMap().putAll(data);
+        if (!processor.save()) {
+            throw new IOException("Could not write " + userFile.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * List every stored sender.
+     *
+     * @return Pairs of sender type and unique name
+     */
+    public List<String[]> list() {
+        List<String[]> senders = new ArrayList<String[]>();
+        File[] typeDirs = sessionsDir.listFiles(File::isDirectory);
+        if (typeDirs == null) {
+            return senders;
+        }
+        for (File typeDir : typeDirs) {
+            File[] files = typeDir.listFiles((dir, name) -> name.endsWith(".yml"));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                senders.add(new String[] {typeDir.getName(), name.substring(0, name.length() - 4)});
+            }
+        }
+        return senders;
+    }
+
+    // - Migration Functions
+    private boolean migrate(String commander, File dest) {
+        boolean result = false;
+        try {
+            // Try to parse the commander as a player's UUID
+            OfflinePlayer player = Bukkit.getOfflinePlayer(UUID.fromString(commander));
+            if (player != null) {
+                // A player was found, see if they have an old file based on their name to migrate
+                File oldUserFile = new File(sessionsDir.getPath() + File.separator + player.getName() + ".yml");
+                if (oldUserFile.exists()) {
+                    File dir = dest.getParentFile();
+                    if (!dir.exists()) {
+                        dir.mkdirs();
+                    }
+                    // Move the file, and print an error if the move operation failed
+                    result = oldUserFile.renameTo(dest);
+                    if (!result) {
+                        CommandBook.logger().warning("Could not update a player's session file to use UUID: " + commander);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException ignored) { } // Wasn't a player
+        return result;
+    }
+}
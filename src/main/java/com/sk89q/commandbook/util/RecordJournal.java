@@ -0,0 +1,326 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * An append-only file of records, where each record is a list of (possibly null) string fields.
+ *
+ * Every record is written as its length, its payload and a CRC32 of the payload, so a record
+ * that was only partially written when the server went down is detected and discarded on replay
+ * instead of corrupting the records before it.
+ */
+public class RecordJournal implements Closeable {
+    /**
+     * Upper bound on the size of a single record, used to reject garbage lengths on replay.
+     */
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+    private final File file;
+    private FileOutputStream fileOutput;
+    private DataOutputStream output;
+    private int records;
+    private long position;
+
+    public RecordJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Open the journal for appending, creating it if it does not exist.
+     *
+     * @throws IOException when the file could not be opened
+     */
+    public synchronized void open() throws IOException {
+        if (output != null) {
+            return;
+        }
+        if (file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        fileOutput = new FileOutputStream(file, true);
+        output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+        position = file.length();
+    }
+
+    /**
+     * Append a record to the journal. The record is buffered until {@link #flush()} is called.
+     *
+     * @param fields The fields of the record
+     * @return The offset of the record in the file, for use with {@link #read(RandomAccessFile, long)}
+     * @throws IOException when the record could not be written
+     */
+    public synchronized long append(String... fields) throws IOException {
+        open();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeShort(fields.length);
+        for (String field : fields) {
+            payload.writeBoolean(field != null);
+            if (field != null) {
+                payload.writeUTF(field);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        output.writeInt(bytes.size());
+        bytes.writeTo(output);
+        output.writeInt((int) crc.getValue());
+        ++records;
+        long offset = position;
+        position += 4 + bytes.size() + 4;
+        return offset;
+    }
+
+    /**
+     * @return The length the file will have once every appended record is flushed
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Push all buffered records to disk.
+     *
+     * @throws IOException when the records could not be written
+     */
+    public synchronized void flush() throws IOException {
+        if (output != null) {
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+    }
+
+    /**
+     * @return The number of records appended since this journal was opened or last rotated
+     */
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Close the journal and move its contents to {@code dest}, so that new records start
+     * in an empty file. {@code dest} is replaced if it already exists.
+     *
+     * @param dest The file to move the current records to
+     * @throws IOException when the journal could not be moved
+     */
+    public synchronized void rotate(File dest) throws IOException {
+        close();
+        if (file.exists()) {
+            if (dest.exists() && !dest.delete()) {
+                throw new IOException("Could not delete " + dest.getAbsolutePath());
+            }
+            if (!file.renameTo(dest)) {
+                throw new IOException("Could not move " + file.getAbsolutePath() + " to " + dest.getAbsolutePath());
+            }
+        }
+        records = 0;
+        open();
+    }
+
+    /**
+     * Remove all records from the journal.
+     *
+     * @throws IOException when the journal could not be truncated
+     */
+    public synchronized void truncate() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file.getAbsolutePath());
+        }
+        records = 0;
+        open();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (output != null) {
+            try {
+                flush();
+            } finally {
+                output.close();
+                output = null;
+                fileOutput = null;
+            }
+        }
+    }
+
+    /**
+     * Read every intact record from {@code file}, in the order they were written.
+     * If the file ends in a torn or corrupt record, that record and everything after it is cut off
+     * so that later appends follow the last good record.
+     *
+     * @param file The journal file to read
+     * @param handler The handler to pass each record to
+     * @return The number of records read
+     * @throws IOException when the file could not be read
+     */
+    public static int replay(File file, final RecordHandler handler) throws IOException {
+        return replay(file, 0, (offset, fields) -> handler.handle(fields));
+    }
+
+    /**
+     * Read every intact record from {@code file} starting at {@code start}, which must be the offset
+     * of a record or the end of the file, truncating a torn tail like {@link #replay(File, RecordHandler)}.
+     *
+     * @param file The journal file to read
+     * @param start The offset to start reading at
+     * @param handler The handler to pass each record and its offset to
+     * @return The number of records read
+     * @throws IOException when the file could not be read
+     */
+    public static int replay(File file, long start, PositionedRecordHandler handler) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int count = 0;
+        long goodLength = start;
+        boolean torn = false;
+        FileInputStream fileInput = new FileInputStream(file);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput));
+        try {
+            fileInput.getChannel().position(start);
+            while (true) {
+                int first = input.read();
+                if (first < 0) {
+                    break;
+                }
+                int length;
+                try {
+                    // A file that ends part way through a length is torn too, not cleanly ended
+                    length = (first << 24) | (input.readUnsignedByte() << 16)
+                            | (input.readUnsignedByte() << 8) | input.readUnsignedByte();
+                } catch (EOFException e) {
+                    torn = true;
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    torn = true;
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                int crc;
+                try {
+                    input.readFully(payload);
+                    crc = input.readInt();
+                } catch (EOFException e) {
+                    torn = true;
+                    break;
+                }
+
+                CRC32 check = new CRC32();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != crc) {
+                    torn = true;
+                    break;
+                }
+
+                String[] fields;
+                try {
+                    fields = decode(payload);
+                } catch (IOException e) {
+                    torn = true;
+                    break;
+                }
+                handler.handle(goodLength, fields);
+                goodLength += 4 + length + 4;
+                ++count;
+            }
+        } finally {
+            input.close();
+        }
+
+        if (torn) {
+            logger().warning("Discarding a torn record at the end of " + file.getAbsolutePath()
+                    + " (" + count + " good record(s) kept)");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(goodLength);
+            } finally {
+                raf.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read the record at {@code offset}, as returned by {@link #append(String...)}.
+     * The record must have been flushed.
+     *
+     * @param file The journal file, opened for reading
+     * @param offset The offset of the record
+     * @return The fields of the record
+     * @throws IOException when the record could not be read or is corrupt
+     */
+    public static String[] read(RandomAccessFile file, long offset) throws IOException {
+        // Most records fit in one read; RandomAccessFile#readInt reads a byte at a time
+        byte[] buffer = new byte[256];
+        file.seek(offset);
+        int read = file.read(buffer);
+        if (read < 4) {
+            throw new EOFException("No record at offset " + offset);
+        }
+        int length = ByteBuffer.wrap(buffer).getInt();
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+            throw new IOException("Invalid record length at offset " + offset);
+        }
+        if (read < length + 8) {
+            buffer = Arrays.copyOf(buffer, length + 8);
+            file.readFully(buffer, read, length + 8 - read);
+        }
+        int crc = ByteBuffer.wrap(buffer).getInt(4 + length);
+        CRC32 check = new CRC32();
+        check.update(buffer, 4, length);
+        if ((int) check.getValue() != crc) {
+            throw new IOException("Corrupt record at offset " + offset);
+        }
+        return decode(Arrays.copyOfRange(buffer, 4, 4 + length));
+    }
+
+    private static String[] decode(byte[] payload) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        String[] fields = new String[input.readUnsignedShort()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = input.readBoolean() ? input.readUTF() : null;
+        }
+        return fields;
+    }
+
+    public interface RecordHandler {
+        public void handle(String[] fields) throws IOException;
+    }
+
+    public interface PositionedRecordHandler {
+        public void handle(long offset, String[] fields) throws IOException;
+    }
+}
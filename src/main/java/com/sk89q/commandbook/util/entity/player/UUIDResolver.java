@@ -0,0 +1,199 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.util.entity.player;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import com.sk89q.commandbook.CommandBook;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sk89q.commandbook.CommandBook.logger;
+
+/**
+ * Resolves legacy player names to UUIDs in the background.
+ *
+ * Lookups go through {@link UUIDUtil#convert(String)}, which may have to ask the session servers,
+ * so they run on a small pool of worker threads. Every name that resolves is remembered in
+ * uuid-cache.csv, so a name is only ever looked up once.
+ */
+public class UUIDResolver {
+    /**
+     * The number of names looked up at the same time
+     */
+    private static final int WORKER_THREADS = 4;
+
+    private static UUIDResolver instance;
+
+    private final File cacheFile;
+    private final ConcurrentMap<String, UUID> cache = new ConcurrentHashMap<String, UUID>();
+    private final ExecutorService executor;
+
+    /**
+     * Get the resolver shared by all components, which caches to uuid-cache.csv in the CommandBook folder.
+     *
+     * @return The shared resolver
+     */
+    public static synchronized UUIDResolver getInstance() {
+        if (instance == null) {
+            instance = new UUIDResolver(new File(CommandBook.inst().getDataFolder(), "uuid-cache.csv"), WORKER_THREADS);
+        }
+        return instance;
+    }
+
+    /**
+     * @param cacheFile The file resolved names are kept in
+     * @param threads The number of names looked up at the same time
+     */
+    public UUIDResolver(File cacheFile, int threads) {
+        this.cacheFile = cacheFile;
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "CommandBook UUID Resolver #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+        load();
+    }
+
+    private void load() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try (CSVReader reader = new CSVReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(cacheFile), "utf-8")))) {
+            String[] line;
+            while ((line = reader.readNext()) != null) {
+                if (line.length < 2) {
+                    continue;
+                }
+                try {
+                    cache.put(line[0].toLowerCase(), UUID.fromString(line[1]));
+                } catch (IllegalArgumentException e) {
+                    logger().warning("Invalid UUID for " + line[0] + " in " + cacheFile.getName());
+                }
+            }
+        } catch (IOException e) {
+            logger().warning("Failed to load " + cacheFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the cache to disk.
+     *
+     * @return whether the cache was saved
+     */
+    public synchronized boolean save() {
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+        try {
+            if (!cacheFile.getParentFile().exists()) {
+                cacheFile.getParentFile().mkdirs();
+            }
+            try (CSVWriter writer = new CSVWriter(new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(tempFile), "utf-8")))) {
+                for (Map.Entry<String, UUID> entry : cache.entrySet()) {
+                    writer.writeNext(new String[] {entry.getKey(), entry.getValue().toString()});
+                }
+            }
+            try {
+                Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            logger().warning("Failed to save " + cacheFile.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Get the UUID of a name that has already been resolved, without looking it up.
+     *
+     * @param name The player name
+     * @return The UUID, or null if the name has not been resolved yet
+     */
+    public UUID getCached(String name) {
+        return cache.get(name.toLowerCase());
+    }
+
+    /**
+     * Resolve a name on the worker threads, unless it is already cached.
+     *
+     * @param name The player name
+     * @return A future completed with the UUID, or with null if the name could not be resolved
+     */
+    public CompletableFuture<UUID> resolve(final String name) {
+        final String key = name.toLowerCase();
+        UUID cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            UUID ID;
+            try {
+                ID = UUIDUtil.convert(name);
+            } catch (RuntimeException e) {
+                logger().warning("Failed to look up the UUID of " + name + ": " + e.getMessage());
+                return null;
+            }
+            if (ID != null) {
+                cache.put(key, ID);
+            }
+            return ID;
+        }, executor);
+    }
+
+    /**
+     * Resolve a batch of names on the worker threads, saving the cache once they are all done.
+     *
+     * @param names The player names
+     * @return A future completed with the names that resolved, keyed by lower case name
+     */
+    public CompletableFuture<Map<String, UUID>> resolveAll(Collection<String> names) {
+        final Map<String, CompletableFuture<UUID>> lookups = new HashMap<String, CompletableFuture<UUID>>();
+        for (String name : names) {
+            String key = name.toLowerCase();
+            if (!lookups.containsKey(key)) {
+                lookups.put(key, resolve(name));
+            }
+        }
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture[lookups.size()]))
+                .thenApplyAsync(ignored -> {
+                    Map<String, UUID> resolved = new HashMap<String, UUID>();
+                    for (Map.Entry<String, CompletableFuture<UUID>> entry : lookups.entrySet()) {
+                        UUID ID = entry.getValue().join();
+                        if (ID != null) {
+                            resolved.put(entry.getKey(), ID);
+                        }
+                    }
+                    save();
+                    return resolved;
+                }, executor);
+    }
+}
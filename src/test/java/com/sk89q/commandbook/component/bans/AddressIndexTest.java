@@ -0,0 +1,363 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import com.sk89q.commandbook.component.bans.AddressIndex.Prefix;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AddressIndexTest {
+    // Slots in a new table; it holds half as many entries before it grows
+    private static final int SLOTS = 16;
+
+    private static InetAddress address(String input) throws Exception {
+        return InetAddress.getByName(input);
+    }
+
+    private static byte[] v4(int key) {
+        return new byte[] {(byte) (key >>> 24), (byte) (key >>> 16), (byte) (key >>> 8), (byte) key};
+    }
+
+    private static int toInt(byte[] bytes) {
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    private static byte[] v6(long high, long low) {
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (high >>> (56 - i * 8));
+            bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+        }
+        return bytes;
+    }
+
+    private static Prefix prefix(byte[] bytes) throws Exception {
+        return Prefix.parse(InetAddress.getByAddress(bytes).getHostAddress());
+    }
+
+    private static Method mix(Class<?>... types) throws Exception {
+        Method mix = AddressIndex.class.getDeclaredMethod("mix", types);
+        mix.setAccessible(true);
+        return mix;
+    }
+
+    /**
+     * Find IPv4 addresses that hash to the given slot of a new table.
+     */
+    private static List<byte[]> v4HomedAt(int slot, int count) throws Exception {
+        Method mix = mix(int.class);
+        List<byte[]> found = new ArrayList<byte[]>();
+        for (int key = 1; found.size() < count; key++) {
+            if (((Integer) mix.invoke(null, key) & (SLOTS - 1)) == slot) {
+                found.add(v4(key));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find IPv6 addresses that hash to the given slot of a new table.
+     */
+    private static List<byte[]> v6HomedAt(int slot, int count) throws Exception {
+        Method mix = mix(long.class, long.class);
+        List<byte[]> found = new ArrayList<byte[]>();
+        for (long low = 1; found.size() < count; low++) {
+            if (((Integer) mix.invoke(null, 0x20010DB8L << 32, low) & (SLOTS - 1)) == slot) {
+                found.add(v6(0x20010DB8L << 32, low));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Fill the end of a table so the probe chains wrap around to its start, then remove and
+     * re-insert each entry in turn. Every other entry must stay reachable as later ones are
+     * shifted back over the freed slot.
+     */
+    private static void checkWrapAround(List<byte[]> keys) throws Exception {
+        AddressIndex<Integer> index = new AddressIndex<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            assertNull(index.put(prefix(keys.get(i)), i));
+        }
+        for (int removed = 0; removed < keys.size(); removed++) {
+            assertEquals(Integer.valueOf(removed), index.remove(prefix(keys.get(removed))));
+            assertNull(index.remove(prefix(keys.get(removed))));
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(i == removed ? null : Integer.valueOf(i), index.get(keys.get(i)));
+            }
+            assertNull(index.put(prefix(keys.get(removed)), removed));
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(Integer.valueOf(i), index.get(keys.get(i)));
+            }
+        }
+        assertEquals(keys.size(), index.size());
+    }
+
+    @Test
+    public void testWrapAroundV4() throws Exception {
+        // Homed at the last two slots, so all but two of them probe past the end of the table
+        List<byte[]> keys = new ArrayList<byte[]>(v4HomedAt(SLOTS - 1, 5));
+        keys.addAll(v4HomedAt(SLOTS - 2, 3));
+        checkWrapAround(keys);
+    }
+
+    @Test
+    public void testWrapAroundV6() throws Exception {
+        List<byte[]> keys = new ArrayList<byte[]>(v6HomedAt(SLOTS - 1, 5));
+        keys.addAll(v6HomedAt(SLOTS - 2, 3));
+        checkWrapAround(keys);
+    }
+
+    @Test
+    public void testLongProbeChains() throws Exception {
+        // Half of the keys share one home, so their chain runs through the rest
+        Random random = new Random(1);
+        AddressIndex<Integer> index = new AddressIndex<Integer>();
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        List<byte[]> colliding = v4HomedAt(3, 200);
+        for (int i = 0; i < 20000; i++) {
+            byte[] bytes = random.nextBoolean()
+                    ? colliding.get(random.nextInt(colliding.size()))
+                    : v4(random.nextInt(400) + 1000);
+            int asInt = toInt(bytes);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(asInt), index.remove(prefix(bytes)));
+            } else {
+                assertEquals(expected.put(asInt, i), index.put(prefix(bytes), i));
+            }
+            if (i % 500 == 0) {
+                for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                    assertEquals(entry.getValue(), index.get(v4(entry.getKey())));
+                }
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (byte[] bytes : colliding) {
+            assertEquals(expected.get(toInt(bytes)), index.get(bytes));
+        }
+    }
+
+    @Test
+    public void testLongestPrefixV4() throws Exception {
+        AddressIndex<String> index = new AddressIndex<String>();
+        index.put(Prefix.parse("0.0.0.0/0"), "all");
+        index.put(Prefix.parse("10.0.0.0/8"), "/8");
+        index.put(Prefix.parse("10.1.0.0/16"), "/16");
+        index.put(Prefix.parse("10.1.2.0/24"), "/24");
+        index.put(Prefix.parse("10.1.2.3/32"), "/32");
+        index.put(Prefix.parse("255.255.255.255"), "broadcast");
+
+        assertEquals("/32", index.get(address("10.1.2.3")));
+        assertEquals("/24", index.get(address("10.1.2.4")));
+        assertEquals("/16", index.get(address("10.1.3.3")));
+        assertEquals("/8", index.get(address("10.2.2.3")));
+        assertEquals("all", index.get(address("11.1.2.3")));
+        assertEquals("all", index.get(address("0.0.0.0")));
+        assertEquals("broadcast", index.get(address("255.255.255.255")));
+        assertEquals("all", index.get(address("255.255.255.254")));
+        // The families are separate, so the IPv4 /0 does not cover IPv6
+        assertNull(index.get(address("::a01:203")));
+        assertEquals(6, index.size());
+    }
+
+    @Test
+    public void testLongestPrefixV6() throws Exception {
+        AddressIndex<String> index = new AddressIndex<String>();
+        index.put(Prefix.parse("::/0"), "all");
+        index.put(Prefix.parse("2001:db8::/32"), "/32");
+        index.put(Prefix.parse("2001:db8:1::/48"), "/48");
+        index.put(Prefix.parse("2001:db8:1::1/128"), "/128");
+        index.put(Prefix.parse("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"), "last");
+
+        assertEquals("/128", index.get(address("2001:db8:1::1")));
+        assertEquals("/48", index.get(address("2001:db8:1::2")));
+        assertEquals("/32", index.get(address("2001:db8:2::1")));
+        assertEquals("all", index.get(address("2001:db9::1")));
+        assertEquals("all", index.get(address("::")));
+        assertEquals("last", index.get(address("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")));
+        assertEquals("all", index.get(address("ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe")));
+        assertNull(index.get(address("10.0.0.1")));
+    }
+
+    @Test
+    public void testRemoveCoveredRange() throws Exception {
+        AddressIndex<String> index = new AddressIndex<String>();
+        index.put(Prefix.parse("10.0.0.0/8"), "/8");
+        index.put(Prefix.parse("10.1.0.0/16"), "/16");
+        index.put(Prefix.parse("10.1.2.0/24"), "/24");
+        index.put(Prefix.parse("2001:db8::/32"), "v6 /32");
+        index.put(Prefix.parse("2001:db8:1::/48"), "v6 /48");
+
+        assertEquals("/16", index.remove(Prefix.parse("10.1.0.0/16")));
+        assertNull(index.remove(Prefix.parse("10.1.0.0/16")));
+        // Removing the middle range keeps both the narrower and the wider one
+        assertEquals("/24", index.get(address("10.1.2.3")));
+        assertEquals("/8", index.get(address("10.1.3.3")));
+
+        assertEquals("/24", index.remove(Prefix.parse("10.1.2.0/24")));
+        assertEquals("/8", index.get(address("10.1.2.3")));
+
+        assertEquals("v6 /48", index.remove(Prefix.parse("2001:db8:1::/48")));
+        assertEquals("v6 /32", index.get(address("2001:db8:1::1")));
+
+        // Removing a range never removes the addresses it covers
+        index.put(Prefix.parse("10.1.2.3"), "single");
+        assertEquals("/8", index.remove(Prefix.parse("10.0.0.0/8")));
+        assertEquals("single", index.get(address("10.1.2.3")));
+        assertNull(index.get(address("10.1.2.4")));
+        assertEquals(2, index.size());
+    }
+
+    /**
+     * Readers run while one writer adds and removes addresses inside a range that stays put,
+     * growing the tables as it goes. A reader must always see either the address's own value
+     * or the range's, never nothing and never another address's value.
+     */
+    @Test
+    public void testConcurrentReadersDuringWrites() throws Exception {
+        final int readers = 4;
+        final int addresses = 4096;
+        final AddressIndex<Integer> index = new AddressIndex<Integer>();
+        index.put(Prefix.parse("10.0.0.0/8"), -1);
+        final AtomicInteger wrong = new AtomicInteger();
+        final CountDownLatch written = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        results.add(executor.submit(() -> {
+            Random random = new Random(0);
+            try {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < addresses; i++) {
+                        index.put(prefix(v4(0x0A000000 | i)), i);
+                    }
+                    for (int i = 0; i < addresses * 4; i++) {
+                        int key = random.nextInt(addresses);
+                        if (random.nextBoolean()) {
+                            index.remove(prefix(v4(0x0A000000 | key)));
+                        } else {
+                            index.put(prefix(v4(0x0A000000 | key)), key);
+                        }
+                    }
+                    index.clear();
+                    index.put(Prefix.parse("10.0.0.0/8"), -1);
+                }
+            } finally {
+                written.countDown();
+            }
+            return null;
+        }));
+        for (int r = 0; r < readers; r++) {
+            final long seed = r + 1;
+            results.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                while (written.getCount() > 0) {
+                    int key = random.nextInt(addresses);
+                    Integer value = index.get(v4(0x0A000000 | key));
+                    // Only clear() leaves a moment without the range
+                    if (value != null && value != -1 && value != key) {
+                        wrong.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertEquals(0, wrong.get());
+    }
+
+    /**
+     * Time lookups against a million single addresses and fifty thousand ranges, checking each
+     * answer against a scan of the ranges. Only runs with {@code -Dcommandbook.benchmark=true}.
+     */
+    @Test
+    public void benchmarkLookups() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("commandbook.benchmark"));
+        final int singles = 1000000;
+        final int ranges = 50000;
+        final int lookups = 2000000;
+        Random random = new Random(42);
+
+        AddressIndex<Integer> index = new AddressIndex<Integer>();
+        Set<Integer> singleKeys = new HashSet<Integer>();
+        long start = System.nanoTime();
+        while (singleKeys.size() < singles) {
+            int key = random.nextInt();
+            if (singleKeys.add(key)) {
+                index.put(prefix(v4(key)), key);
+            }
+        }
+        // Ranges by length, so the longest match is the first one found scanning from the longest
+        List<Map<Integer, Integer>> byLength = new ArrayList<Map<Integer, Integer>>();
+        for (int length = 0; length <= 32; length++) {
+            byLength.add(new HashMap<Integer, Integer>());
+        }
+        for (int i = 0; i < ranges; i++) {
+            int length = 16 + random.nextInt(16);
+            int network = random.nextInt() & (int) (0xFFFFFFFFL << (32 - length));
+            index.put(Prefix.parse(InetAddress.getByAddress(v4(network)).getHostAddress() + "/" + length), -(i + 1));
+            byLength.get(length).put(network, -(i + 1));
+        }
+        long built = System.nanoTime();
+
+        int[] probes = new int[lookups];
+        Integer[] singleArray = singleKeys.toArray(new Integer[singles]);
+        for (int i = 0; i < lookups; i++) {
+            probes[i] = i % 2 == 0 ? singleArray[random.nextInt(singles)] : random.nextInt();
+        }
+        byte[] bytes = new byte[4];
+        long found = 0;
+        long lookupStart = System.nanoTime();
+        for (int probe : probes) {
+            bytes[0] = (byte) (probe >>> 24);
+            bytes[1] = (byte) (probe >>> 16);
+            bytes[2] = (byte) (probe >>> 8);
+            bytes[3] = (byte) probe;
+            if (index.get(bytes) != null) {
+                ++found;
+            }
+        }
+        long lookupEnd = System.nanoTime();
+
+        for (int i = 0; i < 100000; i++) {
+            int probe = probes[i];
+            Integer expected = singleKeys.contains(probe) ? probe : null;
+            for (int length = 32; expected == null && length >= 0; length--) {
+                int network = length == 0 ? 0 : probe & (int) (0xFFFFFFFFL << (32 - length));
+                expected = byLength.get(length).get(network);
+            }
+            assertEquals(expected, index.get(v4(probe)));
+        }
+
+        System.out.println(String.format("AddressIndex: built %d entries in %d ms, %d lookups in %d ms (%.0f ns each, %d found)",
+                index.size(), (built - start) / 1000000, lookups, (lookupEnd - lookupStart) / 1000000,
+                (lookupEnd - lookupStart) / (double) lookups, found));
+    }
+}
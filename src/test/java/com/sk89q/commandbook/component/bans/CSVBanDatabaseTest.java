@@ -0,0 +1,153 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.bans;
+
+import com.sk89q.commandbook.util.RecordJournal;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CSVBanDatabaseTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private final UUID first = UUID.randomUUID();
+    private final UUID second = UUID.randomUUID();
+    private final UUID unbanned = UUID.randomUUID();
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+    }
+
+    private CSVBanDatabase open(boolean journaled) {
+        CSVBanDatabase database = new CSVBanDatabase(dir, null, journaled, 1000, 0);
+        assertTrue(database.load());
+        return database;
+    }
+
+    private File journalFile() {
+        return new File(dir, "bans.journal");
+    }
+
+    private File compactingFile() {
+        return new File(dir, "bans.journal.compacting");
+    }
+
+    /**
+     * Write a bans.csv that only holds the ban that is lifted later.
+     */
+    private void writeStaleSnapshot() {
+        CSVBanDatabase database = open(false);
+        database.ban(unbanned, "unbanned", null, null, "stale", 0L);
+        assertTrue(database.unload());
+    }
+
+    private void assertRecovered(CSVBanDatabase database) throws IOException {
+        assertTrue(database.isBanned(first));
+        assertTrue(database.isBanned(InetAddress.getByName("10.0.0.1")));
+        assertTrue(database.isBanned(second));
+        assertFalse(database.isBanned(unbanned));
+        assertEquals("second", database.getBanned(second).getReason());
+    }
+
+    @Test
+    public void testReloadWithoutClose() throws IOException {
+        writeStaleSnapshot();
+        CSVBanDatabase crashed = open(true);
+        crashed.unban(unbanned, null, null, "lifted");
+        crashed.ban(first, "first", "10.0.0.1", null, "first", 0L);
+        crashed.ban(second, "second", null, null, "second", 0L);
+        assertTrue(crashed.save());
+        // No unload: the journal is all that is left of the changes
+
+        CSVBanDatabase reloaded = open(true);
+        assertRecovered(reloaded);
+        assertTrue(reloaded.unload());
+    }
+
+    @Test
+    public void testReloadAfterCrashBetweenRotateAndCompaction() throws IOException {
+        writeStaleSnapshot();
+        CSVBanDatabase crashed = open(true);
+        crashed.unban(unbanned, null, null, "lifted");
+        crashed.ban(first, "first", "10.0.0.1", null, "first", 0L);
+        assertTrue(crashed.save());
+
+        // As left by a compaction that rotated the journal but died before replacing bans.csv:
+        // the rotated records, a half written snapshot and records appended since the rotation
+        assertTrue(journalFile().renameTo(compactingFile()));
+        FileOutputStream partial = new FileOutputStream(new File(dir, "bans.csv.tmp"));
+        try {
+            partial.write("\"".getBytes("utf-8"));
+        } finally {
+            partial.close();
+        }
+        RecordJournal live = new RecordJournal(journalFile());
+        live.append("BAN", second.toString(), "second", null, "second", String.valueOf(System.currentTimeMillis()), "0");
+        live.close();
+
+        CSVBanDatabase reloaded = open(true);
+        assertRecovered(reloaded);
+        // Unloading waits for the compaction the leftover records started
+        assertTrue(reloaded.unload());
+        assertFalse(compactingFile().exists());
+
+        CSVBanDatabase fromSnapshot = open(false);
+        assertRecovered(fromSnapshot);
+        assertTrue(fromSnapshot.unload());
+    }
+
+    @Test
+    public void testReloadWithTornJournalTail() throws IOException {
+        CSVBanDatabase crashed = open(true);
+        crashed.ban(first, "first", "10.0.0.1", null, "first", 0L);
+        crashed.ban(second, "second", null, null, "second", 0L);
+        assertTrue(crashed.save());
+        RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        CSVBanDatabase reloaded = open(true);
+        assertTrue(reloaded.isBanned(first));
+        assertFalse(reloaded.isBanned(second));
+        // Later changes follow the last intact record, so they survive the next reload
+        reloaded.ban(second, "second", null, null, "second", 0L);
+        assertTrue(reloaded.unload());
+
+        CSVBanDatabase again = open(true);
+        assertTrue(again.isBanned(first));
+        assertTrue(again.isBanned(second));
+        assertTrue(again.unload());
+    }
+}
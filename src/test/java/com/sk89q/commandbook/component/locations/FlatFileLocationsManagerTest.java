@@ -0,0 +1,295 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.locations;
+
+import com.sk89q.commandbook.util.RecordJournal;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FlatFileLocationsManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Every location is in the manager's own world, so loading never asks the server for one
+    private final World world = (World) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {World.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getName":
+                        return "world";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return null;
+                }
+            });
+    private final UUID ownerID = UUID.randomUUID();
+    private final Player owner = (Player) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Player.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getUniqueId":
+                        return ownerID;
+                    case "getName":
+                        return "owner";
+                    default:
+                        return null;
+                }
+            });
+
+    private File file;
+    private ExecutorService writer;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "homes.csv");
+        writer = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    private FlatFileLocationsManager open(ExecutorService writer, int compactThreshold) throws IOException {
+        FlatFileLocationsManager manager = new FlatFileLocationsManager(file, "Home", writer, compactThreshold);
+        manager.castWorld(world);
+        manager.load();
+        return manager;
+    }
+
+    private FlatFileLocationsManager openJournaled(int compactThreshold) throws IOException {
+        return open(writer, compactThreshold);
+    }
+
+    /**
+     * Open the file alone, without replaying any journal.
+     */
+    private FlatFileLocationsManager openSnapshot() throws IOException {
+        return open(null, 0);
+    }
+
+    /**
+     * Wait for every write queued so far.
+     */
+    private void drain() throws Exception {
+        writer.submit(() -> { }).get();
+    }
+
+    private File journalFile() {
+        return new File(folder.getRoot(), "homes.csv.journal");
+    }
+
+    private File compactingFile() {
+        return new File(folder.getRoot(), "homes.csv.journal.compacting");
+    }
+
+    private void create(LocationManager<NamedLocation> manager, String name, double x) {
+        manager.create(name, new Location(world, x, 64, -x), owner);
+    }
+
+    private static void assertAt(LocationManager<NamedLocation> manager, String name, double x) {
+        NamedLocation loc = manager.get(name);
+        assertNotNull(name + " is missing", loc);
+        assertEquals(x, loc.getLocation().getX(), 0);
+        assertEquals(-x, loc.getLocation().getZ(), 0);
+    }
+
+    @Test
+    public void testReloadWithoutClose() throws Exception {
+        FlatFileLocationsManager crashed = openJournaled(1000);
+        create(crashed, "a", 1);
+        create(crashed, "b", 2);
+        create(crashed, "c", 3);
+        create(crashed, "a", 4);
+        crashed.remove("b");
+        crashed.save();
+        drain();
+        // No close: the journal is all that is left of the changes
+        assertFalse(file.exists());
+
+        FlatFileLocationsManager reloaded = openJournaled(1000);
+        assertEquals(2, reloaded.getLocations().size());
+        assertAt(reloaded, "a", 4);
+        assertAt(reloaded, "c", 3);
+        assertNull(reloaded.get("b"));
+        assertEquals(ownerID, reloaded.get("a").getCreatorID());
+        reloaded.close();
+    }
+
+    @Test
+    public void testReloadWithLeftoverCompactingJournal() throws Exception {
+        FlatFileLocationsManager stale = openSnapshot();
+        create(stale, "stale", 1);
+        create(stale, "b", 2);
+        stale.save();
+        stale.close();
+
+        FlatFileLocationsManager crashed = openJournaled(1000);
+        crashed.remove("stale");
+        create(crashed, "a", 3);
+        crashed.save();
+        drain();
+
+        // As left by a compaction that rotated the journal but died before replacing the file:
+        // the rotated records, the stale file and a record appended since the rotation
+        assertTrue(journalFile().renameTo(compactingFile()));
+        RecordJournal live = new RecordJournal(journalFile());
+        live.append("SET", "c", "world", ownerID.toString(), "5.0", "64.0", "-5.0", "0.0", "0.0");
+        live.close();
+
+        FlatFileLocationsManager reloaded = openJournaled(1000);
+        assertNull(reloaded.get("stale"));
+        assertAt(reloaded, "a", 3);
+        assertAt(reloaded, "b", 2);
+        assertAt(reloaded, "c", 5);
+        // Closing waits for the compaction the leftover records started
+        reloaded.close();
+        assertFalse(compactingFile().exists());
+
+        FlatFileLocationsManager fromSnapshot = openSnapshot();
+        assertEquals(3, fromSnapshot.getLocations().size());
+        assertNull(fromSnapshot.get("stale"));
+        assertAt(fromSnapshot, "c", 5);
+    }
+
+    @Test
+    public void testFailedCompactionConverges() throws Exception {
+        FlatFileLocationsManager manager = openJournaled(3);
+        // A directory in the file's place makes writing the file fail
+        assertTrue(file.mkdir());
+        assertTrue(new File(file, "blocker").createNewFile());
+        create(manager, "a", 1);
+        create(manager, "b", 2);
+        create(manager, "c", 3);
+        drain();
+        assertTrue("The failed compaction's records are kept", compactingFile().exists());
+
+        assertTrue(new File(file, "blocker").delete());
+        assertTrue(file.delete());
+        create(manager, "d", 4);
+        manager.remove("a");
+        create(manager, "e", 5);
+        drain();
+        assertFalse(compactingFile().exists());
+
+        FlatFileLocationsManager fromSnapshot = openSnapshot();
+        assertEquals(4, fromSnapshot.getLocations().size());
+        assertNull(fromSnapshot.get("a"));
+        assertAt(fromSnapshot, "e", 5);
+
+        manager.close();
+        FlatFileLocationsManager reloaded = openJournaled(3);
+        assertEquals(4, reloaded.getLocations().size());
+        assertNull(reloaded.get("a"));
+        assertAt(reloaded, "b", 2);
+        reloaded.close();
+    }
+
+    @Test
+    public void testFailedCompactionBacksOff() throws Exception {
+        final AtomicInteger tasks = new AtomicInteger();
+        writer.shutdown();
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable task) {
+                tasks.incrementAndGet();
+            }
+        };
+        FlatFileLocationsManager manager = openJournaled(3);
+        assertTrue(file.mkdir());
+        assertTrue(new File(file, "blocker").createNewFile());
+        create(manager, "a", 1);
+        create(manager, "b", 2);
+        create(manager, "c", 3);
+        drain();
+        assertTrue(compactingFile().exists());
+
+        // Nothing is saved, so the only other tasks are the compactions
+        tasks.set(0);
+        for (int i = 0; i < 9; i++) {
+            create(manager, "d" + i, i);
+            drain();
+        }
+        assertEquals("Retried once every 3 changes", 3 + 9, tasks.get());
+
+        assertTrue(new File(file, "blocker").delete());
+        assertTrue(file.delete());
+        for (int i = 0; i < 3; i++) {
+            manager.remove("d" + i);
+        }
+        drain();
+        assertFalse(compactingFile().exists());
+        assertEquals(9, openSnapshot().getLocations().size());
+        manager.close();
+    }
+
+    @Test
+    public void testQueriesMatchDefaults() throws Exception {
+        final FlatFileLocationsManager manager = openSnapshot();
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            Player creator = i % 3 == 0 ? owner : null;
+            manager.create((i % 2 == 0 ? "Loc" : "loc") + random.nextInt(100000),
+                    new Location(world, random.nextDouble() * 4000 - 2000, 64, random.nextDouble() * 4000 - 2000), creator);
+        }
+        // Only what an implementation must provide, so every query falls back to the defaults
+        LocationManager<NamedLocation> scanning = (LocationManager<NamedLocation>) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {LocationManager.class}, (proxy, method, args) -> {
+                    if (method.isDefault()) {
+                        return InvocationHandler.invokeDefault(proxy, method, args);
+                    }
+                    return method.invoke(manager, args);
+                });
+
+        List<NamedLocation> owned = manager.getLocations(ownerID);
+        assertEquals(scanning.getLocations(ownerID), owned);
+        for (int i = 1; i < owned.size(); i++) {
+            assertTrue(String.CASE_INSENSITIVE_ORDER.compare(owned.get(i - 1).getName(), owned.get(i).getName()) <= 0);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            Location origin = new Location(world, random.nextDouble() * 4000 - 2000, 64, random.nextDouble() * 4000 - 2000);
+            assertEquals(scanning.getNearest(origin, 10), manager.getNearest(origin, 10));
+            assertEquals(scanning.getWithin(origin, 300), manager.getWithin(origin, 300));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SessionDataCacheTest {
+    private static final int MAX_SIZE = 256;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 50000;
+    private static final int SENDERS = 20000;
+    private static final int PINNED = 16;
+
+    private static Set<String> pinnedKeys() {
+        Set<String> pinned = new HashSet<String>();
+        for (int i = 0; i < PINNED; i++) {
+            pinned.add(SessionDataCache.getKey("player", "pinned" + i));
+        }
+        return pinned;
+    }
+
+    /**
+     * Load and evict files from many threads the way {@link SessionComponent} does, and check that
+     * the cache never grows far past its bound and never drops a file that is in use.
+     */
+    @Test
+    public void testBoundUnderChurn() throws Exception {
+        final SessionDataCache cache = new SessionDataCache(MAX_SIZE, TimeUnit.HOURS.toMillis(1));
+        final Set<String> pinned = pinnedKeys();
+        for (int i = 0; i < PINNED; i++) {
+            cache.putIfAbsent("player", "pinned" + i, new SessionData());
+        }
+
+        // Each thread can add one file past the overfull mark before one of them evicts
+        final int bound = MAX_SIZE + MAX_SIZE / 8 + THREADS;
+        final AtomicInteger largest = new AtomicInteger();
+        final AtomicLong evicted = new AtomicLong();
+        final AtomicLong gets = new AtomicLong();
+        final Set<String> lostPinned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            results.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    String commander = "player" + random.nextInt(SENDERS);
+                    gets.incrementAndGet();
+                    if (cache.get("player", commander) == null) {
+                        cache.putIfAbsent("player", commander, new SessionData());
+                        largest.accumulateAndGet(cache.size(), Math::max);
+                        if (cache.isOverfull()) {
+                            Set<String> inUse = new HashSet<String>(pinned);
+                            inUse.add(SessionDataCache.getKey("player", commander));
+                            for (SessionDataCache.Entry entry : cache.evict(inUse, System.currentTimeMillis())) {
+                                String key = SessionDataCache.getKey(entry.getType(), entry.getCommander());
+                                if (pinned.contains(key)) {
+                                    lostPinned.add(key);
+                                }
+                                evicted.incrementAndGet();
+                            }
+                        }
+                    }
+                    if (random.nextInt(4) == 0) {
+                        cache.setDirty("player", commander, true);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertTrue("The cache grew to " + largest.get() + " files", largest.get() <= bound);
+        assertTrue("Files in use were evicted: " + lostPinned, lostPinned.isEmpty());
+        assertEquals(evicted.get(), cache.getEvictions());
+        assertEquals(gets.get(), cache.getHits() + cache.getMisses());
+        assertTrue(cache.getEvictions() > 0);
+
+        // Settles at the bound once the churn stops, keeping the files in use
+        cache.evict(pinned, System.currentTimeMillis());
+        assertTrue(cache.size() <= MAX_SIZE);
+        for (int i = 0; i < PINNED; i++) {
+            assertNotNull(cache.get("player", "pinned" + i));
+        }
+    }
+
+    @Test
+    public void testIdleFilesEvictedExceptInUse() {
+        SessionDataCache cache = new SessionDataCache(4, 1000);
+        cache.putIfAbsent("player", "a", new SessionData());
+        cache.putIfAbsent("player", "b", new SessionData());
+        cache.setDirty("player", "a", true);
+        long later = System.currentTimeMillis() + 2000;
+        cache.putIfAbsent("player", "c", new SessionData());
+
+        List<SessionDataCache.Entry> evicted = cache.evict(Collections.singleton(SessionDataCache.getKey("player", "b")), later);
+        assertEquals(2, evicted.size());
+        // Handed back with its dirty flag so it can be written
+        assertEquals("a", evicted.get(0).getCommander());
+        assertTrue(evicted.get(0).isDirty());
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("player", "b"));
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SessionRegistryTest {
+    private static final int THREADS = 8;
+    private static final int PLAYERS = 16;
+    private static final int OPERATIONS = 20000;
+    // Players in the component test, and how many of them never disconnect; few, so that
+    // sessions are often created for a player while it is being removed
+    private static final int COMPONENT_PLAYERS = 6;
+    private static final int ONLINE = 2;
+    private static final int COMPONENT_OPERATIONS = 100000;
+
+    public static class FirstSession extends PersistentSession {
+        public FirstSession() {
+            super(-1);
+        }
+    }
+
+    public static class SecondSession extends PersistentSession {
+        public SecondSession() {
+            super(-1);
+        }
+    }
+
+    public static class ThirdSession extends PersistentSession {
+        public ThirdSession() {
+            super(-1);
+        }
+    }
+
+    public static class FourthSession extends PersistentSession {
+        public FourthSession() {
+            super(-1);
+        }
+    }
+
+    /**
+     * Expires as soon as its sender disconnects.
+     */
+    public static class ExpiringSession extends PersistentSession {
+        public ExpiringSession() {
+            super(0);
+        }
+    }
+
+    public static class AddedSession extends PersistentSession {
+        public AddedSession() {
+            super(0);
+        }
+    }
+
+    /**
+     * Keeps each sender's data in memory.
+     */
+    private static class MemoryStore implements SessionStore {
+        private final ConcurrentMap<String, SessionData> files = new ConcurrentHashMap<String, SessionData>();
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public SessionData load(String type, String commander) {
+            SessionData data = files.get(type + '/' + commander);
+            return data == null ? null : data.copy();
+        }
+
+        @Override
+        public void save(String type, String commander, SessionData data) {
+            if (data.isEmpty()) {
+                files.remove(type + '/' + commander);
+            } else {
+                files.put(type + '/' + commander, data.copy());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final List<Class<? extends PersistentSession>> TYPES = Arrays.<Class<? extends PersistentSession>>asList(
+            FirstSession.class, SecondSession.class, ThirdSession.class, FourthSession.class);
+
+    private static Player player(final UUID ID) {
+        return (Player) Proxy.newProxyInstance(SessionRegistryTest.class.getClassLoader(), new Class<?>[] {Player.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUniqueId":
+                            return ID;
+                        case "getName":
+                            return ID.toString().substring(0, 8);
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Add and remove sessions of every player from many threads at once, so senders are removed
+     * as their last session goes while other threads add sessions to them. Each thread owns one
+     * session type on half of the players, so a session it added must stay reachable until it
+     * removes it again.
+     */
+    @Test
+    public void testConcurrentCreateAndRemove() throws Exception {
+        final SessionRegistry registry = new SessionRegistry();
+        final Player[] players = new Player[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = player(new UUID(0, i));
+        }
+        final AtomicInteger lost = new AtomicInteger();
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Map<Integer, PersistentSession>>> results = new ArrayList<Future<Map<Integer, PersistentSession>>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                Random random = new Random(thread);
+                Class<? extends PersistentSession> type = TYPES.get(thread % TYPES.size());
+                int typeID = SessionRegistry.getTypeID(type);
+                // The session this thread holds for each of its players
+                Map<Integer, PersistentSession> held = new HashMap<Integer, PersistentSession>();
+                start.await();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    int index = random.nextInt(PLAYERS / 2) * 2 + thread / TYPES.size();
+                    Player player = players[index];
+                    PersistentSession session = held.remove(index);
+                    if (session == null) {
+                        session = type.newInstance();
+                        while (!registry.getOrCreate(player).put(typeID, session)) {
+                            // Removed in the meantime, as SessionComponent#addSession retries
+                        }
+                        SessionRegistry.Slots slots = registry.get(player);
+                        if (slots == null || slots.get(typeID) != session) {
+                            lost.incrementAndGet();
+                        }
+                        held.put(index, session);
+                    } else {
+                        SessionRegistry.Slots slots = registry.get(player);
+                        if (slots == null || !slots.remove(typeID, session)) {
+                            lost.incrementAndGet();
+                            continue;
+                        }
+                        registry.removeIfEmpty(slots);
+                    }
+                }
+                return held;
+            }));
+        }
+
+        Map<Class<?>, Integer> expected = new HashMap<Class<?>, Integer>();
+        List<Map<Integer, PersistentSession>> held = new ArrayList<Map<Integer, PersistentSession>>();
+        for (Future<Map<Integer, PersistentSession>> result : results) {
+            Map<Integer, PersistentSession> sessions = result.get(60, TimeUnit.SECONDS);
+            held.add(sessions);
+            for (PersistentSession session : sessions.values()) {
+                Integer count = expected.get(session.getClass());
+                expected.put(session.getClass(), count == null ? 1 : count + 1);
+            }
+        }
+        executor.shutdown();
+        assertEquals("Sessions were added to senders that had been removed", 0, lost.get());
+
+        for (Class<? extends PersistentSession> type : TYPES) {
+            int count = 0;
+            for (PersistentSession ignored : registry.getAll(type)) {
+                ++count;
+            }
+            Integer expectedCount = expected.get(type);
+            assertEquals(expectedCount == null ? 0 : expectedCount.intValue(), count);
+        }
+
+        // Once every session is gone, so is every sender
+        for (int t = 0; t < THREADS; t++) {
+            int typeID = SessionRegistry.getTypeID(TYPES.get(t % TYPES.size()));
+            for (Map.Entry<Integer, PersistentSession> entry : held.get(t).entrySet()) {
+                SessionRegistry.Slots slots = registry.get(players[entry.getKey()]);
+                assertTrue(slots.remove(typeID, entry.getValue()));
+                registry.removeIfEmpty(slots);
+            }
+        }
+        assertTrue(registry.getAll().isEmpty());
+    }
+
+    /**
+     * Get and add sessions through {@link SessionComponent} from many threads while the server
+     * thread disconnects and reconnects players and collects their expired sessions, so senders are removed
+     * while sessions are created for them. A session whose player is still connected must stay
+     * the only one of its type for that player.
+     */
+    @Test
+    public void testComponentKeepsSessionsInUse() throws Exception {
+        // The races are narrow, so give them a few chances
+        for (int round = 0; round < 3; round++) {
+            checkComponentRound(round);
+        }
+    }
+
+    private void checkComponentRound(final int round) throws Exception {
+        final int workers = THREADS - 1;
+        final SessionComponent component = new SessionComponent();
+        component.open(new MemoryStore());
+        final Player[] players = new Player[COMPONENT_PLAYERS];
+        for (int i = 0; i < COMPONENT_PLAYERS; i++) {
+            players[i] = player(new UUID(round + 1, i));
+        }
+        // Sessions that were replaced with addSession, which are gone even if reconnected since
+        final Set<PersistentSession> replaced = Collections.newSetFromMap(new ConcurrentHashMap<PersistentSession, Boolean>());
+        final CountDownLatch done = new CountDownLatch(workers);
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<PersistentSession>>> results = new ArrayList<Future<List<PersistentSession>>>();
+        for (int t = 0; t < workers; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                Random random = new Random(round * THREADS + thread);
+                List<PersistentSession> returned = new ArrayList<PersistentSession>();
+                // The session this thread last added for each of its players
+                Map<Integer, AddedSession> added = new HashMap<Integer, AddedSession>();
+                start.await();
+                try {
+                    for (int i = 0; i < COMPONENT_OPERATIONS; i++) {
+                        int index = random.nextInt(COMPONENT_PLAYERS);
+                        if (random.nextInt(8) != 0) {
+                            returned.add(component.getSession(ExpiringSession.class, players[index]));
+                        } else if (index % workers == thread) {
+                            // Only this thread adds sessions to the player, so it knows which one it replaces
+                            AddedSession previous = added.get(index);
+                            if (previous != null) {
+                                previous.handleDisconnect();
+                                replaced.add(previous);
+                            }
+                            AddedSession session = new AddedSession();
+                            session.handleReconnect(players[index]);
+                            component.addSession(session, players[index]);
+                            added.put(index, session);
+                            returned.add(session);
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+                return returned;
+            }));
+        }
+        Future<Integer> server = executor.submit(() -> {
+            Random random = new Random(-round - 1);
+            int disconnects = 0;
+            start.await();
+            while (done.getCount() > 0) {
+                Player player = players[ONLINE + random.nextInt(COMPONENT_PLAYERS - ONLINE)];
+                if (random.nextInt(4) == 0) {
+                    // Back before the sessions were collected, as on login
+                    for (PersistentSession session : component.getSessions(player)) {
+                        session.handleReconnect(player);
+                    }
+                } else {
+                    component.saveSessions(player, false);
+                    ++disconnects;
+                }
+                // Not every time, so some players come back while their sessions wait to be collected
+                if (random.nextInt(3) == 0) {
+                    component.run();
+                }
+            }
+            return disconnects;
+        });
+
+        List<PersistentSession> returned = new ArrayList<PersistentSession>();
+        for (Future<List<PersistentSession>> result : results) {
+            returned.addAll(result.get(60, TimeUnit.SECONDS));
+        }
+        assertTrue(server.get(60, TimeUnit.SECONDS) > 0);
+        executor.shutdown();
+
+        Map<Player, Set<PersistentSession>> online = new HashMap<Player, Set<PersistentSession>>();
+        Set<PersistentSession> created = Collections.newSetFromMap(new IdentityHashMap<PersistentSession, Boolean>());
+        for (PersistentSession session : returned) {
+            created.add(session);
+            CommandSender owner = session.getOwner();
+            if (owner == null || replaced.contains(session)) {
+                // Disconnected or replaced, so it may be gone
+                continue;
+            }
+            assertTrue(session.getClass().getSimpleName() + " of a connected player was lost",
+                    component.getSessions(owner).contains(session));
+            if (session instanceof ExpiringSession) {
+                Set<PersistentSession> sessions = online.get(owner);
+                if (sessions == null) {
+                    online.put((Player) owner, sessions = Collections.newSetFromMap(new IdentityHashMap<PersistentSession, Boolean>()));
+                }
+                sessions.add(session);
+            }
+        }
+        for (int i = 0; i < ONLINE; i++) {
+            assertEquals("Duplicate sessions for a connected player", 1, online.get(players[i]).size());
+        }
+        // Sessions were collected and created again
+        assertTrue(created.size() > COMPONENT_PLAYERS * 2);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.component.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SharedSessionStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedSessionStore first;
+    private SharedSessionStore second;
+
+    @Before
+    public void setUp() throws IOException {
+        first = new SharedSessionStore(folder.getRoot());
+        second = new SharedSessionStore(folder.getRoot());
+        first.open();
+        second.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        first.close();
+        second.close();
+    }
+
+    private static SessionData data(String key, Object value) {
+        SessionData data = new SessionData();
+        data.put(key, value);
+        return data;
+    }
+
+    private SessionData reload() throws IOException {
+        SharedSessionStore store = new SharedSessionStore(folder.getRoot());
+        store.open();
+        try {
+            return store.load("player", "bob");
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentChangesAreMerged() throws IOException {
+        SessionData initial = data("mute", false);
+        initial.put("user", "alice");
+        first.save("player", "bob", initial);
+
+        SessionData ours = first.load("player", "bob");
+        SessionData theirs = second.load("player", "bob");
+        ours.put("user", "carol");
+        theirs.put("mute", true);
+        second.save("player", "bob", theirs);
+        first.save("player", "bob", ours);
+
+        SessionData saved = reload();
+        assertEquals("carol", saved.get("user"));
+        assertEquals(true, saved.get("mute"));
+        assertEquals(1, first.getConflicts());
+    }
+
+    @Test
+    public void testSaveWithoutLoadKeepsOtherSessions() throws IOException {
+        second.save("player", "bob", data("mute", true));
+        // Never loaded by the first server, so it has nothing to merge against
+        first.save("player", "bob", data("user", "carol"));
+
+        SessionData saved = reload();
+        assertEquals("carol", saved.get("user"));
+        assertEquals(true, saved.get("mute"));
+        assertEquals(1, first.getConflicts());
+    }
+
+    /**
+     * Data with unsaved changes is kept when it is read again, as {@link SessionDataCache#refresh}
+     * does, so saving it must still merge with what the other server saved before the reload.
+     */
+    @Test
+    public void testRefreshKeepingChangesStillMerges() throws IOException {
+        SessionData initial = data("mute", false);
+        initial.put("user", "alice");
+        first.save("player", "bob", initial);
+
+        SessionData ours = first.load("player", "bob");
+        SessionData theirs = second.load("player", "bob");
+        theirs.put("mute", true);
+        second.save("player", "bob", theirs);
+        ours.put("user", "carol");
+        assertFalse(first.reload("player", "bob", data -> false));
+        first.save("player", "bob", ours);
+
+        SessionData saved = reload();
+        assertEquals("carol", saved.get("user"));
+        assertEquals(true, saved.get("mute"));
+
+        // What is loaded here never took the other server's change, so the next save merges again
+        ours.put("user", "dave");
+        first.save("player", "bob", ours);
+        saved = reload();
+        assertEquals("dave", saved.get("user"));
+        assertEquals(true, saved.get("mute"));
+        assertEquals(2, first.getConflicts());
+    }
+
+    @Test
+    public void testRefreshTakingDataMovesTheBase() throws IOException {
+        first.save("player", "bob", data("user", "alice"));
+        second.load("player", "bob");
+        SessionData theirs = data("user", "alice");
+        theirs.put("mute", true);
+        second.save("player", "bob", theirs);
+
+        final SessionData[] taken = new SessionData[1];
+        assertTrue(first.reload("player", "bob", data -> {
+            taken[0] = data;
+            return true;
+        }));
+        assertEquals(true, taken[0].get("mute"));
+        taken[0].remove("mute");
+        first.save("player", "bob", taken[0]);
+
+        // Saved against what was just read, so removing the session is not undone by a merge
+        assertNull(reload().get("mute"));
+        assertEquals(0, first.getConflicts());
+    }
+}
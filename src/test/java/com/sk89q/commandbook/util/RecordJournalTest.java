@@ -0,0 +1,205 @@
+/*
+ * CommandBook
+ * Copyright (C) 2011 sk89q <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.sk89q.commandbook.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    /**
+     * The offset of each of the three records written by {@link #writeRecords()}, and the end of the file
+     */
+    private long[] offsets;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "test.journal");
+    }
+
+    private void writeRecords() throws IOException {
+        RecordJournal journal = new RecordJournal(file);
+        journal.open();
+        offsets = new long[4];
+        offsets[0] = journal.append("SET", "a", null);
+        offsets[1] = journal.append("SET", "b", "éè");
+        offsets[2] = journal.append("REMOVE", "a");
+        offsets[3] = journal.getPosition();
+        journal.close();
+        assertEquals(offsets[3], file.length());
+    }
+
+    private List<String[]> replay() throws IOException {
+        final List<String[]> records = new ArrayList<String[]>();
+        RecordJournal.replay(file, records::add);
+        return records;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flipByte(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertFirstTwoRecords(List<String[]> records) {
+        assertEquals(2, records.size());
+        assertArrayEquals(new String[] {"SET", "a", null}, records.get(0));
+        assertArrayEquals(new String[] {"SET", "b", "éè"}, records.get(1));
+    }
+
+    @Test
+    public void testReplayAllRecords() throws IOException {
+        writeRecords();
+        List<String[]> records = replay();
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[] {"REMOVE", "a"}, records.get(2));
+        assertEquals(offsets[3], file.length());
+    }
+
+    @Test
+    public void testReplayMissingFile() throws IOException {
+        assertEquals(0, RecordJournal.replay(file, fields -> fail("No records expected")));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testTornInLength() throws IOException {
+        writeRecords();
+        truncate(offsets[2] + 2);
+        assertFirstTwoRecords(replay());
+        assertEquals(offsets[2], file.length());
+    }
+
+    @Test
+    public void testTornInPayload() throws IOException {
+        writeRecords();
+        truncate(offsets[2] + 4 + 3);
+        assertFirstTwoRecords(replay());
+        assertEquals(offsets[2], file.length());
+    }
+
+    @Test
+    public void testTornInChecksum() throws IOException {
+        writeRecords();
+        truncate(offsets[3] - 1);
+        assertFirstTwoRecords(replay());
+        assertEquals(offsets[2], file.length());
+    }
+
+    @Test
+    public void testCorruptChecksum() throws IOException {
+        writeRecords();
+        flipByte(offsets[3] - 1);
+        assertFirstTwoRecords(replay());
+        assertEquals(offsets[2], file.length());
+    }
+
+    @Test
+    public void testCorruptPayload() throws IOException {
+        writeRecords();
+        flipByte(offsets[2] + 4 + 2);
+        assertFirstTwoRecords(replay());
+        assertEquals(offsets[2], file.length());
+    }
+
+    @Test
+    public void testCorruptLength() throws IOException {
+        writeRecords();
+        flipByte(offsets[2]);
+        assertFirstTwoRecords(replay());
+        assertEquals(offsets[2], file.length());
+    }
+
+    @Test
+    public void testAppendAfterReplayFollowsLastGoodRecord() throws IOException {
+        writeRecords();
+        truncate(offsets[2] + 4 + 3);
+        assertEquals(2, replay().size());
+
+        RecordJournal journal = new RecordJournal(file);
+        long offset = journal.append("SET", "c", "d");
+        assertEquals(offsets[2], offset);
+        journal.close();
+
+        List<String[]> records = replay();
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[] {"SET", "c", "d"}, records.get(2));
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            assertArrayEquals(new String[] {"SET", "c", "d"}, RecordJournal.read(raf, offset));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testReplayFromOffset() throws IOException {
+        writeRecords();
+        final List<Long> seen = new ArrayList<Long>();
+        assertEquals(2, RecordJournal.replay(file, offsets[1], (offset, fields) -> seen.add(offset)));
+        assertEquals(offsets[1], (long) seen.get(0));
+        assertEquals(offsets[2], (long) seen.get(1));
+    }
+
+    @Test
+    public void testRotate() throws IOException {
+        writeRecords();
+        File dest = new File(folder.getRoot(), "test.journal.compacting");
+        RecordJournal journal = new RecordJournal(file);
+        journal.rotate(dest);
+        assertEquals(0, journal.getRecordCount());
+        journal.append("SET", "e", "f");
+        journal.close();
+
+        final List<String[]> moved = new ArrayList<String[]>();
+        RecordJournal.replay(dest, moved::add);
+        assertEquals(3, moved.size());
+        List<String[]> records = replay();
+        assertEquals(1, records.size());
+        assertArrayEquals(new String[] {"SET", "e", "f"}, records.get(0));
+    }
+}